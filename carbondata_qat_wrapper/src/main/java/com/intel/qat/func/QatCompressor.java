@@ -3,6 +3,7 @@
 import com.intel.qat.jni.CarbondataQatJNI;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 public class QatCompressor {
@@ -14,7 +15,8 @@ public class QatCompressor {
 
         int maxDesLen = CarbondataQatJNI.maxCompressedLength(unCompInput.length);
         byte[] des = new byte[maxDesLen];
-        int compressedLen = CarbondataQatJNI.compress(unCompInput, unCompInput.length, des);
+        int compressedLen = CarbondataQatJNI.compressBytes(unCompInput, 0, unCompInput.length,
+                des, 0, maxDesLen);
 
         byte[] res = new byte[compressedLen];
         System.arraycopy(des, 0, res, 0, compressedLen);
@@ -33,11 +35,153 @@ public class QatCompressor {
 
         int maxDesLen = CarbondataQatJNI.maxCompressedLength(srcLen);
         byte[] des = new byte[maxDesLen];
-        int compressedLen = CarbondataQatJNI.compress(unCompInput, srcLen, des);
+        int compressedLen = CarbondataQatJNI.compressBytes(unCompInput, 0, srcLen,
+                des, 0, maxDesLen);
 
         byte[] res = new byte[compressedLen];
         System.arraycopy(des, 0, res, 0, compressedLen);
         return res;
     }
 
+    /**
+     * Compresses src[srcOff, srcOff + srcLen) straight into des starting at desOff,
+     * without intermediate copies.
+     *
+     * @return the compressed length
+     */
+    public synchronized int compress(byte[] src, int srcOff, int srcLen,
+                                     byte[] des, int desOff) throws IOException {
+        if (src == null || des == null) {
+            throw new NullPointerException();
+        }
+        if (srcOff < 0 || srcLen < 0 || srcOff > src.length - srcLen
+                || desOff < 0 || desOff > des.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        return CarbondataQatJNI.compressBytes(src, srcOff, srcLen, des, desOff, des.length - desOff);
+    }
+
+    /**
+     * Compresses the remaining bytes of src into des. Both buffers must be direct,
+     * or both array backed. On return src is fully consumed and the position of des
+     * is advanced past the compressed data.
+     *
+     * @return the compressed length
+     */
+    public synchronized int compress(ByteBuffer src, ByteBuffer des) throws IOException {
+        if (src == null || des == null) {
+            throw new NullPointerException();
+        }
+        int compressedLen;
+        if (src.isDirect() && des.isDirect()) {
+            compressedLen = CarbondataQatJNI.compressBuffer(src, src.position(), src.remaining(),
+                    des, des.position(), des.remaining());
+        } else if (src.hasArray() && des.hasArray()) {
+            compressedLen = CarbondataQatJNI.compressBytes(src.array(),
+                    src.arrayOffset() + src.position(), src.remaining(),
+                    des.array(), des.arrayOffset() + des.position(), des.remaining());
+        } else {
+            throw new IllegalArgumentException(
+                    "src and des must both be direct or both be array backed");
+        }
+        src.position(src.limit());
+        des.position(des.position() + compressedLen);
+        return compressedLen;
+    }
+
+    /**
+     * Compresses src[i][srcOff[i], srcOff[i] + srcLen[i]) into des[i] starting at
+     * desOff[i] for every i in a single native call, which saves the per-call
+     * overhead on small pages.
+     *
+     * @return the compressed length of every entry
+     */
+    public synchronized int[] compress(byte[][] src, int[] srcOff, int[] srcLen,
+                                       byte[][] des, int[] desOff) throws IOException {
+        int[] desLen = checkBatch(src, srcOff, srcLen, des, desOff);
+        int[] compressedLen = new int[src.length];
+        CarbondataQatJNI.compressBytesBatch(src, srcOff, srcLen, des, desOff, desLen,
+                compressedLen);
+        return compressedLen;
+    }
+
+    /**
+     * Compresses the remaining bytes of every src[i] into des[i] in a single native
+     * call. All buffers must be direct; positions advance as for
+     * {@link #compress(ByteBuffer, ByteBuffer)}.
+     *
+     * @return the compressed length of every entry
+     */
+    public synchronized int[] compress(ByteBuffer[] src, ByteBuffer[] des) throws IOException {
+        int[][] descriptors = bufferDescriptors(src, des);
+        int[] compressedLen = new int[src.length];
+        CarbondataQatJNI.compressBufferBatch(src, descriptors[0], descriptors[1],
+                des, descriptors[2], descriptors[3], compressedLen);
+        for (int i = 0; i < src.length; i++) {
+            src[i].position(src[i].limit());
+            des[i].position(des[i].position() + compressedLen[i]);
+        }
+        return compressedLen;
+    }
+
+    /**
+     * Checks a batch of array entries and returns the room left in each des.
+     */
+    static int[] checkBatch(byte[][] src, int[] srcOff, int[] srcLen,
+                            byte[][] des, int[] desOff) {
+        if (src == null || srcOff == null || srcLen == null || des == null || desOff == null) {
+            throw new NullPointerException();
+        }
+        int n = src.length;
+        if (srcOff.length != n || srcLen.length != n || des.length != n || desOff.length != n) {
+            throw new IllegalArgumentException("Batch arrays differ in length");
+        }
+        int[] desLen = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (src[i] == null || des[i] == null) {
+                throw new NullPointerException();
+            }
+            if (srcOff[i] < 0 || srcLen[i] < 0 || srcOff[i] > src[i].length - srcLen[i]
+                    || desOff[i] < 0 || desOff[i] > des[i].length) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            desLen[i] = des[i].length - desOff[i];
+        }
+        return desLen;
+    }
+
+    /**
+     * Returns the source offsets and lengths and the destination offsets and
+     * lengths of a batch of direct buffers.
+     */
+    static int[][] bufferDescriptors(ByteBuffer[] src, ByteBuffer[] des) {
+        if (src == null || des == null) {
+            throw new NullPointerException();
+        }
+        if (src.length != des.length) {
+            throw new IllegalArgumentException("Batch arrays differ in length");
+        }
+        int[][] descriptors = new int[4][src.length];
+        for (int i = 0; i < src.length; i++) {
+            if (src[i] == null || des[i] == null) {
+                throw new NullPointerException();
+            }
+            if (!src[i].isDirect() || !des[i].isDirect()) {
+                throw new IllegalArgumentException("Batch buffers must be direct");
+            }
+            descriptors[0][i] = src[i].position();
+            descriptors[1][i] = src[i].remaining();
+            descriptors[2][i] = des[i].position();
+            descriptors[3][i] = des[i].remaining();
+        }
+        return descriptors;
+    }
+
+    /**
+     * Returns the size des must have to hold the compressed form of srcLen bytes.
+     */
+    public int maxCompressedLength(int srcLen) {
+        return CarbondataQatJNI.maxCompressedLength(srcLen);
+    }
+
 }
@@ -3,20 +3,24 @@
 import com.intel.qat.jni.CarbondataQatJNI;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class QatDecompressor {
 
+    // Largest array size most VMs can allocate.
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Decompresses compInput when its uncompressed length is unknown. Prefer
+     * {@link #decompress(byte[], int, int, int)} when the length is recorded elsewhere.
+     */
     public synchronized byte [] decompress(byte[] compInput) throws IOException {
         if (compInput == null) {
             throw new NullPointerException();
         }
 
-        byte[] des = new byte[compInput.length*2];
-        int uncompressedLen = CarbondataQatJNI.decompress(compInput, 0, compInput.length, des);
-
-        byte[] res = new byte[uncompressedLen];
-        System.arraycopy(des, 0, res, 0, uncompressedLen);
-        return res;
+        return decompressUnknownLength(compInput, 0, compInput.length);
     }
 
     public synchronized byte [] decompress(byte[] compInput, int srcOff, int srcLen) throws IOException{
@@ -27,11 +31,148 @@ public class QatDecompressor {
                 throw new ArrayIndexOutOfBoundsException();
         }
 
-        byte[] des = new byte[compInput.length*2];
-        int uncompressedLen = CarbondataQatJNI.decompress(compInput, srcOff, srcLen, des);
+        return decompressUnknownLength(compInput, srcOff, Math.min(srcLen, compInput.length - srcOff));
+    }
+
+    /**
+     * Decompresses compInput[srcOff, srcOff + srcLen) into an array of exactly
+     * uncompressedLen bytes, e.g. taken from CarbonData page metadata. The output
+     * is allocated once and never copied.
+     */
+    public synchronized byte [] decompress(byte[] compInput, int srcOff, int srcLen,
+                                           int uncompressedLen) throws IOException {
+        if (compInput == null) {
+            throw new NullPointerException();
+        }
+        if (srcOff < 0 || srcLen < 0 || srcOff > compInput.length - srcLen || uncompressedLen < 0) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+
+        byte[] des = new byte[uncompressedLen];
+        int len = CarbondataQatJNI.decompressBytes(compInput, srcOff, srcLen, des, 0, uncompressedLen);
+        if (len != uncompressedLen) {
+            throw new IOException("Expected " + uncompressedLen
+                    + " uncompressed bytes, but the data is "
+                    + (len == CarbondataQatJNI.DES_TOO_SMALL ? "longer" : len + " bytes"));
+        }
+        return des;
+    }
+
+    /**
+     * Starts from a 4x ratio guess and doubles the output buffer until the data fits,
+     * so highly compressible pages no longer fail.
+     */
+    private byte [] decompressUnknownLength(byte[] src, int srcOff, int srcLen) throws IOException {
+        int desLen = (int) Math.min(MAX_ARRAY_SIZE, Math.max(srcLen * 4L, 64));
+        while (true) {
+            byte[] des = new byte[desLen];
+            int uncompressedLen = CarbondataQatJNI.decompressBytes(src, srcOff, srcLen, des, 0, desLen);
+            if (uncompressedLen != CarbondataQatJNI.DES_TOO_SMALL) {
+                return uncompressedLen == desLen ? des : Arrays.copyOf(des, uncompressedLen);
+            }
+            if (desLen == MAX_ARRAY_SIZE) {
+                throw new IOException("Uncompressed data is larger than the maximum array size");
+            }
+            desLen = (int) Math.min(MAX_ARRAY_SIZE, desLen * 2L);
+        }
+    }
+
+    /**
+     * Decompresses src[srcOff, srcOff + srcLen) straight into des starting at desOff,
+     * without intermediate copies.
+     *
+     * @return the decompressed length
+     */
+    public synchronized int decompress(byte[] src, int srcOff, int srcLen,
+                                       byte[] des, int desOff) throws IOException {
+        if (src == null || des == null) {
+            throw new NullPointerException();
+        }
+        if (srcOff < 0 || srcLen < 0 || srcOff > src.length - srcLen
+                || desOff < 0 || desOff > des.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        int uncompressedLen = CarbondataQatJNI.decompressBytes(src, srcOff, srcLen,
+                des, desOff, des.length - desOff);
+        if (uncompressedLen == CarbondataQatJNI.DES_TOO_SMALL) {
+            throw new IOException("des is too small for the uncompressed data");
+        }
+        return uncompressedLen;
+    }
+
+    /**
+     * Decompresses the remaining bytes of src into des. Both buffers must be direct,
+     * or both array backed. On return src is fully consumed and the position of des
+     * is advanced past the decompressed data.
+     *
+     * @return the decompressed length
+     */
+    public synchronized int decompress(ByteBuffer src, ByteBuffer des) throws IOException {
+        if (src == null || des == null) {
+            throw new NullPointerException();
+        }
+        int uncompressedLen;
+        if (src.isDirect() && des.isDirect()) {
+            uncompressedLen = CarbondataQatJNI.decompressBuffer(src, src.position(), src.remaining(),
+                    des, des.position(), des.remaining());
+        } else if (src.hasArray() && des.hasArray()) {
+            uncompressedLen = CarbondataQatJNI.decompressBytes(src.array(),
+                    src.arrayOffset() + src.position(), src.remaining(),
+                    des.array(), des.arrayOffset() + des.position(), des.remaining());
+        } else {
+            throw new IllegalArgumentException(
+                    "src and des must both be direct or both be array backed");
+        }
+        if (uncompressedLen == CarbondataQatJNI.DES_TOO_SMALL) {
+            throw new IOException("des is too small for the uncompressed data");
+        }
+        src.position(src.limit());
+        des.position(des.position() + uncompressedLen);
+        return uncompressedLen;
+    }
+
+    /**
+     * Decompresses src[i][srcOff[i], srcOff[i] + srcLen[i]) into des[i] starting at
+     * desOff[i] for every i in a single native call, which saves the per-call
+     * overhead on small pages.
+     *
+     * @return the decompressed length of every entry
+     */
+    public synchronized int[] decompress(byte[][] src, int[] srcOff, int[] srcLen,
+                                         byte[][] des, int[] desOff) throws IOException {
+        int[] desLen = QatCompressor.checkBatch(src, srcOff, srcLen, des, desOff);
+        int[] uncompressedLen = new int[src.length];
+        CarbondataQatJNI.decompressBytesBatch(src, srcOff, srcLen, des, desOff, desLen,
+                uncompressedLen);
+        checkBatchResults(uncompressedLen);
+        return uncompressedLen;
+    }
+
+    /**
+     * Decompresses the remaining bytes of every src[i] into des[i] in a single
+     * native call. All buffers must be direct; positions advance as for
+     * {@link #decompress(ByteBuffer, ByteBuffer)}.
+     *
+     * @return the decompressed length of every entry
+     */
+    public synchronized int[] decompress(ByteBuffer[] src, ByteBuffer[] des) throws IOException {
+        int[][] descriptors = QatCompressor.bufferDescriptors(src, des);
+        int[] uncompressedLen = new int[src.length];
+        CarbondataQatJNI.decompressBufferBatch(src, descriptors[0], descriptors[1],
+                des, descriptors[2], descriptors[3], uncompressedLen);
+        checkBatchResults(uncompressedLen);
+        for (int i = 0; i < src.length; i++) {
+            src[i].position(src[i].limit());
+            des[i].position(des[i].position() + uncompressedLen[i]);
+        }
+        return uncompressedLen;
+    }
 
-        byte[] res = new byte[uncompressedLen];
-        System.arraycopy(des, 0, res, 0, uncompressedLen);
-        return res;
+    private static void checkBatchResults(int[] uncompressedLen) throws IOException {
+        for (int i = 0; i < uncompressedLen.length; i++) {
+            if (uncompressedLen[i] == CarbondataQatJNI.DES_TOO_SMALL) {
+                throw new IOException("des[" + i + "] is too small for the uncompressed data");
+            }
+        }
     }
 }
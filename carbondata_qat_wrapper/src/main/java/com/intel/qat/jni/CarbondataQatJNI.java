@@ -1,7 +1,12 @@
 package com.intel.qat.jni;
 
+import java.nio.ByteBuffer;
+
 public class CarbondataQatJNI {
-    
+
+    // Returned by decompressBytes and decompressBuffer when the output does not fit in des.
+    public static final int DES_TOO_SMALL = -1;
+
     static{
         System.loadLibrary("CarbondataQatJNI");
         init();
@@ -14,4 +19,38 @@ public class CarbondataQatJNI {
     public static native int decompress(byte[] src, int srcOff, int srcLen, byte[] des);
 
     public static native int maxCompressedLength(int srcLen);
+
+    // Array variants access the Java arrays in place through
+    // GetPrimitiveArrayCritical instead of copying them.
+    public static native int compressBytes(byte[] src, int srcOff, int srcLen,
+                                           byte[] des, int desOff, int desLen);
+
+    public static native int decompressBytes(byte[] src, int srcOff, int srcLen,
+                                             byte[] des, int desOff, int desLen);
+
+    // Buffer variants require direct ByteBuffers; offsets are absolute.
+    public static native int compressBuffer(ByteBuffer src, int srcOff, int srcLen,
+                                            ByteBuffer des, int desOff, int desLen);
+
+    public static native int decompressBuffer(ByteBuffer src, int srcOff, int srcLen,
+                                              ByteBuffer des, int desOff, int desLen);
+
+    // Batch variants process every entry in one JNI call on the thread's session
+    // and store the output length of entry i in results[i], or DES_TOO_SMALL when
+    // a decompressed entry does not fit. All arrays must have the same length.
+    public static native void compressBytesBatch(byte[][] src, int[] srcOff, int[] srcLen,
+                                                 byte[][] des, int[] desOff, int[] desLen,
+                                                 int[] results);
+
+    public static native void decompressBytesBatch(byte[][] src, int[] srcOff, int[] srcLen,
+                                                   byte[][] des, int[] desOff, int[] desLen,
+                                                   int[] results);
+
+    public static native void compressBufferBatch(ByteBuffer[] src, int[] srcOff, int[] srcLen,
+                                                  ByteBuffer[] des, int[] desOff, int[] desLen,
+                                                  int[] results);
+
+    public static native void decompressBufferBatch(ByteBuffer[] src, int[] srcOff, int[] srcLen,
+                                                    ByteBuffer[] des, int[] desOff, int[] desLen,
+                                                    int[] results);
 }
@@ -167,3 +167,324 @@ JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_maxCompressedLeng
     return ret;
 }
 
+
+/* Maps a qzCompress/qzDecompress return code to a Java InternalError. */
+static void throw_qz_error(JNIEnv *env, const char *op, int ret)
+{
+    char temp[256];
+    if (ret == QZ_PARAMS) {
+        snprintf(temp, sizeof(temp), "Could not %s data. *sess is NULL or member of params is invalid.", op);
+    }
+    else if (ret == QZ_FAIL) {
+        snprintf(temp, sizeof(temp), "Could not %s data. Function did not succeed.", op);
+    }
+    else {
+        snprintf(temp, sizeof(temp), "Could not %s data. Return error code %d", op, ret);
+    }
+    THROW(env, "java/lang/InternalError", temp);
+}
+
+
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBytes
+  (JNIEnv *env, jclass cls, jbyteArray src, jint srcOff, jint srcLen, jbyteArray des, jint desOff, jint desLen){
+
+    uint32_t uncompressed_size = srcLen;
+    uint32_t compressed_size = desLen;
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+
+    /* No JNI calls are allowed until both critical arrays are released. */
+    jbyte *in = (*env)->GetPrimitiveArrayCritical(env, src, 0);
+    if (in == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get compressor input buffer");
+        return 0;
+    }
+    jbyte *out = (*env)->GetPrimitiveArrayCritical(env, des, 0);
+    if (out == NULL) {
+        (*env)->ReleasePrimitiveArrayCritical(env, src, in, JNI_ABORT);
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get compressor output buffer");
+        return 0;
+    }
+
+    int ret = qat_wrapper_context->compress(&g_qzSession, (unsigned char *)in + srcOff, &uncompressed_size,
+        (unsigned char *)out + desOff, &compressed_size, 1);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, des, out, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, src, in, JNI_ABORT);
+
+    if (ret != QZ_OK) {
+        throw_qz_error(env, "compress", ret);
+        return 0;
+    }
+    return compressed_size;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBytes
+  (JNIEnv *env, jclass cls, jbyteArray src, jint srcOff, jint srcLen, jbyteArray des, jint desOff, jint desLen){
+
+    uint32_t compressed_size = srcLen;
+    uint32_t uncompressed_size = desLen;
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+
+    /* No JNI calls are allowed until both critical arrays are released. */
+    jbyte *in = (*env)->GetPrimitiveArrayCritical(env, src, 0);
+    if (in == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor input buffer");
+        return 0;
+    }
+    jbyte *out = (*env)->GetPrimitiveArrayCritical(env, des, 0);
+    if (out == NULL) {
+        (*env)->ReleasePrimitiveArrayCritical(env, src, in, JNI_ABORT);
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor output buffer");
+        return 0;
+    }
+
+    int ret = qat_wrapper_context->decompress(&g_qzSession, (unsigned char *)in + srcOff, &compressed_size,
+        (unsigned char *)out + desOff, &uncompressed_size);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, des, out, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, src, in, JNI_ABORT);
+
+    if (ret == QZ_BUF_ERROR) {
+        /* Let the caller retry with a larger output buffer. */
+        return -1;
+    }
+    if (ret != QZ_OK) {
+        throw_qz_error(env, "decompress", ret);
+        return 0;
+    }
+    return uncompressed_size;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBuffer
+  (JNIEnv *env, jclass cls, jobject src, jint srcOff, jint srcLen, jobject des, jint desOff, jint desLen){
+
+    uint32_t uncompressed_size = srcLen;
+    uint32_t compressed_size = desLen;
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+
+    unsigned char *in = (*env)->GetDirectBufferAddress(env, src);
+    if (in == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get compressor input buffer");
+        return 0;
+    }
+    unsigned char *out = (*env)->GetDirectBufferAddress(env, des);
+    if (out == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get compressor output buffer");
+        return 0;
+    }
+
+    int ret = qat_wrapper_context->compress(&g_qzSession, in + srcOff, &uncompressed_size,
+        out + desOff, &compressed_size, 1);
+    if (ret != QZ_OK) {
+        throw_qz_error(env, "compress", ret);
+        return 0;
+    }
+    return compressed_size;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBuffer
+  (JNIEnv *env, jclass cls, jobject src, jint srcOff, jint srcLen, jobject des, jint desOff, jint desLen){
+
+    uint32_t compressed_size = srcLen;
+    uint32_t uncompressed_size = desLen;
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+
+    unsigned char *in = (*env)->GetDirectBufferAddress(env, src);
+    if (in == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor input buffer");
+        return 0;
+    }
+    unsigned char *out = (*env)->GetDirectBufferAddress(env, des);
+    if (out == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor output buffer");
+        return 0;
+    }
+
+    int ret = qat_wrapper_context->decompress(&g_qzSession, in + srcOff, &compressed_size,
+        out + desOff, &uncompressed_size);
+    if (ret == QZ_BUF_ERROR) {
+        /* Let the caller retry with a larger output buffer. */
+        return -1;
+    }
+    if (ret != QZ_OK) {
+        throw_qz_error(env, "decompress", ret);
+        return 0;
+    }
+    return uncompressed_size;
+}
+
+
+/*
+ * Descriptors of a batch call, copied out of the Java int arrays at once so
+ * the loop makes no JNI call per entry for them.
+ */
+typedef struct qat_batch {
+    jint count;
+    jint *src_off;
+    jint *src_len;
+    jint *des_off;
+    jint *des_len;
+    jint *results;
+} qat_batch_t;
+
+static int batch_init(JNIEnv *env, qat_batch_t *batch, jobjectArray src,
+    jintArray srcOff, jintArray srcLen, jobjectArray des, jintArray desOff,
+    jintArray desLen, jintArray results) {
+
+    jint n = (*env)->GetArrayLength(env, src);
+    if ((*env)->GetArrayLength(env, srcOff) != n || (*env)->GetArrayLength(env, srcLen) != n
+        || (*env)->GetArrayLength(env, des) != n || (*env)->GetArrayLength(env, desOff) != n
+        || (*env)->GetArrayLength(env, desLen) != n || (*env)->GetArrayLength(env, results) != n) {
+        THROW(env, "java/lang/IllegalArgumentException", "Batch arrays differ in length");
+        return -1;
+    }
+    jint *ints = malloc(5 * ((size_t) n + 1) * sizeof(jint));
+    if (ints == NULL) {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't allocate batch descriptors");
+        return -1;
+    }
+    batch->count = n;
+    batch->src_off = ints;
+    batch->src_len = ints + n;
+    batch->des_off = ints + 2 * n;
+    batch->des_len = ints + 3 * n;
+    batch->results = ints + 4 * n;
+    (*env)->GetIntArrayRegion(env, srcOff, 0, n, batch->src_off);
+    (*env)->GetIntArrayRegion(env, srcLen, 0, n, batch->src_len);
+    (*env)->GetIntArrayRegion(env, desOff, 0, n, batch->des_off);
+    (*env)->GetIntArrayRegion(env, desLen, 0, n, batch->des_len);
+    return 0;
+}
+
+/*
+ * Runs one entry of a batch on the thread's session. Returns the output
+ * length, DES_TOO_SMALL for a decompressed entry that does not fit, or throws
+ * and returns INT32_MIN.
+ */
+static jint batch_entry(JNIEnv *env, int compress, unsigned char *in, uint32_t in_len,
+    unsigned char *out, uint32_t out_len, int *qz_ret) {
+
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    int ret;
+    if (compress) {
+        ret = qat_wrapper_context->compress(&g_qzSession, in, &in_len, out, &out_len, 1);
+    } else {
+        ret = qat_wrapper_context->decompress(&g_qzSession, in, &in_len, out, &out_len);
+        if (ret == QZ_BUF_ERROR) {
+            return -1;
+        }
+    }
+    *qz_ret = ret;
+    return ret == QZ_OK ? (jint) out_len : INT32_MIN;
+}
+
+static void batch_bytes(JNIEnv *env, int compress, jobjectArray src, jintArray srcOff,
+    jintArray srcLen, jobjectArray des, jintArray desOff, jintArray desLen, jintArray results) {
+
+    qat_batch_t batch;
+    if (batch_init(env, &batch, src, srcOff, srcLen, des, desOff, desLen, results) != 0) {
+        return;
+    }
+    jint i;
+    for (i = 0; i < batch.count; i++) {
+        jobject s = (*env)->GetObjectArrayElement(env, src, i);
+        jobject d = (*env)->GetObjectArrayElement(env, des, i);
+        /* No JNI calls are allowed until both critical arrays are released. */
+        jbyte *in = (*env)->GetPrimitiveArrayCritical(env, s, 0);
+        if (in == NULL) {
+            (*env)->DeleteLocalRef(env, s);
+            (*env)->DeleteLocalRef(env, d);
+            THROW(env, "java/lang/OutOfMemoryError", "Can't get batch input buffer");
+            break;
+        }
+        jbyte *out = (*env)->GetPrimitiveArrayCritical(env, d, 0);
+        if (out == NULL) {
+            (*env)->ReleasePrimitiveArrayCritical(env, s, in, JNI_ABORT);
+            (*env)->DeleteLocalRef(env, s);
+            (*env)->DeleteLocalRef(env, d);
+            THROW(env, "java/lang/OutOfMemoryError", "Can't get batch output buffer");
+            break;
+        }
+        int ret = QZ_OK;
+        batch.results[i] = batch_entry(env, compress,
+            (unsigned char *)in + batch.src_off[i], batch.src_len[i],
+            (unsigned char *)out + batch.des_off[i], batch.des_len[i], &ret);
+        (*env)->ReleasePrimitiveArrayCritical(env, d, out, 0);
+        (*env)->ReleasePrimitiveArrayCritical(env, s, in, JNI_ABORT);
+        (*env)->DeleteLocalRef(env, s);
+        (*env)->DeleteLocalRef(env, d);
+        if (batch.results[i] == INT32_MIN) {
+            throw_qz_error(env, compress ? "compress" : "decompress", ret);
+            break;
+        }
+    }
+    if (i == batch.count) {
+        (*env)->SetIntArrayRegion(env, results, 0, batch.count, batch.results);
+    }
+    free(batch.src_off);
+}
+
+static void batch_buffers(JNIEnv *env, int compress, jobjectArray src, jintArray srcOff,
+    jintArray srcLen, jobjectArray des, jintArray desOff, jintArray desLen, jintArray results) {
+
+    qat_batch_t batch;
+    if (batch_init(env, &batch, src, srcOff, srcLen, des, desOff, desLen, results) != 0) {
+        return;
+    }
+    jint i;
+    for (i = 0; i < batch.count; i++) {
+        jobject s = (*env)->GetObjectArrayElement(env, src, i);
+        jobject d = (*env)->GetObjectArrayElement(env, des, i);
+        unsigned char *in = (*env)->GetDirectBufferAddress(env, s);
+        unsigned char *out = (*env)->GetDirectBufferAddress(env, d);
+        (*env)->DeleteLocalRef(env, s);
+        (*env)->DeleteLocalRef(env, d);
+        if (in == NULL || out == NULL) {
+            THROW(env, "java/lang/OutOfMemoryError", "Can't get batch buffer");
+            break;
+        }
+        int ret = QZ_OK;
+        batch.results[i] = batch_entry(env, compress,
+            in + batch.src_off[i], batch.src_len[i],
+            out + batch.des_off[i], batch.des_len[i], &ret);
+        if (batch.results[i] == INT32_MIN) {
+            throw_qz_error(env, compress ? "compress" : "decompress", ret);
+            break;
+        }
+    }
+    if (i == batch.count) {
+        (*env)->SetIntArrayRegion(env, results, 0, batch.count, batch.results);
+    }
+    free(batch.src_off);
+}
+
+
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBytesBatch
+  (JNIEnv *env, jclass cls, jobjectArray src, jintArray srcOff, jintArray srcLen,
+   jobjectArray des, jintArray desOff, jintArray desLen, jintArray results){
+    batch_bytes(env, 1, src, srcOff, srcLen, des, desOff, desLen, results);
+}
+
+
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBytesBatch
+  (JNIEnv *env, jclass cls, jobjectArray src, jintArray srcOff, jintArray srcLen,
+   jobjectArray des, jintArray desOff, jintArray desLen, jintArray results){
+    batch_bytes(env, 0, src, srcOff, srcLen, des, desOff, desLen, results);
+}
+
+
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBufferBatch
+  (JNIEnv *env, jclass cls, jobjectArray src, jintArray srcOff, jintArray srcLen,
+   jobjectArray des, jintArray desOff, jintArray desLen, jintArray results){
+    batch_buffers(env, 1, src, srcOff, srcLen, des, desOff, desLen, results);
+}
+
+
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBufferBatch
+  (JNIEnv *env, jclass cls, jobjectArray src, jintArray srcOff, jintArray srcLen,
+   jobjectArray des, jintArray desOff, jintArray desLen, jintArray results){
+    batch_buffers(env, 0, src, srcOff, srcLen, des, desOff, desLen, results);
+}
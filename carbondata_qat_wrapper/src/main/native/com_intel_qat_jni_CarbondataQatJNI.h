@@ -7,6 +7,8 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef com_intel_qat_jni_CarbondataQatJNI_DES_TOO_SMALL
+#define com_intel_qat_jni_CarbondataQatJNI_DES_TOO_SMALL -1L
 /*
  * Class:     com_intel_qat_jni_CarbondataQatJNI
  * Method:    init
@@ -39,6 +41,70 @@ JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompress
 JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_maxCompressedLength
   (JNIEnv *, jclass, jint);
 
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    compressBytes
+ * Signature: ([BII[BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBytes
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    decompressBytes
+ * Signature: ([BII[BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBytes
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    compressBuffer
+ * Signature: (Ljava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBuffer
+  (JNIEnv *, jclass, jobject, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    decompressBuffer
+ * Signature: (Ljava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBuffer
+  (JNIEnv *, jclass, jobject, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    compressBytesBatch
+ * Signature: ([[B[I[I[[B[I[I[I)V
+ */
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBytesBatch
+  (JNIEnv *, jclass, jobjectArray, jintArray, jintArray, jobjectArray, jintArray, jintArray, jintArray);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    decompressBytesBatch
+ * Signature: ([[B[I[I[[B[I[I[I)V
+ */
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBytesBatch
+  (JNIEnv *, jclass, jobjectArray, jintArray, jintArray, jobjectArray, jintArray, jintArray, jintArray);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    compressBufferBatch
+ * Signature: ([Ljava/nio/ByteBuffer;[I[I[Ljava/nio/ByteBuffer;[I[I[I)V
+ */
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_compressBufferBatch
+  (JNIEnv *, jclass, jobjectArray, jintArray, jintArray, jobjectArray, jintArray, jintArray, jintArray);
+
+/*
+ * Class:     com_intel_qat_jni_CarbondataQatJNI
+ * Method:    decompressBufferBatch
+ * Signature: ([Ljava/nio/ByteBuffer;[I[I[Ljava/nio/ByteBuffer;[I[I[I)V
+ */
+JNIEXPORT void JNICALL Java_com_intel_qat_jni_CarbondataQatJNI_decompressBufferBatch
+  (JNIEnv *, jclass, jobjectArray, jintArray, jintArray, jobjectArray, jintArray, jintArray, jintArray);
+
 #ifdef __cplusplus
 }
 #endif
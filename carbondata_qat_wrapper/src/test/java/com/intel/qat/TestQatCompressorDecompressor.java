@@ -12,6 +12,7 @@
 import org.junit.Test;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 public class TestQatCompressorDecompressor {
@@ -127,6 +128,174 @@ public void testQatCompressDecompressMultiInput() {
         }
     }
 
+    @Test
+    public void testQatCompressDecompressWithOffsets() {
+
+        int BYTE_SIZE = 1024*32;
+        byte [] unComp1 = BytesGenerator.get(BYTE_SIZE);
+
+        try {
+            byte [] src = new byte[BYTE_SIZE + 7];
+            System.arraycopy(unComp1, 0, src, 7, BYTE_SIZE);
+            byte [] comp = new byte[compressor.maxCompressedLength(BYTE_SIZE) + 3];
+            int compLen = compressor.compress(src, 7, BYTE_SIZE, comp, 3);
+            byte [] unComp2 = new byte[BYTE_SIZE + 5];
+            int unCompLen = decompressor.decompress(comp, 3, compLen, unComp2, 5);
+            assertEquals(BYTE_SIZE, unCompLen);
+            for (int i = 0; i < BYTE_SIZE; i++) {
+                assertEquals(unComp1[i], unComp2[i + 5]);
+            }
+        } catch (Exception e){
+            fail("testQatCompressDecompressWithOffsets error!" + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testQatCompressDecompressDirectBuffers() {
+
+        int BYTE_SIZE = 1024*64;
+        byte [] unComp1 = BytesGenerator.get(BYTE_SIZE);
+
+        try {
+            ByteBuffer src = ByteBuffer.allocateDirect(BYTE_SIZE);
+            src.put(unComp1).flip();
+            ByteBuffer comp = ByteBuffer.allocateDirect(compressor.maxCompressedLength(BYTE_SIZE));
+            int compLen = compressor.compress(src, comp);
+            assertEquals(compLen, comp.position());
+            assertTrue(!src.hasRemaining());
+            comp.flip();
+            ByteBuffer unComp2 = ByteBuffer.allocateDirect(BYTE_SIZE);
+            decompressor.decompress(comp, unComp2);
+            unComp2.flip();
+            assertEquals(ByteBuffer.wrap(unComp1), unComp2);
+        } catch (Exception e){
+            fail("testQatCompressDecompressDirectBuffers error!" + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testQatDecompressHighRatioPage() {
+
+        int BYTE_SIZE = 1024*1024;
+        byte [] unComp1 = new byte[BYTE_SIZE];
+
+        try {
+            byte [] comp = compressor.compress(unComp1);
+            assertTrue(comp.length * 4 < BYTE_SIZE);
+            byte [] unComp2 = decompressor.decompress(comp);
+            Assert.assertArrayEquals(unComp1, unComp2);
+        } catch (Exception e){
+            fail("testQatDecompressHighRatioPage error!" + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testQatDecompressWithUncompressedLength() {
+
+        int BYTE_SIZE = 1024*40;
+        byte [] unComp1 = BytesGenerator.get(BYTE_SIZE);
+
+        try {
+            byte [] comp = compressor.compress(unComp1);
+            byte [] unComp2 = decompressor.decompress(comp, 0, comp.length, BYTE_SIZE);
+            Assert.assertArrayEquals(unComp1, unComp2);
+        } catch (Exception e){
+            fail("testQatDecompressWithUncompressedLength error!" + e.getMessage());
+        }
+
+        try {
+            byte [] comp = compressor.compress(unComp1);
+            decompressor.decompress(comp, 0, comp.length, BYTE_SIZE - 1);
+            fail("testQatDecompressWithUncompressedLength error!");
+        } catch (java.io.IOException ex) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testQatCompressDecompressBatch() {
+
+        int[] sizes = {4096, 16384, 65536, 1, 100};
+        int n = sizes.length;
+        byte [][] unComp1 = new byte[n][];
+        byte [][] comp = new byte[n][];
+        byte [][] unComp2 = new byte[n][];
+        int [] srcOff = new int[n];
+        int [] desOff = new int[n];
+        for (int i = 0; i < n; i++) {
+            unComp1[i] = new byte[sizes[i] + i];
+            System.arraycopy(BytesGenerator.get(sizes[i]), 0, unComp1[i], i, sizes[i]);
+            comp[i] = new byte[compressor.maxCompressedLength(sizes[i]) + 2];
+            unComp2[i] = new byte[sizes[i] + 1];
+            srcOff[i] = i;
+            desOff[i] = 2;
+        }
+
+        try {
+            int [] compLen = compressor.compress(unComp1, srcOff, sizes, comp, desOff);
+            int [] unCompLen = decompressor.decompress(comp, desOff, compLen, unComp2, new int[n]);
+            for (int i = 0; i < n; i++) {
+                assertEquals(sizes[i], unCompLen[i]);
+                for (int j = 0; j < sizes[i]; j++) {
+                    assertEquals(unComp1[i][j + i], unComp2[i][j]);
+                }
+            }
+        } catch (Exception e){
+            fail("testQatCompressDecompressBatch error!" + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testQatCompressDecompressBatchDirectBuffers() {
+
+        int BYTE_SIZE = 1024*16;
+        int n = 8;
+        byte [][] unComp1 = new byte[n][];
+        ByteBuffer [] src = new ByteBuffer[n];
+        ByteBuffer [] comp = new ByteBuffer[n];
+        ByteBuffer [] unComp2 = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            unComp1[i] = BytesGenerator.get(BYTE_SIZE);
+            src[i] = ByteBuffer.allocateDirect(BYTE_SIZE);
+            src[i].put(unComp1[i]).flip();
+            comp[i] = ByteBuffer.allocateDirect(compressor.maxCompressedLength(BYTE_SIZE));
+            unComp2[i] = ByteBuffer.allocateDirect(BYTE_SIZE);
+        }
+
+        try {
+            int [] compLen = compressor.compress(src, comp);
+            for (int i = 0; i < n; i++) {
+                assertEquals(compLen[i], comp[i].position());
+                assertTrue(!src[i].hasRemaining());
+                comp[i].flip();
+            }
+            decompressor.decompress(comp, unComp2);
+            for (int i = 0; i < n; i++) {
+                unComp2[i].flip();
+                assertEquals(ByteBuffer.wrap(unComp1[i]), unComp2[i]);
+            }
+        } catch (Exception e){
+            fail("testQatCompressDecompressBatchDirectBuffers error!" + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testQatDecompressBatchDesTooSmall() {
+
+        int BYTE_SIZE = 1024*8;
+        byte [] unComp1 = BytesGenerator.get(BYTE_SIZE);
+
+        try {
+            byte [] comp = compressor.compress(unComp1);
+            decompressor.decompress(new byte[][]{comp}, new int[]{0}, new int[]{comp.length},
+                    new byte[][]{new byte[BYTE_SIZE - 1]}, new int[]{0});
+            fail("testQatDecompressBatchDesTooSmall error!");
+        } catch (java.io.IOException ex) {
+            // expected
+        }
+    }
+
 
     static final class BytesGenerator {
         private BytesGenerator() {
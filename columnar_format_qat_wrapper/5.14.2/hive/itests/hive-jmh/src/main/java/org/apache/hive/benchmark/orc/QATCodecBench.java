@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hive.benchmark.orc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.io.orc.CompressionCodec;
+import org.apache.hadoop.hive.ql.io.orc.QATCodec;
+import org.apache.hadoop.io.compress.qat.QatCompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the pooled QATCodec compressor against building a new QatCompressor
+ * for every chunk, on the chunk pattern of a wide ORC stripe: one chunk per
+ * column stream.
+ *
+ * This test measures the performance for ORC QAT compression.
+ * <p/>
+ * This test uses JMH framework for benchmarking.
+ * You may execute this benchmark tool using JMH command line in different ways:
+ * <p/>
+ * To run using default settings:
+ * <p/>
+ * $ java -cp target/benchmarks.jar org.apache.hive.benchmark.orc.QATCodecBench
+ * <p/>
+ * To specify different parameters, use:
+ * - This command will use 10 warm-up iterations, 5 test iterations, and 2 forks. And it will
+ * display the Average Time (avgt) in Microseconds (us)
+ * - Benchmark mode. Available modes are:
+ * [Throughput/thrpt, AverageTime/avgt, SampleTime/sample, SingleShotTime/ss, All/all]
+ * - Output time unit. Available time units are: [m, s, ms, us, ns].
+ * <p/>
+ * $ java -cp target/benchmarks.jar org.apache.hive.benchmark.orc.QATCodecBench
+ * -wi 10 -i 5 -f 2 -bm avgt -tu us
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QATCodecBench {
+  private static final int CHUNK_SIZE = 256 * 1024;
+
+  @Param({"100", "500"})
+  public int columns;
+
+  private ByteBuffer[] chunks;
+  private ByteBuffer out;
+  private ByteBuffer overflow;
+  private CompressionCodec codec;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(12345L);
+    chunks = new ByteBuffer[columns];
+    for (int i = 0; i < columns; i++) {
+      byte[] data = new byte[CHUNK_SIZE];
+      for (int j = 0; j < data.length; j++) {
+        // low-cardinality values, like an encoded ORC column stream
+        data[j] = (byte) random.nextInt(16);
+      }
+      chunks[i] = ByteBuffer.wrap(data);
+    }
+    out = ByteBuffer.allocate(CHUNK_SIZE);
+    overflow = ByteBuffer.allocate(CHUNK_SIZE);
+    codec = new QATCodec(CHUNK_SIZE);
+  }
+
+  @Benchmark
+  public int pooledCompressor() throws IOException {
+    int compressed = 0;
+    for (ByteBuffer chunk : chunks) {
+      out.clear();
+      overflow.clear();
+      chunk.rewind();
+      codec.compress(chunk, out, overflow);
+      compressed += out.position();
+    }
+    return compressed;
+  }
+
+  @Benchmark
+  public int compressorPerChunk() throws IOException {
+    int compressed = 0;
+    for (ByteBuffer chunk : chunks) {
+      // the QATCodec.compress path before compressors were pooled
+      QatCompressor compressor = new QatCompressor(CHUNK_SIZE);
+      compressor.setInput(chunk.array(), chunk.arrayOffset(), chunk.capacity());
+      compressor.finish();
+      byte[] buf = out.array();
+      while (!compressor.finished()) {
+        int size = compressor.compress(buf, 0, buf.length);
+        if (size == 0) {
+          break;
+        }
+        compressed += size;
+      }
+      compressor.end();
+    }
+    return compressed;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + QATCodecBench.class.getSimpleName() + ".*")
+      .build();
+    new Runner(opt).run();
+  }
+}
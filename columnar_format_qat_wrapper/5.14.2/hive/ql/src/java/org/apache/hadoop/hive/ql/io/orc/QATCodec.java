@@ -21,15 +21,47 @@
 import org.apache.hadoop.hive.shims.HadoopShims;
 import org.apache.hadoop.hive.shims.ShimLoader;
 import org.apache.hadoop.io.compress.qat.QatCompressor;
+import org.apache.hadoop.io.compress.qat.QatCompressor.QatDirectCompressor;
 import org.apache.hadoop.io.compress.qat.QatDecompressor;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 
 public class QATCodec implements CompressionCodec, DirectDecompressionCodec{
 
+  // Each QatCompressor/QatDecompressor owns two direct (possibly pinned)
+  // buffers, so they are kept per thread and per buffer size instead of being
+  // built for every chunk.
+  private static final ThreadLocal<Map<Integer, QatCompressor>> compressors =
+    new ThreadLocal<Map<Integer, QatCompressor>>() {
+      @Override
+      protected Map<Integer, QatCompressor> initialValue() {
+        return new HashMap<Integer, QatCompressor>();
+      }
+    };
+  private static final ThreadLocal<Map<Integer, QatDecompressor>> decompressors =
+    new ThreadLocal<Map<Integer, QatDecompressor>>() {
+      @Override
+      protected Map<Integer, QatDecompressor> initialValue() {
+        return new HashMap<Integer, QatDecompressor>();
+      }
+    };
+
+  private static final ThreadLocal<QatDirectCompressor> directCompressors =
+    new ThreadLocal<QatDirectCompressor>() {
+      @Override
+      protected QatDirectCompressor initialValue() {
+        return new QatDirectCompressor();
+      }
+    };
+  // Scratch space for direct compression output that may not fit in out.
+  private static final ThreadLocal<ByteBuffer> directScratch =
+    new ThreadLocal<ByteBuffer>();
+
   private Boolean direct = null;
   private int bufferSize;
 
@@ -37,6 +69,34 @@ public QATCodec(int bufferSize) {
     this.bufferSize = bufferSize;
   }
 
+  private QatCompressor borrowCompressor() {
+    Map<Integer, QatCompressor> pool = compressors.get();
+    QatCompressor compressor = pool.remove(bufferSize);
+    if (compressor == null) {
+      return new QatCompressor(bufferSize);
+    }
+    compressor.reset();
+    return compressor;
+  }
+
+  private void returnCompressor(QatCompressor compressor) {
+    compressors.get().put(bufferSize, compressor);
+  }
+
+  private QatDecompressor borrowDecompressor() {
+    Map<Integer, QatDecompressor> pool = decompressors.get();
+    QatDecompressor decompressor = pool.remove(bufferSize);
+    if (decompressor == null) {
+      return new QatDecompressor(bufferSize);
+    }
+    decompressor.reset();
+    return decompressor;
+  }
+
+  private void returnDecompressor(QatDecompressor decompressor) {
+    decompressors.get().put(bufferSize, decompressor);
+  }
+
   @Override
   public boolean isAvailable() {
     if (direct == null) {
@@ -70,7 +130,75 @@ public boolean compress(
     ByteBuffer in,
     ByteBuffer out,
     ByteBuffer overflow) throws IOException {
-    QatCompressor compressor = new QatCompressor(bufferSize);
+    if (in.isDirect() && out.isDirect() &&
+      (overflow == null || overflow.isDirect())) {
+      return directCompress(in, out, overflow);
+    }
+    QatCompressor compressor = borrowCompressor();
+    try {
+      return compress(compressor, in, out, overflow);
+    } finally {
+      returnCompressor(compressor);
+    }
+  }
+
+  /**
+   * Compresses between direct buffers without going through the compressor's
+   * own buffers. The output is written straight into out when out is large
+   * enough for the worst case, otherwise into a scratch buffer and then split
+   * across out and overflow. The position of in is left unchanged, as in the
+   * heap path.
+   */
+  private static boolean directCompress(
+    ByteBuffer in,
+    ByteBuffer out,
+    ByteBuffer overflow) throws IOException {
+    int length = in.remaining();
+    int maxLength = length + length / 6 + 32;
+    QatDirectCompressor compressor = directCompressors.get();
+    compressor.reset();
+
+    if (out.remaining() >= maxLength) {
+      int start = out.position();
+      int size = compressor.compress(in.duplicate(), out);
+      if (size >= length) {
+        out.position(start);
+        return false;
+      }
+      return true;
+    }
+
+    ByteBuffer scratch = directScratch.get();
+    if (scratch == null || scratch.capacity() < maxLength) {
+      scratch = ByteBuffer.allocateDirect(maxLength);
+      directScratch.set(scratch);
+    }
+    scratch.clear();
+    int size = compressor.compress(in.duplicate(), scratch);
+    if (size >= length) {
+      return false;
+    }
+    int available = out.remaining() + (overflow == null ? 0 : overflow.remaining());
+    if (size > available) {
+      return false;
+    }
+    scratch.flip();
+    if (size <= out.remaining()) {
+      out.put(scratch);
+    } else {
+      scratch.limit(out.remaining());
+      out.put(scratch);
+      scratch.limit(size);
+      overflow.put(scratch);
+    }
+    return true;
+  }
+
+  private static boolean compress(
+    QatCompressor compressor,
+    ByteBuffer in,
+    ByteBuffer out,
+    ByteBuffer overflow) throws IOException {
     int length = in.remaining();
     compressor.setInput(in.array(), in.arrayOffset() + in.position(), length);
     compressor.finish();
@@ -84,14 +212,12 @@ public boolean compress(
       // if we run out of space in the out buffer, use the overflow
       if (out.remaining() == 0) {
         if (overflow == null) {
-          compressor.end();
           return false;
         }
         out = overflow;
         offset = out.arrayOffset() + out.position();
       }
     }
-    compressor.end();
     return length > outSize;
   }
 
@@ -104,16 +230,19 @@ public void decompress(
       return;
     }
 
-    QatDecompressor decompressor = new QatDecompressor(bufferSize);
-    decompressor.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
-    while (!(decompressor.finished() || decompressor.needsDictionary() ||
-      decompressor.needsInput())) {
-      int count =
-        decompressor.decompress(out.array(), out.arrayOffset() + out.position(), out.remaining());
-      out.position(count + out.position());
+    QatDecompressor decompressor = borrowDecompressor();
+    try {
+      decompressor.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+      while (!(decompressor.finished() || decompressor.needsDictionary() ||
+        decompressor.needsInput())) {
+        int count =
+          decompressor.decompress(out.array(), out.arrayOffset() + out.position(), out.remaining());
+        out.position(count + out.position());
+      }
+    } finally {
+      returnDecompressor(decompressor);
     }
     out.flip();
-    decompressor.end();
     in.position(in.limit());
   }
 
@@ -53,4 +53,49 @@ public void testCorrupt() throws Exception {
       // EXPECTED
     }
   }
+
+  @Test
+  public void testReuseAcrossChunks() throws Exception {
+    CompressionCodec codec = new QATCodec(DIRECT_BUFFER_SIZE);
+    for (int i = 0; i < 3; i++) {
+      ByteBuffer in = ByteBuffer.allocate(4096);
+      for (int j = 0; j < in.capacity(); j++) {
+        in.put((byte) ((i + j) % 7));
+      }
+      in.flip();
+      ByteBuffer compressed = ByteBuffer.allocate(4096);
+      assertEquals(true, codec.compress(in, compressed, null));
+      compressed.flip();
+      ByteBuffer out = ByteBuffer.allocate(4096);
+      codec.decompress(compressed, out);
+      in.rewind();
+      assertEquals(in, out);
+    }
+  }
+
+  @Test
+  public void testDirectCompressWithOverflow() throws Exception {
+    CompressionCodec codec = new QATCodec(DIRECT_BUFFER_SIZE);
+    ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    for (int i = 0; i < in.capacity(); i++) {
+      in.put((byte) (i % 13));
+    }
+    in.flip();
+    // too small for the compressed chunk on its own
+    ByteBuffer out = ByteBuffer.allocateDirect(16);
+    ByteBuffer overflow = ByteBuffer.allocateDirect(64 * 1024);
+    assertEquals(true, codec.compress(in, out, overflow));
+    assertEquals(0, in.position());
+
+    ByteBuffer compressed = ByteBuffer.allocateDirect(
+      out.position() + overflow.position());
+    out.flip();
+    overflow.flip();
+    compressed.put(out);
+    compressed.put(overflow);
+    compressed.flip();
+    ByteBuffer result = ByteBuffer.allocateDirect(64 * 1024);
+    codec.decompress(compressed, result);
+    assertEquals(in, result);
+  }
 }
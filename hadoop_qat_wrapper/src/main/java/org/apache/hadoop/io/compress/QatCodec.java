@@ -21,19 +21,41 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.apache.hadoop.io.compress.qat.ParallelQatCompressionOutputStream;
 import org.apache.hadoop.io.compress.qat.QatCompressor;
+import org.apache.hadoop.io.compress.qat.QatCompressor.QatDirectCompressor;
+import org.apache.hadoop.io.compress.qat.QatBlockDecompressorStream;
 import org.apache.hadoop.io.compress.qat.QatDecompressor;
 import org.apache.hadoop.io.compress.qat.QatDecompressor.QatDirectDecompressor;
+import org.apache.hadoop.io.compress.qat.QatDispatcher;
+import org.apache.hadoop.io.compress.qat.QatSyncBlockCompressorStream;
+import org.apache.hadoop.io.compress.qat.QatSyncBlockDecompressorStream;
 import org.apache.hadoop.util.QatNativeCodeLoader;
 
 /**
  * This class creates qat compressors/decompressors.
+ * <p>
+ * Files are not splittable; {@link SplittableQatCodec} writes
+ * <code>.sqat</code> files that are. Both layouts are read.
+ * <p>
+ * With <code>io.compression.codec.qat.software-fallback</code> set, the
+ * default, the codec also works without the native qat library, compressing in
+ * software into the same format, and {@link QatDispatcher} moves small
+ * requests and requests arriving while the device is saturated to software.
+ * <p>
+ * With <code>io.compression.codec.qat.parallel-blocks</code> above 1, files
+ * are written by
+ * {@link ParallelQatCompressionOutputStream}, which compresses that many
+ * blocks at once in the same format.
  */
-public class QatCodec implements Configurable, CompressionCodec, DirectDecompressionCodec {
+public class QatCodec implements Configurable, DirectDecompressionCodec {
   Configuration conf;
 
   /**
@@ -75,6 +97,37 @@ public static void checkNativeCodeLoaded() {
       }
   }
 
+  /**
+   * Throws unless the native qat libraries are loaded or software fallback is
+   * enabled.
+   */
+  void checkCodecAvailable() {
+    if (!softwareFallback()) {
+      checkNativeCodeLoaded();
+    }
+  }
+
+  int bufferSize() {
+    return conf.getInt(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT);
+  }
+
+  private int compressionLevel() {
+    return conf.getInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_LEVEL_KEY,
+        QatCompressor.getDefaultLevel());
+  }
+
+  private QatDispatcher.Settings dispatchSettings() {
+    return QatDispatcher.Settings.fromConf(conf);
+  }
+
+  private boolean softwareFallback() {
+    return conf.getBoolean(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_KEY,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_DEFAULT);
+  }
+
   public static boolean isNativeCodeLoaded() {
     return QatCompressor.isNativeCodeLoaded() &&
         QatDecompressor.isNativeCodeLoaded();
@@ -111,13 +164,21 @@ public CompressionOutputStream createOutputStream(OutputStream out)
   public CompressionOutputStream createOutputStream(OutputStream out,
                                                     Compressor compressor)
       throws IOException {
-    checkNativeCodeLoaded();
-    int bufferSize = conf.getInt(
-    		QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
-    		QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT);
-
+    checkCodecAvailable();
+    int bufferSize = bufferSize();
     int compressionOverhead = (bufferSize / 6) + 32;
-
+    int parallelBlocks = conf.getInt(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_DEFAULT);
+    if (parallelBlocks > 1) {
+      Compressor[] compressors = new Compressor[parallelBlocks];
+      compressors[0] = compressor;
+      for (int i = 1; i < parallelBlocks; i++) {
+        compressors[i] = createCompressor();
+      }
+      return new ParallelQatCompressionOutputStream(out, compressors,
+          bufferSize, compressionOverhead);
+    }
     return new BlockCompressorStream(out, compressor, bufferSize,
         compressionOverhead);
   }
@@ -129,7 +190,7 @@ public CompressionOutputStream createOutputStream(OutputStream out,
    */
   @Override
   public Class<? extends Compressor> getCompressorType() {
-    checkNativeCodeLoaded();
+    checkCodecAvailable();
     return QatCompressor.class;
   }
 
@@ -140,7 +201,7 @@ public Class<? extends Compressor> getCompressorType() {
    */
   @Override
   public Compressor createCompressor() {
-    checkNativeCodeLoaded();
+    checkCodecAvailable();
     int bufferSize = conf.getInt(
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT);
@@ -153,7 +214,8 @@ public Compressor createCompressor() {
     boolean numa = conf.getBoolean(
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_KEY,
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT);
-    return new QatCompressor(bufferSize, useNativeBB, forcePinned, numa);
+    return new QatCompressor(bufferSize, useNativeBB, forcePinned, numa,
+        compressionLevel(), softwareFallback(), dispatchSettings());
   }
 
   /**
@@ -183,10 +245,45 @@ public CompressionInputStream createInputStream(InputStream in)
   public CompressionInputStream createInputStream(InputStream in,
                                                   Decompressor decompressor)
       throws IOException {
-    checkNativeCodeLoaded();
-    return new BlockDecompressorStream(in, decompressor, conf.getInt(
-        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
-        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT));
+    checkCodecAvailable();
+    int bufferSize = bufferSize();
+    // Peek at the magic to tell splittable files from block compressed ones.
+    // Seekable streams are rewound rather than wrapped, so that
+    // QatBlockDecompressorStream can still read them into ByteBuffers.
+    byte[] magic = new byte[4];
+    int n;
+    if (in instanceof Seekable && in instanceof ByteBufferReadable) {
+      long pos = ((Seekable) in).getPos();
+      n = readMagic(in, magic);
+      ((Seekable) in).seek(pos);
+    } else {
+      PushbackInputStream pushback = new PushbackInputStream(in, 4);
+      n = readMagic(pushback, magic);
+      pushback.unread(magic, 0, n);
+      in = pushback;
+    }
+    if (n == magic.length && ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16
+        | (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF))
+        == QatSyncBlockCompressorStream.MAGIC) {
+      return new QatSyncBlockDecompressorStream(in, decompressor, bufferSize);
+    }
+    if (decompressor instanceof QatDecompressor) {
+      return new QatBlockDecompressorStream(in,
+          (QatDecompressor) decompressor, bufferSize);
+    }
+    return new BlockDecompressorStream(in, decompressor, bufferSize);
+  }
+
+  private static int readMagic(InputStream in, byte[] magic) throws IOException {
+    int n = 0;
+    while (n < magic.length) {
+      int r = in.read(magic, n, magic.length - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    return n;
   }
 
   /**
@@ -196,7 +293,7 @@ public CompressionInputStream createInputStream(InputStream in,
    */
   @Override
   public Class<? extends Decompressor> getDecompressorType() {
-    checkNativeCodeLoaded();
+    checkCodecAvailable();
     return QatDecompressor.class;
   }
 
@@ -207,7 +304,7 @@ public Class<? extends Decompressor> getDecompressorType() {
    */
   @Override
   public Decompressor createDecompressor() {
-    checkNativeCodeLoaded();
+    checkCodecAvailable();
     int bufferSize = conf.getInt(
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT);
@@ -220,7 +317,8 @@ public Decompressor createDecompressor() {
     boolean numa = conf.getBoolean(
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_KEY,
         QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT);
-    return new QatDecompressor(bufferSize, useNativeBB, forcePinned, numa);
+    return new QatDecompressor(bufferSize, useNativeBB, forcePinned, numa,
+        softwareFallback(), dispatchSettings());
   }
 
   /**
@@ -228,7 +326,23 @@ public Decompressor createDecompressor() {
    */
   @Override
   public DirectDecompressor createDirectDecompressor() {
-    return isNativeCodeLoaded() ? new QatDirectDecompressor() : null;
+    return isNativeCodeLoaded() || softwareFallback()
+        ? new QatDirectDecompressor(softwareFallback(), dispatchSettings())
+        : null;
+  }
+
+  /**
+   * Create a {@link QatDirectCompressor}, which compresses straight between
+   * caller-owned direct ByteBuffers without copying through its own buffers.
+   *
+   * @return a new direct compressor, or <code>null</code> when neither the
+   *         native qat library nor the software fallback is available.
+   */
+  public QatDirectCompressor createDirectCompressor() {
+    return isNativeCodeLoaded() || softwareFallback()
+        ? new QatDirectCompressor(compressionLevel(), softwareFallback(),
+            dispatchSettings())
+        : null;
   }
 
   /**
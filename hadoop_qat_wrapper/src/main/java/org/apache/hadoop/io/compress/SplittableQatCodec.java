@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.apache.hadoop.io.compress.qat.QatSyncBlockCompressorStream;
+import org.apache.hadoop.io.compress.qat.QatSyncBlockDecompressorStream;
+
+/**
+ * A {@link QatCodec} writing splittable <code>.sqat</code> files, with a sync
+ * marker before every block, so
+ * {@link #createInputStream(InputStream, Decompressor, long, long, READ_MODE)}
+ * can start a split at a block boundary. Files without sync markers are read
+ * whole by the first split.
+ * <p>
+ * Blocks are compressed one at a time;
+ * <code>io.compression.codec.qat.parallel-blocks</code> is ignored.
+ */
+public class SplittableQatCodec extends QatCodec
+    implements SplittableCompressionCodec {
+  private static final Log LOG =
+      LogFactory.getLog(SplittableQatCodec.class.getName());
+
+  /**
+   * Create a {@link CompressionOutputStream} writing a splittable file to the
+   * given {@link OutputStream} with the given {@link Compressor}.
+   *
+   * @param out        the location for the final output stream
+   * @param compressor compressor to use
+   * @return a stream the user can write uncompressed data to have it compressed
+   * @throws IOException
+   */
+  @Override
+  public CompressionOutputStream createOutputStream(OutputStream out,
+                                                    Compressor compressor)
+      throws IOException {
+    checkCodecAvailable();
+    if (conf.getInt(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_DEFAULT) > 1) {
+      LOG.warn(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY
+          + " is ignored by " + getClass().getSimpleName()
+          + ", blocks are compressed one at a time");
+    }
+    int bufferSize = bufferSize();
+    return new QatSyncBlockCompressorStream(out, compressor, bufferSize,
+        (bufferSize / 6) + 32);
+  }
+
+  /**
+   * Create a {@link SplitCompressionInputStream} reading the blocks of
+   * <code>seekableIn</code> starting in the split. Both read modes read the
+   * blocks the same way.
+   *
+   * @param seekableIn   the file to read compressed bytes from
+   * @param decompressor decompressor to use
+   * @param start        start of the split
+   * @param end          end of the split
+   * @param readMode     the read mode
+   * @return a stream to read uncompressed bytes from
+   * @throws IOException
+   */
+  @Override
+  public SplitCompressionInputStream createInputStream(InputStream seekableIn,
+      Decompressor decompressor, long start, long end, READ_MODE readMode)
+      throws IOException {
+    checkCodecAvailable();
+    if (!(seekableIn instanceof Seekable)) {
+      throw new IOException("seekableIn must be an instance of " +
+          Seekable.class.getName());
+    }
+    return new QatSyncBlockDecompressorStream(seekableIn, decompressor,
+        bufferSize(), start, end);
+  }
+
+  /**
+   * Get the default filename extension for this kind of compression.
+   *
+   * @return <code>.sqat</code>.
+   */
+  @Override
+  public String getDefaultExtension() {
+    return ".sqat";
+  }
+}
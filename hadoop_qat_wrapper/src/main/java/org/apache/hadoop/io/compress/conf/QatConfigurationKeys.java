@@ -31,6 +31,13 @@ public class QatConfigurationKeys extends CommonConfigurationKeys {
   /** Default value for IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY */
   public static final int IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT =
       256 * 1024;
+
+  /**
+   * Compression level, in range 1-9. When unset, the QAT_COMPRESS_LEVEL
+   * system property is used, or 1 without it.
+   */
+  public static final String IO_COMPRESSION_CODEC_QAT_LEVEL_KEY =
+      "io.compression.codec.qat.level";
   
   /**
    * Whether to use native allocate BB for creating ByteBuffer.
@@ -57,4 +64,41 @@ public class QatConfigurationKeys extends CommonConfigurationKeys {
       "io.compression.codec.qat.native-allocate-bb.numa";
 
   public static final boolean IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT = false;
+
+  /**
+   * Number of blocks a QatCodec output stream compresses at once, each
+   * on its own thread and QAT session. 1 compresses one block at a time.
+   */
+  public static final String IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY =
+      "io.compression.codec.qat.parallel-blocks";
+
+  public static final int IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_DEFAULT = 1;
+
+  /**
+   * Whether to compress and decompress in software, in the same format, when
+   * the native qat library is not loaded or the hardware reports errors.
+   */
+  public static final String IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_KEY =
+      "io.compression.codec.qat.software-fallback";
+
+  public static final boolean IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_DEFAULT = true;
+
+  /**
+   * Requests smaller than this many bytes are served in software, where they
+   * cost less than a round trip to the device. Needs software fallback.
+   */
+  public static final String IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_KEY =
+      "io.compression.codec.qat.dispatch.min-hardware-size";
+
+  public static final int IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_DEFAULT =
+      4 * 1024;
+
+  /**
+   * Requests arriving while this many hardware requests are in flight are
+   * served in software, 0 for no limit. Needs software fallback.
+   */
+  public static final String IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_KEY =
+      "io.compression.codec.qat.dispatch.max-in-flight";
+
+  public static final int IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_DEFAULT = 64;
 }
@@ -0,0 +1,297 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+
+/**
+ * A {@link CompressionOutputStream} compressing several blocks at once, so a
+ * single large output keeps more than one QAT request in flight.
+ * <p>
+ * Input is cut into blocks of <code>bufferSize - compressionOverhead</code>
+ * bytes. The <code>compressors.length</code> block slots compress on a pool
+ * shared by all streams, whose threads each keep their QAT session for the
+ * life of the process, and blocks are written in input order in the layout of
+ * {@link org.apache.hadoop.io.compress.BlockCompressorStream}, which
+ * {@link org.apache.hadoop.io.compress.BlockDecompressorStream} reads.
+ */
+public class ParallelQatCompressionOutputStream extends CompressionOutputStream {
+  private static volatile ThreadPoolExecutor compressExecutor;
+
+  private final Compressor[] compressors;
+  private final Block[] blocks;
+  private final Future<?>[] futures;
+  private final ExecutorService executor;
+  // slot being filled, oldest slot in flight and the number in flight
+  private int next;
+  private int oldest;
+  private int inFlight;
+
+  /**
+   * Create a {@link ParallelQatCompressionOutputStream}.
+   *
+   * @param out                 stream
+   * @param compressors         one compressor per block in flight, used by
+   *                            one thread each
+   * @param bufferSize          size of the compressed chunk buffer
+   * @param compressionOverhead maximum 'blowup' for compression
+   */
+  public ParallelQatCompressionOutputStream(OutputStream out,
+      Compressor[] compressors, int bufferSize, int compressionOverhead) {
+    super(out);
+    if (bufferSize - compressionOverhead <= 0) {
+      throw new IllegalArgumentException("Illegal bufferSize "
+          + bufferSize + " for compression overhead " + compressionOverhead);
+    }
+    if (compressors.length == 0) {
+      throw new IllegalArgumentException("No compressors");
+    }
+    this.compressors = compressors;
+    this.blocks = new Block[compressors.length];
+    this.futures = new Future<?>[compressors.length];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = new Block(compressors[i], bufferSize - compressionOverhead,
+          bufferSize);
+    }
+    this.executor = getCompressExecutor(compressors.length);
+  }
+
+  /**
+   * Returns the shared compression pool, grown to at least
+   * <code>threads</code> threads so no stream gets less parallelism than it
+   * asked for. Its threads never retire, so the thread local QAT session of
+   * each stays set up.
+   */
+  private static ExecutorService getCompressExecutor(int threads) {
+    ThreadPoolExecutor executor = compressExecutor;
+    if (executor == null || executor.getCorePoolSize() < threads) {
+      synchronized (ParallelQatCompressionOutputStream.class) {
+        executor = compressExecutor;
+        if (executor == null) {
+          executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads,
+              new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r,
+                      "qat-parallel-compress-" + count.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+          compressExecutor = executor;
+        } else if (executor.getCorePoolSize() < threads) {
+          // raise the maximum first, the core size may not exceed it
+          executor.setMaximumPoolSize(threads);
+          executor.setCorePoolSize(threads);
+        }
+      }
+    }
+    return executor;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    byte[] oneByte = new byte[1];
+    oneByte[0] = (byte) b;
+    write(oneByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      Block block = blocks[next];
+      int n = Math.min(len, block.raw.length - block.rawLen);
+      System.arraycopy(b, off, block.raw, block.rawLen, n);
+      block.rawLen += n;
+      off += n;
+      len -= n;
+      if (block.rawLen == block.raw.length) {
+        submit();
+      }
+    }
+  }
+
+  /**
+   * Starts compressing the slot being filled, first writing out the oldest
+   * block when every slot is in flight.
+   */
+  private void submit() throws IOException {
+    futures[next] = executor.submit(blocks[next]);
+    inFlight++;
+    next = (next + 1) % blocks.length;
+    if (inFlight == blocks.length) {
+      writeOldest();
+    }
+  }
+
+  private void writeOldest() throws IOException {
+    Block block = blocks[oldest];
+    try {
+      futures[oldest].get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted compressing a block");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Failed to compress a block", cause);
+    }
+    futures[oldest] = null;
+    rawWriteInt(block.rawLen);
+    out.write(block.compressed, 0, block.compressedLen);
+    block.rawLen = 0;
+    block.compressedLen = 0;
+    oldest = (oldest + 1) % blocks.length;
+    inFlight--;
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (blocks[next].rawLen > 0) {
+      futures[next] = executor.submit(blocks[next]);
+      inFlight++;
+      next = (next + 1) % blocks.length;
+    }
+    while (inFlight > 0) {
+      writeOldest();
+    }
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    for (Block block : blocks) {
+      block.compressor.reset();
+      block.rawLen = 0;
+      block.compressedLen = 0;
+    }
+    next = oldest = inFlight = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      awaitPending();
+      // the first compressor belongs to the caller, e.g. CodecPool
+      for (int i = 1; i < compressors.length; i++) {
+        compressors[i].end();
+      }
+    }
+  }
+
+  /**
+   * Waits for blocks still compressing after a failed write, so their
+   * compressors are idle before they are ended or pooled.
+   */
+  private void awaitPending() {
+    boolean interrupted = false;
+    for (int i = 0; i < futures.length; i++) {
+      while (futures[i] != null) {
+        try {
+          futures[i].get();
+          futures[i] = null;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          // already reported, or the stream is failing anyway
+          futures[i] = null;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void rawWriteInt(int v) throws IOException {
+    out.write((v >>> 24) & 0xFF);
+    out.write((v >>> 16) & 0xFF);
+    out.write((v >>>  8) & 0xFF);
+    out.write((v >>>  0) & 0xFF);
+  }
+
+  /**
+   * A block slot: its uncompressed bytes and, once compressed, the lengths
+   * and bytes of its chunks.
+   */
+  private static final class Block implements Callable<Void> {
+    private final Compressor compressor;
+    private final byte[] raw;
+    private int rawLen;
+    private final byte[] chunk;
+    private byte[] compressed;
+    private int compressedLen;
+
+    Block(Compressor compressor, int rawSize, int bufferSize) {
+      this.compressor = compressor;
+      this.raw = new byte[rawSize];
+      this.chunk = new byte[bufferSize];
+      this.compressed = new byte[bufferSize + 4];
+    }
+
+    @Override
+    public Void call() throws IOException {
+      compressor.setInput(raw, 0, rawLen);
+      compressor.finish();
+      while (!compressor.finished()) {
+        int len = compressor.compress(chunk, 0, chunk.length);
+        if (len > 0) {
+          if (compressedLen + 4 + len > compressed.length) {
+            byte[] grown = new byte[Math.max(compressed.length * 2,
+                compressedLen + 4 + len)];
+            System.arraycopy(compressed, 0, grown, 0, compressedLen);
+            compressed = grown;
+          }
+          compressed[compressedLen++] = (byte) (len >>> 24);
+          compressed[compressedLen++] = (byte) (len >>> 16);
+          compressed[compressedLen++] = (byte) (len >>> 8);
+          compressed[compressedLen++] = (byte) len;
+          System.arraycopy(chunk, 0, compressed, compressedLen, len);
+          compressedLen += len;
+        }
+      }
+      compressor.reset();
+      return null;
+    }
+  }
+}
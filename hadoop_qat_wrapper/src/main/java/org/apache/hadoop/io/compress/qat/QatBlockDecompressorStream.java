@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+
+/**
+ * A {@link CompressionInputStream} reading the layout of
+ * {@link org.apache.hadoop.io.compress.BlockCompressorStream} with fewer
+ * copies than {@link org.apache.hadoop.io.compress.BlockDecompressorStream}.
+ * <p>
+ * Compressed chunks are read straight into the decompressor's direct buffer
+ * when the underlying stream is {@link ByteBufferReadable}, and are otherwise
+ * staged through one heap array. Reads with room for the rest of the block
+ * decompress straight into the caller's array or buffer; smaller reads are
+ * served from the decompressor's uncompressed buffer with a single copy.
+ */
+public class QatBlockDecompressorStream extends CompressionInputStream
+    implements ByteBufferReadable {
+  private final QatDecompressor decompressor;
+  private final byte[] intBuffer = new byte[4];
+  private final byte[] oneByte = new byte[1];
+  private ByteBuffer compressed;
+  // staging array for streams that can't read into a ByteBuffer, or null
+  private byte[] compressedArray;
+  private boolean byteBufferReads;
+  // decompressed bytes between position and limit are not read yet
+  private ByteBuffer uncompressed;
+  private final int bufferSize;
+  // uncompressed bytes of the current block not decompressed yet
+  private int blockRemaining;
+  private boolean eof;
+
+  /**
+   * Create a {@link QatBlockDecompressorStream}.
+   *
+   * @param in           stream
+   * @param decompressor decompressor to use
+   * @param bufferSize   size of the compressed chunk and uncompressed buffers
+   */
+  public QatBlockDecompressorStream(InputStream in,
+      QatDecompressor decompressor, int bufferSize) throws IOException {
+    super(in);
+    this.decompressor = decompressor;
+    this.bufferSize = bufferSize;
+    this.byteBufferReads = in instanceof ByteBufferReadable;
+    this.compressed = decompressor.compressedBuffer();
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(oneByte, 0, oneByte.length) == -1) ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    if (!hasUncompressed()) {
+      if (!nextChunk()) {
+        return -1;
+      }
+      if (len >= blockRemaining) {
+        return decompressInto(b, off, len);
+      }
+      decompressBuffered();
+    }
+    int n = Math.min(len, uncompressed.remaining());
+    uncompressed.get(b, off, n);
+    return n;
+  }
+
+  /**
+   * Reads up to <code>dst.remaining()</code> uncompressed bytes into
+   * <code>dst</code>, decompressing straight into it when it is direct or
+   * backed by an array and has room for the rest of the current block.
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    if (!hasUncompressed()) {
+      if (!nextChunk()) {
+        return -1;
+      }
+      if (dst.remaining() >= blockRemaining) {
+        if (dst.isDirect()) {
+          return decompressInto(dst);
+        } else if (dst.hasArray()) {
+          int n = decompressInto(dst.array(), dst.arrayOffset() + dst.position(),
+              dst.remaining());
+          dst.position(dst.position() + n);
+          return n;
+        }
+      }
+      decompressBuffered();
+    }
+    int n = Math.min(dst.remaining(), uncompressed.remaining());
+    ByteBuffer src = uncompressed.duplicate();
+    src.limit(src.position() + n);
+    dst.put(src);
+    uncompressed.position(uncompressed.position() + n);
+    return n;
+  }
+
+  private boolean hasUncompressed() {
+    return uncompressed != null && uncompressed.hasRemaining();
+  }
+
+  private void decompressBuffered() throws IOException {
+    if (uncompressed == null) {
+      uncompressed = decompressor.uncompressedBuffer();
+      if (uncompressed.capacity() < bufferSize) {
+        uncompressed = ByteBuffer.allocateDirect(bufferSize);
+      }
+    }
+    uncompressed.clear();
+    decompressInto(uncompressed);
+    uncompressed.flip();
+  }
+
+  /**
+   * Decompresses the chunk in <code>compressed</code> into <code>dst</code>,
+   * advancing its position.
+   */
+  private int decompressInto(ByteBuffer dst) throws IOException {
+    return checkChunk(decompressor.decompressDirect(compressed, dst));
+  }
+
+  /**
+   * Decompresses the chunk in <code>compressed</code> into
+   * <code>b[off, off + len)</code>.
+   */
+  private int decompressInto(byte[] b, int off, int len) throws IOException {
+    return checkChunk(decompressor.decompressArray(compressed, b, off, len));
+  }
+
+  private int checkChunk(int n) throws IOException {
+    if (n <= 0 || n > blockRemaining) {
+      throw new IOException("Corrupt QAT stream, chunk of a block with "
+          + blockRemaining + " bytes left decompressed to " + n + " bytes");
+    }
+    blockRemaining -= n;
+    return n;
+  }
+
+  /**
+   * Reads the next compressed chunk into <code>compressed</code>, starting a
+   * new block when the current one is done. Returns false at the end of the
+   * stream.
+   */
+  private boolean nextChunk() throws IOException {
+    while (blockRemaining == 0) {
+      if (eof) {
+        return false;
+      }
+      int n = readFully(intBuffer, 0, intBuffer.length);
+      if (n == 0) {
+        eof = true;
+        return false;
+      }
+      if (n < intBuffer.length) {
+        throw new EOFException("Unexpected end of QAT stream");
+      }
+      blockRemaining = QatSyncBlockDecompressorStream.readInt(intBuffer);
+      if (blockRemaining < 0) {
+        throw new IOException("Corrupt QAT stream, block length " + blockRemaining);
+      }
+    }
+    if (readFully(intBuffer, 0, intBuffer.length) < intBuffer.length) {
+      throw new EOFException("Unexpected end of block in QAT stream");
+    }
+    int len = QatSyncBlockDecompressorStream.readInt(intBuffer);
+    if (len <= 0) {
+      throw new IOException("Corrupt QAT stream, chunk length " + len);
+    }
+    if (len > compressed.capacity()) {
+      compressed = ByteBuffer.allocateDirect(len);
+    }
+    compressed.clear();
+    compressed.limit(len);
+    readChunk();
+    compressed.flip();
+    return true;
+  }
+
+  private void readChunk() throws IOException {
+    if (byteBufferReads) {
+      try {
+        while (compressed.hasRemaining()) {
+          if (((ByteBufferReadable) in).read(compressed) < 0) {
+            throw new EOFException("Unexpected end of block in QAT stream");
+          }
+        }
+        return;
+      } catch (UnsupportedOperationException e) {
+        // e.g. an FSDataInputStream over a stream without ByteBuffer reads
+        byteBufferReads = false;
+      }
+    }
+    int remaining = compressed.remaining();
+    if (compressedArray == null || compressedArray.length < remaining) {
+      compressedArray = new byte[remaining];
+    }
+    if (readFully(compressedArray, 0, remaining) < remaining) {
+      throw new EOFException("Unexpected end of block in QAT stream");
+    }
+    compressed.put(compressedArray, 0, remaining);
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    decompressor.reset();
+    blockRemaining = 0;
+    eof = false;
+    if (uncompressed != null) {
+      uncompressed.clear();
+      uncompressed.limit(0);
+    }
+  }
+
+  private int readFully(byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len) {
+      int r = in.read(b, off + n, len - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    return n;
+  }
+}
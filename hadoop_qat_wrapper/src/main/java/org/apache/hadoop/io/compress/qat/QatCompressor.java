@@ -31,17 +31,30 @@
 
 /**
  * A {@link Compressor} based on the qat compression algorithm.
+ * <p>
+ * With software fallback enabled, the compressor uses
+ * {@link QatSoftwareEngine} when the native code is not loaded or the QAT
+ * device fails, writing the same gzip format. A request the device rejects
+ * for its data, e.g. output that does not fit, fails with an IOException
+ * instead.
  */
 public class QatCompressor implements Compressor {
   private static final Log LOG =
       LogFactory.getLog(QatCompressor.class.getName());
   private static final int DEFAULT_DIRECT_BUFFER_SIZE = 64 * 1024;
 
-  // HACK - Use this as a global lock in the JNI layer
-  @SuppressWarnings({"rawtypes"})
-  private static Class clazz = QatCompressor.class;
-
   private int directBufferSize;
+  private int level;
+  private final boolean softwareFallback;
+  private QatDispatcher.Settings dispatchSettings;
+  private final boolean useNativeAllocateBB;
+  private final boolean forcePinned;
+  private final boolean numa;
+  // Buffers as allocated; the working buffers are views of their first
+  // directBufferSize bytes, so reinit can shrink without reallocating
+  private ByteBuffer uncompressedDirectBufStorage;
+  private ByteBuffer compressedDirectBufStorage;
+  private QatSoftwareEngine softwareEngine;
   private Buffer compressedDirectBuf = null;
   private int uncompressedDirectBufLen;
   private Buffer uncompressedDirectBuf = null;
@@ -54,29 +67,34 @@ public class QatCompressor implements Compressor {
 
   private static boolean nativeQatLoaded = false;
 
+  /**
+   * Level used by compressors created without an explicit level, taken from
+   * the QAT_COMPRESS_LEVEL system property.
+   */
+  private static int defaultLevel = 1;
+
   static {
     if (QatNativeCodeLoader.isNativeCodeLoaded() &&
     		QatNativeCodeLoader.buildSupportsQat()) {
       try {
         String value = System.getProperty("QAT_COMPRESS_LEVEL");
-        int level = 1;
         if (value != null) {
           try {
-            level = Integer.parseInt(value);
-            if (level < 1 || level > 9) {
-              level = 1;
+            defaultLevel = Integer.parseInt(value);
+            if (defaultLevel < 1 || defaultLevel > 9) {
+              defaultLevel = 1;
               LOG.warn("Invalid value for compression level:" + value
                   + ", value should be in range 1-9."
                   + " Proceeding with default value as 1.");
             }
           } catch (NumberFormatException e) {
-            level = 1;
+            defaultLevel = 1;
             LOG.warn("Could not parse the value:" + value
                 + ", compression level should be in range 1-9."
                 + " Proceeding with default value as 1.");
           }
         }
-        initIDs(level);
+        initIDs();
         nativeQatLoaded = true;
       } catch (Throwable t) {
         LOG.error("failed to load QatCompressor AMAC QatCompressor", t);
@@ -88,6 +106,13 @@ public static boolean isNativeCodeLoaded() {
     return nativeQatLoaded;
   }
 
+  /**
+   * Returns the level used by compressors created without an explicit level.
+   */
+  public static int getDefaultLevel() {
+    return defaultLevel;
+  }
+
   /**
    * Creates a new compressor.
    *
@@ -97,32 +122,115 @@ public static boolean isNativeCodeLoaded() {
    */
   public QatCompressor(int directBufferSize, boolean useNativeAllocateBB,
       boolean forcePinned, boolean numa) {
-    this.directBufferSize = directBufferSize;
+    this(directBufferSize, useNativeAllocateBB, forcePinned, numa,
+        defaultLevel);
+  }
+
+  /**
+   * Creates a new compressor with its own compression level. Compressors with
+   * different levels can be used concurrently in the same process.
+   *
+   * @param directBufferSize size of the direct buffer to be used.
+   * @param numa 
+   * @param forcePinned 
+   * @param level compression level, in range 1-9
+   */
+  public QatCompressor(int directBufferSize, boolean useNativeAllocateBB,
+      boolean forcePinned, boolean numa, int level) {
+    this(directBufferSize, useNativeAllocateBB, forcePinned, numa, level,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_DEFAULT);
+  }
+
+  /**
+   * Creates a new compressor with its own compression level, falling back to
+   * software compression when QAT is unavailable if
+   * <code>softwareFallback</code> is set.
+   *
+   * @param directBufferSize size of the direct buffer to be used.
+   * @param numa 
+   * @param forcePinned 
+   * @param level compression level, in range 1-9
+   * @param softwareFallback whether to compress in software without QAT
+   */
+  public QatCompressor(int directBufferSize, boolean useNativeAllocateBB,
+      boolean forcePinned, boolean numa, int level, boolean softwareFallback) {
+    this(directBufferSize, useNativeAllocateBB, forcePinned, numa, level,
+        softwareFallback, QatDispatcher.Settings.DEFAULT);
+  }
+
+  /**
+   * Creates a new compressor like
+   * {@link #QatCompressor(int, boolean, boolean, boolean, int, boolean)},
+   * routing requests between QAT and software under
+   * <code>dispatchSettings</code>.
+   *
+   * @param directBufferSize size of the direct buffer to be used.
+   * @param numa 
+   * @param forcePinned 
+   * @param level compression level, in range 1-9
+   * @param softwareFallback whether to compress in software without QAT
+   * @param dispatchSettings the {@link QatDispatcher} settings of this compressor
+   */
+  public QatCompressor(int directBufferSize, boolean useNativeAllocateBB,
+      boolean forcePinned, boolean numa, int level, boolean softwareFallback,
+      QatDispatcher.Settings dispatchSettings) {
+    checkLevel(level);
+    this.level = level;
+    this.softwareFallback = softwareFallback;
+    this.dispatchSettings = dispatchSettings;
+    this.useNativeAllocateBB = useNativeAllocateBB;
+    this.forcePinned = forcePinned;
+    this.numa = numa;
     if (useNativeAllocateBB) {
       LOG.info("Creating ByteBuffer's using nativeAllocateBB.");
+    }
+    setDirectBufferSize(directBufferSize);
+    compressedDirectBuf.position(directBufferSize);
+  }
+
+  private static void checkLevel(int level) {
+    if (level < 1 || level > 9) {
+      throw new IllegalArgumentException("Invalid value for compression level:"
+          + level + ", value should be in range 1-9.");
+    }
+  }
+
+  /**
+   * Points the working buffers at the first <code>size</code> bytes of the
+   * allocated ones, allocating larger buffers only when they do not fit.
+   */
+  private void setDirectBufferSize(int size) {
+    if (uncompressedDirectBufStorage == null
+        || uncompressedDirectBufStorage.capacity() < size) {
+      uncompressedDirectBufStorage = allocateDirectBuffer(size, "uncompressed");
+      compressedDirectBufStorage = allocateDirectBuffer(size, "compressed");
+    }
+    directBufferSize = size;
+    uncompressedDirectBuf = view(uncompressedDirectBufStorage, size);
+    compressedDirectBuf = view(compressedDirectBufStorage, size);
+  }
+
+  private ByteBuffer allocateDirectBuffer(int size, String kind) {
+    if (useNativeAllocateBB) {
       try {
-        uncompressedDirectBuf = (ByteBuffer) nativeAllocateBB(directBufferSize,
-            numa, forcePinned);
-      } catch (Throwable t) {
-        LOG.error("Failed to create ByteBuffer using nativeAllocateBB"
-            + " for uncompressed direct ByteBuffer. Creating the uncompressed"
-            + " ByteBuffer using ByteBuffer.allocateDirect().", t);
-        uncompressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
-      }
-      try {
-        compressedDirectBuf = (ByteBuffer) nativeAllocateBB(directBufferSize,
-            numa, forcePinned);
+        return (ByteBuffer) nativeAllocateBB(size, numa, forcePinned);
       } catch (Throwable t) {
         LOG.error("Failed to create ByteBuffer using nativeAllocateBB"
-            + " for compressed direct ByteBuffer. Creating the compressed"
+            + " for " + kind + " direct ByteBuffer. Creating the " + kind
             + " ByteBuffer using ByteBuffer.allocateDirect().", t);
-        compressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
       }
-    } else {
-      uncompressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
-      compressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
     }
-    compressedDirectBuf.position(directBufferSize);
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  private static ByteBuffer view(ByteBuffer storage, int size) {
+    if (storage.capacity() == size) {
+      return storage;
+    }
+    ByteBuffer buf = storage.duplicate();
+    buf.clear();
+    buf.limit(size);
+    return buf.slice();
   }
   
   /**
@@ -144,6 +252,13 @@ public QatCompressor() {
     this(DEFAULT_DIRECT_BUFFER_SIZE);
   }
 
+  /**
+   * Returns the compression level used by this compressor.
+   */
+  public int getLevel() {
+    return level;
+  }
+
   /**
    * Sets input data for compression.
    * This should be called whenever #needsInput() returns
@@ -283,7 +398,7 @@ public synchronized int compress(byte[] b, int off, int len)
     }
 
     // Compress data
-    n = compressBytesDirect();
+    n = compressBuffers();
     compressedDirectBuf.limit(n);
     uncompressedDirectBuf.clear(); // qat consumes all buffer input
 
@@ -317,12 +432,31 @@ public synchronized void reset() {
 
   /**
    * Prepare the compressor to be used in a new stream with settings defined in
-   * the given Configuration
+   * the given Configuration. The level and buffer size are taken from
+   * <code>io.compression.codec.qat.level</code> and
+   * <code>io.compression.codec.qat.buffersize</code>, the dispatch settings
+   * from {@link QatDispatcher.Settings#fromConf}; the direct buffers are only
+   * reallocated when the new size does not fit in them.
    *
    * @param conf Configuration from which new setting are fetched
    */
   @Override
   public synchronized void reinit(Configuration conf) {
+    if (conf != null) {
+      int newLevel = conf.getInt(
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_LEVEL_KEY, defaultLevel);
+      checkLevel(newLevel);
+      level = newLevel;
+      int bufferSize = conf.getInt(
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_DEFAULT);
+      // a direct compressor only uses the caller's buffers
+      if (bufferSize != directBufferSize
+          && !(this instanceof QatDirectCompressor)) {
+        setDirectBufferSize(bufferSize);
+      }
+      dispatchSettings = QatDispatcher.Settings.fromConf(conf);
+    }
     reset();
   }
 
@@ -347,14 +481,155 @@ public synchronized long getBytesWritten() {
    */
   @Override
   public synchronized void end() {
+    if (softwareEngine != null) {
+      softwareEngine.end();
+      softwareEngine = null;
+    }
   }
 
-  private native static void initIDs(int level);
+  /**
+   * Compresses the uncompressed direct buffer into the compressed one on the
+   * route {@link QatDispatcher} picks, or always on QAT without fallback.
+   */
+  private int compressBuffers() throws IOException {
+    QatDispatcher dispatcher = QatDispatcher.compression();
+    int len = uncompressedDirectBufLen;
+    if (!softwareFallback || dispatcher.route(len, nativeQatLoaded,
+        dispatchSettings) == QatDispatcher.Route.HARDWARE) {
+      long start = dispatcher.start(QatDispatcher.Route.HARDWARE);
+      try {
+        int n = compressBytesDirect(uncompressedDirectBuf, len,
+            compressedDirectBuf, directBufferSize, level);
+        uncompressedDirectBufLen = 0;
+        dispatcher.finish(QatDispatcher.Route.HARDWARE, start, len, null);
+        return n;
+      } catch (InternalError e) {
+        // the device or session failed, software can still serve the data
+        dispatcher.finish(QatDispatcher.Route.HARDWARE, start, len, e);
+        if (!softwareFallback) {
+          throw e;
+        }
+      } catch (IOException e) {
+        // the data was rejected, software would reject it too
+        dispatcher.abandon(QatDispatcher.Route.HARDWARE);
+        throw e;
+      }
+    }
+    if (softwareEngine == null) {
+      softwareEngine = new QatSoftwareEngine(level);
+    }
+    long start = dispatcher.start(QatDispatcher.Route.SOFTWARE);
+    int n = softwareEngine.compress((ByteBuffer) uncompressedDirectBuf, len,
+        (ByteBuffer) compressedDirectBuf, directBufferSize);
+    dispatcher.finish(QatDispatcher.Route.SOFTWARE, start, len, null);
+    uncompressedDirectBufLen = 0;
+    return n;
+  }
+
+  private native static void initIDs();
 
-  private native int compressBytesDirect();
+  private native static int compressBytesDirect(Buffer src, int srcLen,
+      Buffer dst, int dstLen, int level) throws IOException;
 
   public native static String getLibraryName();
 
   public native Object nativeAllocateBB(long capacity, boolean numa,
       boolean forcePinned);
+
+  int compressDirect(ByteBuffer src, ByteBuffer dst) throws IOException {
+    assert (this instanceof QatDirectCompressor);
+
+    ByteBuffer presliced = dst;
+    if (dst.position() > 0) {
+      presliced = dst;
+      dst = dst.slice();
+    }
+
+    Buffer originalCompressed = compressedDirectBuf;
+    Buffer originalUncompressed = uncompressedDirectBuf;
+    int originalBufferSize = directBufferSize;
+    uncompressedDirectBuf = src.slice();
+    uncompressedDirectBufLen = src.remaining();
+    compressedDirectBuf = dst;
+    directBufferSize = dst.remaining();
+    int n = 0;
+    try {
+      n = compressBuffers();
+      presliced.position(presliced.position() + n);
+      // QAT always consumes the whole buffer or throws an exception
+      src.position(src.limit());
+      finished = true;
+    } finally {
+      compressedDirectBuf = originalCompressed;
+      uncompressedDirectBuf = originalUncompressed;
+      uncompressedDirectBufLen = 0;
+      directBufferSize = originalBufferSize;
+    }
+    return n;
+  }
+
+  /**
+   * A {@link QatCompressor} compressing straight between caller-owned direct
+   * ByteBuffers. The whole of <code>src</code> is compressed in one call, so
+   * <code>dst</code> must have room for the complete compressed output. It
+   * has no direct buffers of its own.
+   */
+  public static class QatDirectCompressor extends QatCompressor {
+
+    public QatDirectCompressor() {
+      this(getDefaultLevel());
+    }
+
+    public QatDirectCompressor(int level) {
+      super(0,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_USE_NATIVE_ALLOCATE_BB_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_FORCE_PINNED_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT,
+          level);
+    }
+
+    public QatDirectCompressor(int level, boolean softwareFallback) {
+      super(0,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_USE_NATIVE_ALLOCATE_BB_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_FORCE_PINNED_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT,
+          level, softwareFallback);
+    }
+
+    public QatDirectCompressor(int level, boolean softwareFallback,
+        QatDispatcher.Settings dispatchSettings) {
+      super(0,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_USE_NATIVE_ALLOCATE_BB_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_FORCE_PINNED_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT,
+          level, softwareFallback, dispatchSettings);
+    }
+
+    /**
+     * Compresses the remaining bytes of <code>src</code> into
+     * <code>dst</code>, advancing the positions of both buffers.
+     *
+     * @param src direct buffer holding the uncompressed data
+     * @param dst direct buffer receiving the compressed data
+     * @return the number of compressed bytes written to <code>dst</code>
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+      assert dst.isDirect() : "dst.isDirect()";
+      assert src.isDirect() : "src.isDirect()";
+      assert dst.remaining() > 0 : "dst.remaining() > 0";
+      return this.compressDirect(src, dst);
+    }
+
+    @Override
+    public void setInput(byte[] b, int off, int len) {
+      throw new UnsupportedOperationException(
+          "byte[] arrays are not supported for QatDirectCompressor");
+    }
+
+    @Override
+    public int compress(byte[] b, int off, int len) {
+      throw new UnsupportedOperationException(
+          "byte[] arrays are not supported for QatDirectCompressor");
+    }
+  }
 }
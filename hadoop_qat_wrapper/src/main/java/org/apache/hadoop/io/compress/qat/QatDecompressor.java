@@ -31,16 +31,17 @@
 
 /**
  * A {@link Decompressor} based on the qat compression algorithm. It's not thread-safe.
+ * <p>
+ * With software fallback enabled, the decompressor uses
+ * {@link QatSoftwareEngine} when the native code is not loaded or the QAT
+ * device fails. Corrupt input fails with the IOException of the route that
+ * read it.
  */
 public class QatDecompressor implements Decompressor {
   private static final Log LOG =
       LogFactory.getLog(QatCompressor.class.getName());
   private static final int DEFAULT_DIRECT_BUFFER_SIZE = 64 * 1024;
 
-  // HACK - Use this as a global lock in the JNI layer
-  @SuppressWarnings({"rawtypes"})
-  private static Class clazz = QatDecompressor.class;
-
   private int directBufferSize;
   private Buffer compressedDirectBuf = null;
   private int compressedDirectBufLen;
@@ -48,6 +49,9 @@ public class QatDecompressor implements Decompressor {
   private byte[] userBuf = null;
   private int userBufOff = 0, userBufLen = 0;
   private boolean finished;
+  private final boolean softwareFallback;
+  private final QatDispatcher.Settings dispatchSettings;
+  private QatSoftwareEngine softwareEngine;
 
   private static boolean nativeQatLoaded = false;
 
@@ -78,6 +82,49 @@ public static boolean isNativeCodeLoaded() {
    */
   public QatDecompressor(int directBufferSize, boolean useNativeAllocateBB,
       boolean forcePinned, boolean numa) {
+    this(directBufferSize, useNativeAllocateBB, forcePinned, numa,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_DEFAULT);
+  }
+
+  /**
+   * Creates a new decompressor, falling back to software decompression when
+   * QAT is unavailable if <code>softwareFallback</code> is set.
+   *
+   * @param directBufferSize
+   *          size of the direct buffer to be used.
+   * @param useNativeAllocateBB
+   * @param forcePinned
+   * @param numa
+   * @param softwareFallback
+   *          whether to decompress in software without QAT
+   */
+  public QatDecompressor(int directBufferSize, boolean useNativeAllocateBB,
+      boolean forcePinned, boolean numa, boolean softwareFallback) {
+    this(directBufferSize, useNativeAllocateBB, forcePinned, numa,
+        softwareFallback, QatDispatcher.Settings.DEFAULT);
+  }
+
+  /**
+   * Creates a new decompressor like
+   * {@link #QatDecompressor(int, boolean, boolean, boolean, boolean)},
+   * routing requests between QAT and software under
+   * <code>dispatchSettings</code>.
+   *
+   * @param directBufferSize
+   *          size of the direct buffer to be used.
+   * @param useNativeAllocateBB
+   * @param forcePinned
+   * @param numa
+   * @param softwareFallback
+   *          whether to decompress in software without QAT
+   * @param dispatchSettings
+   *          the {@link QatDispatcher} settings of this decompressor
+   */
+  public QatDecompressor(int directBufferSize, boolean useNativeAllocateBB,
+      boolean forcePinned, boolean numa, boolean softwareFallback,
+      QatDispatcher.Settings dispatchSettings) {
+    this.softwareFallback = softwareFallback;
+    this.dispatchSettings = dispatchSettings;
     this.directBufferSize = directBufferSize;
     if (useNativeAllocateBB) {
       LOG.info("Creating ByteBuffer's using nativeAllocateBB.");
@@ -273,7 +320,7 @@ public int decompress(byte[] b, int off, int len)
       uncompressedDirectBuf.limit(directBufferSize);
 
       // Decompress data
-      n = decompressBytesDirect();
+      n = decompressBuffers();
       uncompressedDirectBuf.limit(n);
 
       if (userBufLen <= 0) {
@@ -314,19 +361,82 @@ public void reset() {
    */
   @Override
   public void end() {
-    // do nothing
+    if (softwareEngine != null) {
+      softwareEngine.end();
+      softwareEngine = null;
+    }
+  }
+
+  /**
+   * Decompresses the compressed direct buffer into the uncompressed one.
+   */
+  private int decompressBuffers() throws IOException {
+    int len = compressedDirectBufLen;
+    compressedDirectBufLen = 0;
+    return decompress(compressedDirectBuf, len, uncompressedDirectBuf, null, 0,
+        directBufferSize);
+  }
+
+  /**
+   * Decompresses <code>src[0, srcLen)</code> into the direct buffer
+   * <code>dst</code> or, when it is null, into <code>dstArray</code> at
+   * <code>dstOff</code>, on the route {@link QatDispatcher} picks, or always
+   * on QAT without fallback.
+   */
+  private int decompress(Buffer src, int srcLen, Buffer dst, byte[] dstArray,
+      int dstOff, int dstLen) throws IOException {
+    QatDispatcher dispatcher = QatDispatcher.decompression();
+    if (!softwareFallback || dispatcher.route(srcLen, nativeQatLoaded,
+        dispatchSettings) == QatDispatcher.Route.HARDWARE) {
+      long start = dispatcher.start(QatDispatcher.Route.HARDWARE);
+      try {
+        int n = dst != null
+            ? decompressBytesDirect(src, srcLen, dst, dstLen)
+            : decompressBytesArray(src, srcLen, dstArray, dstOff, dstLen);
+        dispatcher.finish(QatDispatcher.Route.HARDWARE, start, srcLen, null);
+        return n;
+      } catch (InternalError e) {
+        // the device or session failed, software can still serve the data
+        dispatcher.finish(QatDispatcher.Route.HARDWARE, start, srcLen, e);
+        if (!softwareFallback) {
+          throw e;
+        }
+      } catch (IOException e) {
+        // the data is corrupt, report the hardware error as is
+        dispatcher.abandon(QatDispatcher.Route.HARDWARE);
+        throw e;
+      }
+    }
+    if (softwareEngine == null) {
+      softwareEngine = new QatSoftwareEngine(1);
+    }
+    long start = dispatcher.start(QatDispatcher.Route.SOFTWARE);
+    int n = dst != null
+        ? softwareEngine.decompress((ByteBuffer) src, srcLen, (ByteBuffer) dst,
+            dstLen)
+        : softwareEngine.decompress((ByteBuffer) src, srcLen, dstArray, dstOff,
+            dstLen);
+    dispatcher.finish(QatDispatcher.Route.SOFTWARE, start, srcLen, null);
+    return n;
   }
 
   private native static void initIDs();
 
-  private native int decompressBytesDirect();
+  private native static int decompressBytesDirect(Buffer src, int srcLen,
+      Buffer dst, int dstLen) throws IOException;
+
+  private native static int decompressBytesArray(Buffer src, int srcLen,
+      byte[] dst, int dstOff, int dstLen) throws IOException;
 
   public native Object nativeAllocateBB(long capacity, boolean numa,
       boolean forcePinned);
 
+  /**
+   * Decompresses the remaining bytes of <code>src</code> into
+   * <code>dst</code>, advancing the positions of both buffers. Used by
+   * {@link QatDirectDecompressor} and {@link QatBlockDecompressorStream}.
+   */
   int decompressDirect(ByteBuffer src, ByteBuffer dst) throws IOException {
-    assert (this instanceof QatDirectDecompressor);
-
     ByteBuffer presliced = dst;
     if (dst.position() > 0) {
       presliced = dst;
@@ -342,7 +452,7 @@ int decompressDirect(ByteBuffer src, ByteBuffer dst) throws IOException {
     directBufferSize = dst.remaining();
     int n = 0;
     try {
-      n = decompressBytesDirect();
+      n = decompressBuffers();
       presliced.position(presliced.position() + n);
       // QAT always consumes the whole buffer or throws an exception
       src.position(src.limit());
@@ -356,9 +466,60 @@ int decompressDirect(ByteBuffer src, ByteBuffer dst) throws IOException {
     return n;
   }
 
+  /**
+   * Decompresses the remaining bytes of the direct buffer <code>src</code>
+   * into <code>b[off, off + len)</code> without staging the output in a
+   * direct buffer, advancing the position of <code>src</code>. Used by
+   * {@link QatBlockDecompressorStream}.
+   *
+   * @return the decompressed length
+   */
+  int decompressArray(ByteBuffer src, byte[] b, int off, int len)
+      throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    int n = decompress(src.slice(), src.remaining(), null, b, off, len);
+    // QAT always consumes the whole buffer or throws an exception
+    src.position(src.limit());
+    finished = true;
+    return n;
+  }
+
+  /**
+   * Returns a view of the compressed direct buffer, for
+   * {@link QatBlockDecompressorStream} to read chunks into without a buffer
+   * of its own. The view has its own position and limit.
+   */
+  ByteBuffer compressedBuffer() {
+    return ((ByteBuffer) compressedDirectBuf).duplicate();
+  }
+
+  /**
+   * Returns a view of the uncompressed direct buffer, like
+   * {@link #compressedBuffer()}.
+   */
+  ByteBuffer uncompressedBuffer() {
+    return ((ByteBuffer) uncompressedDirectBuf).duplicate();
+  }
+
   public static class QatDirectDecompressor extends QatDecompressor implements
       DirectDecompressor {
 
+    public QatDirectDecompressor() {
+      this(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_DEFAULT,
+          QatDispatcher.Settings.DEFAULT);
+    }
+
+    public QatDirectDecompressor(boolean softwareFallback,
+        QatDispatcher.Settings dispatchSettings) {
+      super(DEFAULT_DIRECT_BUFFER_SIZE,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_USE_NATIVE_ALLOCATE_BB_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_FORCE_PINNED_DEFAULT,
+          QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_NATIVE_ALLOCATE_BB_NUMA_DEFAULT,
+          softwareFallback, dispatchSettings);
+    }
+
     @Override
     public boolean finished() {
       return (endOfInput && super.finished());
@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+
+/**
+ * Routes each compression or decompression request to the QAT hardware or to
+ * {@link QatSoftwareEngine}.
+ * <p>
+ * A request goes to software when the native code is not loaded, when the
+ * device or a session failed in the last {@link #HARDWARE_RETRY_INTERVAL_MS}, when
+ * it is smaller than the minimum hardware size, when the hardware already has
+ * the maximum number of requests in flight, or when the measured hardware cost
+ * per byte exceeds the software one. In the last case one request in
+ * {@link #PROBE_INTERVAL} still goes to the hardware to refresh its estimate.
+ * <p>
+ * Compression and decompression have their own dispatcher and counters; the
+ * failure back-off is shared, as both use the same device. The minimum
+ * hardware size and in-flight limit are {@link Settings} of each compressor
+ * or decompressor, taken from the configuration of the codec creating it.
+ */
+public final class QatDispatcher {
+  private static final Log LOG =
+      LogFactory.getLog(QatDispatcher.class.getName());
+
+  /** Where a request is served. */
+  public enum Route {
+    HARDWARE, SOFTWARE
+  }
+
+  /** How long to stay on software after a hardware failure. */
+  public static final long HARDWARE_RETRY_INTERVAL_MS = 10 * 1000L;
+
+  /** One request in this many probes a hardware route that looks slower. */
+  public static final int PROBE_INTERVAL = 64;
+
+  /**
+   * Smaller requests are dominated by fixed costs and are left out of the
+   * per byte cost estimates.
+   */
+  static final int MIN_COST_SAMPLE_SIZE = 4 * 1024;
+
+  private static final QatDispatcher COMPRESS = new QatDispatcher("compression");
+  private static final QatDispatcher DECOMPRESS = new QatDispatcher("decompression");
+
+  private static volatile long hardwareRetryTime;
+
+  private final String operation;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger decisions = new AtomicInteger();
+  // requests, bytes and nanoseconds per route, then hardware failures
+  private final AtomicLongArray counters = new AtomicLongArray(7);
+  // moving averages of nanoseconds per byte; racy updates only drop samples
+  private volatile double hardwareCost;
+  private volatile double softwareCost;
+
+  QatDispatcher(String operation) {
+    this.operation = operation;
+  }
+
+  /** Returns the dispatcher for compression requests. */
+  public static QatDispatcher compression() {
+    return COMPRESS;
+  }
+
+  /** Returns the dispatcher for decompression requests. */
+  public static QatDispatcher decompression() {
+    return DECOMPRESS;
+  }
+
+  /**
+   * Chooses the route of a request of <code>len</code> bytes under
+   * <code>settings</code>.
+   */
+  public Route route(int len, boolean nativeCodeLoaded, Settings settings) {
+    if (!nativeCodeLoaded
+        || System.currentTimeMillis() - hardwareRetryTime < 0
+        || len < settings.minHardwareSize) {
+      return Route.SOFTWARE;
+    }
+    int limit = settings.maxInFlight;
+    if (limit > 0 && inFlight.get() >= limit) {
+      return Route.SOFTWARE;
+    }
+    double software = softwareCost;
+    if (software > 0 && hardwareCost > software
+        && decisions.incrementAndGet() % PROBE_INTERVAL != 0) {
+      return Route.SOFTWARE;
+    }
+    return Route.HARDWARE;
+  }
+
+  /**
+   * Marks the start of a request on <code>route</code> and returns its start
+   * time for {@link #finish}.
+   */
+  public long start(Route route) {
+    if (route == Route.HARDWARE) {
+      inFlight.incrementAndGet();
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Records a request of <code>len</code> bytes on <code>route</code> started
+   * at <code>startTime</code>. A hardware request failing with a device or
+   * session error, <code>failure</code>, moves every request to software for
+   * {@link #HARDWARE_RETRY_INTERVAL_MS}.
+   */
+  public void finish(Route route, long startTime, int len, Throwable failure) {
+    long nanos = System.nanoTime() - startTime;
+    int base = route.ordinal() * 3;
+    if (route == Route.HARDWARE) {
+      inFlight.decrementAndGet();
+      if (failure != null) {
+        counters.incrementAndGet(6);
+        LOG.warn("QAT " + operation + " failed, falling back to software for "
+            + HARDWARE_RETRY_INTERVAL_MS + " ms", failure);
+        hardwareRetryTime = System.currentTimeMillis()
+            + HARDWARE_RETRY_INTERVAL_MS;
+        return;
+      }
+    }
+    counters.incrementAndGet(base);
+    counters.addAndGet(base + 1, len);
+    counters.addAndGet(base + 2, nanos);
+    if (len >= MIN_COST_SAMPLE_SIZE) {
+      double cost = (double) nanos / len;
+      if (route == Route.HARDWARE) {
+        hardwareCost = average(hardwareCost, cost);
+      } else {
+        softwareCost = average(softwareCost, cost);
+      }
+    }
+  }
+
+  /**
+   * Marks the end of a request on <code>route</code> that failed on its data,
+   * e.g. corrupt input. It is not counted and moves nothing to software.
+   */
+  public void abandon(Route route) {
+    if (route == Route.HARDWARE) {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private static double average(double current, double sample) {
+    return current == 0 ? sample : current + (sample - current) / 16;
+  }
+
+  /** Returns the number of requests served on <code>route</code>. */
+  public long getRequests(Route route) {
+    return counters.get(route.ordinal() * 3);
+  }
+
+  /** Returns the number of input bytes served on <code>route</code>. */
+  public long getBytes(Route route) {
+    return counters.get(route.ordinal() * 3 + 1);
+  }
+
+  /** Returns the time spent serving requests on <code>route</code>. */
+  public long getNanos(Route route) {
+    return counters.get(route.ordinal() * 3 + 2);
+  }
+
+  /** Returns the number of failed hardware requests. */
+  public long getHardwareFailures() {
+    return counters.get(6);
+  }
+
+  /** Returns the number of hardware requests in flight. */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * The minimum hardware size and in-flight limit of one compressor or
+   * decompressor.
+   */
+  public static final class Settings {
+    /** The settings of the configuration defaults. */
+    public static final Settings DEFAULT = new Settings(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_DEFAULT,
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_DEFAULT);
+
+    final int minHardwareSize;
+    final int maxInFlight;
+
+    /**
+     * @param minHardwareSize requests smaller than this go to software
+     * @param maxInFlight     requests arriving with this many hardware
+     *                        requests in flight go to software, 0 for no limit
+     */
+    public Settings(int minHardwareSize, int maxInFlight) {
+      this.minHardwareSize = minHardwareSize;
+      this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Returns the settings of
+     * <code>io.compression.codec.qat.dispatch.min-hardware-size</code> and
+     * <code>io.compression.codec.qat.dispatch.max-in-flight</code> in
+     * <code>conf</code>.
+     */
+    public static Settings fromConf(Configuration conf) {
+      return new Settings(
+          conf.getInt(
+              QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_KEY,
+              QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_DEFAULT),
+          conf.getInt(
+              QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_KEY,
+              QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_DEFAULT));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "QAT " + operation + ": hardware " + getRequests(Route.HARDWARE)
+        + " requests/" + getBytes(Route.HARDWARE) + " bytes, software "
+        + getRequests(Route.SOFTWARE) + " requests/"
+        + getBytes(Route.SOFTWARE) + " bytes, "
+        + getHardwareFailures() + " hardware failures";
+  }
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A software deflate engine used when QAT hardware is unavailable or failing.
+ * <p>
+ * Output is a series of gzip members of at most {@link #MEMBER_SIZE}
+ * uncompressed bytes, each carrying the QATzip extra field with its source and
+ * deflate lengths, so the hardware, QATzip and any gzip reader can decompress
+ * it. Input may be any concatenation of gzip members, including those written
+ * by QATzip.
+ * <p>
+ * {@link QatDispatcher} decides which requests run here.
+ */
+public final class QatSoftwareEngine {
+  /** Largest uncompressed length of one gzip member, QATzip's default. */
+  public static final int MEMBER_SIZE = 64 * 1024;
+
+  // gzip header, the XLEN field and the QATzip extra field
+  private static final int HEADER_SIZE = 10 + 2 + 12;
+  private static final int TRAILER_SIZE = 8;
+  private static final int FEXTRA = 4, FNAME = 8, FCOMMENT = 16, FHCRC = 2;
+
+  private final Deflater deflater;
+  private final Inflater inflater = new Inflater(true);
+  private final CRC32 crc = new CRC32();
+  private byte[] inputArray = new byte[0];
+  private byte[] outputArray = new byte[0];
+
+  /**
+   * Creates an engine compressing at <code>level</code>, in range 1-9.
+   */
+  public QatSoftwareEngine(int level) {
+    deflater = new Deflater(level, true);
+  }
+
+  /**
+   * Returns the largest compressed length of <code>len</code> bytes.
+   */
+  public static int maxCompressedLength(int len) {
+    int members = Math.max(1, (len + MEMBER_SIZE - 1) / MEMBER_SIZE);
+    // room for stored deflate blocks, which cost 5 bytes per 16K
+    return len + (len >> 12) + members * (HEADER_SIZE + TRAILER_SIZE + 16);
+  }
+
+  /**
+   * Compresses <code>src[0, srcLen)</code> into <code>dst</code> from index 0,
+   * leaving the positions of both buffers unchanged.
+   *
+   * @return the compressed length
+   * @throws IOException if the output does not fit in <code>dstLen</code>
+   */
+  public int compress(ByteBuffer src, int srcLen, ByteBuffer dst, int dstLen)
+      throws IOException {
+    byte[] in = toArray(src, srcLen);
+    byte[] out = outputArray(dstLen);
+    int n = compress(in, 0, srcLen, out, 0, dstLen);
+    ByteBuffer d = dst.duplicate();
+    d.clear();
+    d.put(out, 0, n);
+    return n;
+  }
+
+  /**
+   * Decompresses <code>src[0, srcLen)</code> into <code>dst</code> from index
+   * 0, leaving the positions of both buffers unchanged.
+   *
+   * @return the decompressed length
+   * @throws IOException if the input is corrupt or the output does not fit in
+   *         <code>dstLen</code>
+   */
+  public int decompress(ByteBuffer src, int srcLen, ByteBuffer dst, int dstLen)
+      throws IOException {
+    byte[] in = toArray(src, srcLen);
+    byte[] out = outputArray(dstLen);
+    int n = decompress(in, 0, srcLen, out, 0, dstLen);
+    ByteBuffer d = dst.duplicate();
+    d.clear();
+    d.put(out, 0, n);
+    return n;
+  }
+
+  /**
+   * Decompresses <code>src[0, srcLen)</code> into <code>dst</code> at
+   * <code>dstOff</code>, leaving the position of <code>src</code> unchanged.
+   *
+   * @return the decompressed length
+   * @throws IOException if the input is corrupt or the output does not fit in
+   *         <code>dstLen</code>
+   */
+  public int decompress(ByteBuffer src, int srcLen, byte[] dst, int dstOff,
+      int dstLen) throws IOException {
+    return decompress(toArray(src, srcLen), 0, srcLen, dst, dstOff, dstLen);
+  }
+
+  /**
+   * Compresses <code>src[off, off + len)</code> into <code>dst</code> at
+   * <code>dstOff</code>.
+   *
+   * @return the compressed length
+   * @throws IOException if the output does not fit in <code>dstLen</code>
+   */
+  public int compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+      int dstLen) throws IOException {
+    int pos = dstOff;
+    int end = dstOff + dstLen;
+    int srcEnd = off + len;
+    do {
+      int n = Math.min(MEMBER_SIZE, srcEnd - off);
+      if (end - pos < HEADER_SIZE + TRAILER_SIZE) {
+        throw new IOException("Output buffer is too small for compressed data");
+      }
+      int header = pos;
+      pos += HEADER_SIZE;
+      deflater.reset();
+      deflater.setInput(src, off, n);
+      deflater.finish();
+      while (!deflater.finished()) {
+        int avail = end - TRAILER_SIZE - pos;
+        if (avail == 0) {
+          throw new IOException("Output buffer is too small for compressed data");
+        }
+        pos += deflater.deflate(dst, pos, avail);
+      }
+      crc.reset();
+      crc.update(src, off, n);
+      writeHeader(dst, header, n, pos - header - HEADER_SIZE);
+      writeIntLE(dst, pos, (int) crc.getValue());
+      writeIntLE(dst, pos + 4, n);
+      pos += TRAILER_SIZE;
+      off += n;
+    } while (off < srcEnd);
+    return pos - dstOff;
+  }
+
+  /**
+   * Decompresses the gzip members in <code>src[off, off + len)</code> into
+   * <code>dst</code> at <code>dstOff</code>.
+   *
+   * @return the decompressed length
+   * @throws IOException if the input is corrupt or the output does not fit in
+   *         <code>dstLen</code>
+   */
+  public int decompress(byte[] src, int off, int len, byte[] dst, int dstOff,
+      int dstLen) throws IOException {
+    int end = off + len;
+    int pos = dstOff;
+    int dstEnd = dstOff + dstLen;
+    while (off < end) {
+      off = skipHeader(src, off, end);
+      int start = pos;
+      inflater.reset();
+      inflater.setInput(src, off, end - off);
+      try {
+        while (!inflater.finished()) {
+          int n = inflater.inflate(dst, pos, dstEnd - pos);
+          pos += n;
+          if (n == 0 && !inflater.finished()) {
+            if (pos == dstEnd) {
+              throw new IOException("Output buffer is too small for decompressed data");
+            }
+            throw new IOException("Truncated or corrupt gzip member");
+          }
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt gzip member", e);
+      }
+      off = end - inflater.getRemaining();
+      if (end - off < TRAILER_SIZE) {
+        throw new IOException("Truncated gzip trailer");
+      }
+      crc.reset();
+      crc.update(dst, start, pos - start);
+      if (readIntLE(src, off) != (int) crc.getValue()
+          || readIntLE(src, off + 4) != pos - start) {
+        throw new IOException("Corrupt gzip member, checksum mismatch");
+      }
+      off += TRAILER_SIZE;
+    }
+    return pos - dstOff;
+  }
+
+  /**
+   * Releases the native zlib state.
+   */
+  public void end() {
+    deflater.end();
+    inflater.end();
+  }
+
+  private static void writeHeader(byte[] b, int off, int srcLen, int destLen) {
+    b[off] = 0x1f;
+    b[off + 1] = (byte) 0x8b;
+    b[off + 2] = 8;
+    b[off + 3] = FEXTRA;
+    writeIntLE(b, off + 4, 0);
+    b[off + 8] = 0;
+    b[off + 9] = (byte) 255;
+    // XLEN, then the 'QZ' subfield holding the source and deflate lengths
+    b[off + 10] = 12;
+    b[off + 11] = 0;
+    b[off + 12] = 'Q';
+    b[off + 13] = 'Z';
+    b[off + 14] = 8;
+    b[off + 15] = 0;
+    writeIntLE(b, off + 16, srcLen);
+    writeIntLE(b, off + 20, destLen);
+  }
+
+  private static int skipHeader(byte[] b, int off, int end) throws IOException {
+    if (end - off < 10 || b[off] != 0x1f || b[off + 1] != (byte) 0x8b
+        || b[off + 2] != 8) {
+      throw new IOException("Not a gzip member");
+    }
+    int flags = b[off + 3];
+    off += 10;
+    if ((flags & FEXTRA) != 0) {
+      if (end - off < 2) {
+        throw new IOException("Truncated gzip header");
+      }
+      off += 2 + ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8);
+    }
+    if ((flags & FNAME) != 0) {
+      off = skipString(b, off, end);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      off = skipString(b, off, end);
+    }
+    if ((flags & FHCRC) != 0) {
+      off += 2;
+    }
+    if (off > end) {
+      throw new IOException("Truncated gzip header");
+    }
+    return off;
+  }
+
+  private static int skipString(byte[] b, int off, int end) throws IOException {
+    while (off < end && b[off] != 0) {
+      off++;
+    }
+    if (off == end) {
+      throw new IOException("Truncated gzip header");
+    }
+    return off + 1;
+  }
+
+  private static void writeIntLE(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >>> 8);
+    b[off + 2] = (byte) (v >>> 16);
+    b[off + 3] = (byte) (v >>> 24);
+  }
+
+  private static int readIntLE(byte[] b, int off) {
+    return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+        | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+  }
+
+  private byte[] toArray(ByteBuffer src, int len) {
+    if (inputArray.length < len) {
+      inputArray = new byte[len];
+    }
+    ByteBuffer s = src.duplicate();
+    s.clear();
+    s.get(inputArray, 0, len);
+    return inputArray;
+  }
+
+  private byte[] outputArray(int len) {
+    if (outputArray.length < len) {
+      outputArray = new byte[len];
+    }
+    return outputArray;
+  }
+}
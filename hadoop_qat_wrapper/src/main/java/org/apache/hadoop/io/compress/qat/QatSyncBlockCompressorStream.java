@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+
+/**
+ * A {@link CompressionOutputStream} writing splittable <code>.qat</code>
+ * files.
+ * <p>
+ * The file starts with {@link #MAGIC} and a random sync marker of
+ * {@link #SYNC_SIZE} bytes. Every block then starts with the sync marker,
+ * followed by the block in the layout of
+ * {@link org.apache.hadoop.io.compress.BlockCompressorStream}: the big-endian
+ * uncompressed length and the big-endian length and bytes of each compressed
+ * chunk. As a length the magic is negative, so it never starts a file written
+ * by <code>BlockCompressorStream</code>.
+ * @see QatSyncBlockDecompressorStream
+ */
+public class QatSyncBlockCompressorStream extends CompressionOutputStream {
+  /** "QATS" with the high bit set. */
+  public static final int MAGIC = 0xD1415453;
+  public static final int SYNC_SIZE = 16;
+  public static final int HEADER_SIZE = 4 + SYNC_SIZE;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final Compressor compressor;
+  private final byte[] sync = new byte[SYNC_SIZE];
+  private final byte[] buffer;
+  private int buffered;
+  private final byte[] compressed;
+  private boolean headerWritten;
+
+  /**
+   * Create a {@link QatSyncBlockCompressorStream}.
+   *
+   * @param out                 stream
+   * @param compressor          compressor to be used
+   * @param bufferSize          size of the compressed chunk buffer
+   * @param compressionOverhead maximum 'blowup' for compression, so blocks of
+   *                            <code>bufferSize - compressionOverhead</code>
+   *                            bytes compress into one chunk
+   */
+  public QatSyncBlockCompressorStream(OutputStream out, Compressor compressor,
+      int bufferSize, int compressionOverhead) {
+    super(out);
+    if (bufferSize - compressionOverhead <= 0) {
+      throw new IllegalArgumentException("Illegal bufferSize "
+          + bufferSize + " for compression overhead " + compressionOverhead);
+    }
+    this.compressor = compressor;
+    this.buffer = new byte[bufferSize - compressionOverhead];
+    this.compressed = new byte[bufferSize];
+    RANDOM.nextBytes(sync);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    byte[] oneByte = new byte[1];
+    oneByte[0] = (byte) b;
+    write(oneByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      int n = Math.min(len, buffer.length - buffered);
+      System.arraycopy(b, off, buffer, buffered, n);
+      buffered += n;
+      off += n;
+      len -= n;
+      if (buffered == buffer.length) {
+        writeBlock();
+      }
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    writeHeader();
+    if (buffered > 0) {
+      writeBlock();
+    }
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    compressor.reset();
+    buffered = 0;
+  }
+
+  private void writeHeader() throws IOException {
+    if (!headerWritten) {
+      rawWriteInt(MAGIC);
+      out.write(sync);
+      headerWritten = true;
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    writeHeader();
+    out.write(sync);
+    rawWriteInt(buffered);
+    compressor.setInput(buffer, 0, buffered);
+    compressor.finish();
+    while (!compressor.finished()) {
+      int len = compressor.compress(compressed, 0, compressed.length);
+      if (len > 0) {
+        rawWriteInt(len);
+        out.write(compressed, 0, len);
+      }
+    }
+    compressor.reset();
+    buffered = 0;
+  }
+
+  private void rawWriteInt(int v) throws IOException {
+    out.write((v >>> 24) & 0xFF);
+    out.write((v >>> 16) & 0xFF);
+    out.write((v >>>  8) & 0xFF);
+    out.write((v >>>  0) & 0xFF);
+  }
+}
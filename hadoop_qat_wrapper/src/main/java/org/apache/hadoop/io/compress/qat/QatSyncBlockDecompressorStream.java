@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.compress.BlockDecompressorStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+
+/**
+ * A {@link SplitCompressionInputStream} reading files written by
+ * {@link QatSyncBlockCompressorStream}.
+ * <p>
+ * A split starting at <code>start &gt; 0</code> begins at the first sync
+ * marker after <code>start</code>. A read never crosses a block boundary
+ * and, as for bzip2, {@link #getPos()} reports the offset of the block the
+ * last read came from. A split so reads the blocks starting up to its end and
+ * the record running into the next block, which the next split skips.
+ * <p>
+ * Files written by <code>BlockCompressorStream</code> have no sync markers.
+ * The split starting at 0 reads them whole and the other splits are empty.
+ */
+public class QatSyncBlockDecompressorStream extends SplitCompressionInputStream {
+  private final Decompressor decompressor;
+  private final byte[] sync = new byte[QatSyncBlockCompressorStream.SYNC_SIZE];
+  private final byte[] blockSync = new byte[QatSyncBlockCompressorStream.SYNC_SIZE];
+  private final byte[] intBuffer = new byte[4];
+  private byte[] compressed;
+  private byte[] buffer;
+  private int bufferLen;
+  private int bufferPos;
+  // offsets in the file of the next byte read from in and of the last block
+  private long pos;
+  private long blockStart;
+  private boolean eof;
+  // reads a file without sync markers, or null
+  private BlockDecompressorStream legacy;
+
+  /**
+   * Create a stream reading a whole stream from the current position of
+   * <code>in</code>.
+   */
+  public QatSyncBlockDecompressorStream(InputStream in,
+      Decompressor decompressor, int bufferSize) throws IOException {
+    this(in, decompressor, bufferSize, 0, Long.MAX_VALUE, false);
+  }
+
+  /**
+   * Create a stream reading the split <code>[start, end]</code> of a file.
+   *
+   * @param in           the file, which must be {@link Seekable}
+   * @param decompressor decompressor to use
+   * @param bufferSize   size of the compressed chunk buffer
+   * @param start        start of the split
+   * @param end          end of the split
+   */
+  public QatSyncBlockDecompressorStream(InputStream in,
+      Decompressor decompressor, int bufferSize, long start, long end)
+      throws IOException {
+    this(in, decompressor, bufferSize, start, end, true);
+  }
+
+  private QatSyncBlockDecompressorStream(InputStream in,
+      Decompressor decompressor, int bufferSize, long start, long end,
+      boolean split) throws IOException {
+    super(in, start, end);
+    this.decompressor = decompressor;
+    this.compressed = new byte[bufferSize];
+    this.buffer = new byte[bufferSize];
+    if (split) {
+      if (!(in instanceof Seekable)) {
+        throw new IllegalArgumentException("Splits need a Seekable stream");
+      }
+      ((Seekable) in).seek(0);
+    }
+    int n = readFully(intBuffer, 0, intBuffer.length);
+    if (n < intBuffer.length) {
+      // empty file
+      eof = true;
+    } else if (readInt(intBuffer) != QatSyncBlockCompressorStream.MAGIC) {
+      if (!split) {
+        throw new IOException("Not a splittable QAT stream");
+      }
+      if (start == 0) {
+        ((Seekable) in).seek(0);
+        legacy = new BlockDecompressorStream(in, decompressor, bufferSize);
+      } else {
+        eof = true;
+      }
+    } else {
+      if (readFully(sync, 0, sync.length) < sync.length) {
+        throw new EOFException("Unexpected end of QAT stream header");
+      }
+      if (start > 0) {
+        // the header holds a copy of the marker too
+        seekToSync(Math.max(start + 1, QatSyncBlockCompressorStream.HEADER_SIZE));
+      }
+    }
+    // the first split owns the first block whatever its end
+    blockStart = start == 0 ? 0 : pos;
+    setStart(eof || legacy != null ? start : blockStart);
+  }
+
+  /**
+   * Positions the stream at the first sync marker at or after
+   * <code>from</code>, or at the end of the file.
+   */
+  private void seekToSync(long from) throws IOException {
+    ((Seekable) in).seek(from);
+    pos = from;
+    byte[] window = compressed;
+    int len = 0;
+    long base = from;
+    while (true) {
+      int r = in.read(window, len, window.length - len);
+      if (r < 0) {
+        pos = base + len;
+        eof = true;
+        return;
+      }
+      len += r;
+      for (int i = 0; i + sync.length <= len; i++) {
+        if (isSync(window, i)) {
+          pos = base + i;
+          ((Seekable) in).seek(pos);
+          return;
+        }
+      }
+      int keep = Math.min(len, sync.length - 1);
+      System.arraycopy(window, len - keep, window, 0, keep);
+      base += len - keep;
+      len = keep;
+    }
+  }
+
+  private boolean isSync(byte[] b, int off) {
+    for (int i = 0; i < sync.length; i++) {
+      if (b[off + i] != sync[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] oneByte = new byte[1];
+    return (read(oneByte, 0, oneByte.length) == -1) ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (legacy != null) {
+      return legacy.read(b, off, len);
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    if (bufferPos == bufferLen && !nextBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, bufferLen - bufferPos);
+    System.arraycopy(buffer, bufferPos, b, off, n);
+    bufferPos += n;
+    return n;
+  }
+
+  /**
+   * Reads and decompresses the next block, returning false at the end of the
+   * file.
+   */
+  private boolean nextBlock() throws IOException {
+    if (eof) {
+      return false;
+    }
+    blockStart = pos;
+    int n = readFully(blockSync, 0, blockSync.length);
+    if (n == 0) {
+      eof = true;
+      return false;
+    }
+    if (n < blockSync.length || !Arrays.equals(blockSync, sync)) {
+      throw new IOException("Corrupt QAT stream, no sync marker at " + blockStart);
+    }
+    int rawLen = rawReadInt();
+    if (rawLen < 0) {
+      throw new IOException("Corrupt QAT stream, block length " + rawLen);
+    }
+    if (rawLen > buffer.length) {
+      buffer = new byte[rawLen];
+    }
+    int filled = 0;
+    while (filled < rawLen) {
+      if (decompressor.needsInput()) {
+        int len = rawReadInt();
+        if (len < 0) {
+          throw new IOException("Corrupt QAT stream, chunk length " + len);
+        }
+        if (len > compressed.length) {
+          compressed = new byte[len];
+        }
+        if (readFully(compressed, 0, len) < len) {
+          throw new EOFException("Unexpected end of block in QAT stream");
+        }
+        decompressor.setInput(compressed, 0, len);
+      }
+      int m = decompressor.decompress(buffer, filled, rawLen - filled);
+      if (m == 0 && !decompressor.needsInput()) {
+        throw new IOException("Corrupt QAT stream, can't decompress block at "
+            + blockStart);
+      }
+      filled += m;
+    }
+    decompressor.reset();
+    bufferLen = rawLen;
+    bufferPos = 0;
+    return true;
+  }
+
+  /**
+   * Returns the offset of the block the last read came from.
+   */
+  @Override
+  public long getPos() throws IOException {
+    if (legacy != null) {
+      return getAdjustedStart();
+    }
+    return blockStart;
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    decompressor.reset();
+    bufferLen = bufferPos = 0;
+  }
+
+  private int readFully(byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len) {
+      int r = in.read(b, off + n, len - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    pos += n;
+    return n;
+  }
+
+  private int rawReadInt() throws IOException {
+    if (readFully(intBuffer, 0, intBuffer.length) < intBuffer.length) {
+      throw new EOFException("Unexpected end of block in QAT stream");
+    }
+    return readInt(intBuffer);
+  }
+
+  static int readInt(byte[] b) {
+    return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16)
+        | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+  }
+}
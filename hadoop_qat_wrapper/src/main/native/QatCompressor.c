@@ -36,28 +36,66 @@
 #define qaePinnedMemAlloc(x, y)  qaeMemAllocNUMA((x), (y), 8)
 #define qaePinnedMemFree(x)      qaeMemFreeNUMA((void **)&(x))
 
-static jfieldID QatCompressor_clazz;
-static jfieldID QatCompressor_uncompressedDirectBuf;
-static jfieldID QatCompressor_uncompressedDirectBufLen;
-static jfieldID QatCompressor_compressedDirectBuf;
-static jfieldID QatCompressor_directBufferSize;
+#define QAT_MAX_LEVEL 9
 
 __thread QzSession_T  g_qzCompressSession = {
     .internal = NULL,
 };
 
+/* One session per compression level, so compressors with different levels
+ * never share session parameters. Set up lazily on first use. */
+static __thread QzSession_T g_qzLevelSessions[QAT_MAX_LEVEL + 1];
+
 #ifdef UNIX
 unsigned char* (*dlsym_qzMalloc)(int, int, int);
 static int (*dlsym_qzCompress)(QzSession_T *sess, const unsigned char* src,
     unsigned int* src_len, unsigned char* dest, unsigned int* dest_len,
     unsigned int last);
 int (*dlsym_qzGetDefaults)(QzSessionParams_T *defaults);
-int (*dlsym_qzSetDefaults)(QzSessionParams_T *defaults);
+static int (*dlsym_qzInit)(QzSession_T *sess, unsigned char sw_backup);
+static int (*dlsym_qzSetupSession)(QzSession_T *sess, QzSessionParams_T *params);
+static int (*dlsym_qzTeardownSession)(QzSession_T *sess);
+static int (*dlsym_qzClose)(QzSession_T *sess);
 #endif
 
-JNIEXPORT void JNICALL Java_org_apache_hadoop_io_compress_qat_QatCompressor_initIDs
-(JNIEnv *env, jclass clazz, jint level){
+static QzSession_T* get_level_session(JNIEnv *env, jint level){
   QzSessionParams_T params;
+  QzSession_T *sess;
+  int ret;
+
+  if (level < 1 || level > QAT_MAX_LEVEL) {
+    THROW(env, "java/lang/IllegalArgumentException", "Invalid compression level");
+    return NULL;
+  }
+  sess = &g_qzLevelSessions[level];
+  if (sess->internal != NULL) {
+    return sess;
+  }
+
+  dlsym_qzGetDefaults(&params);
+  params.comp_lvl = level;
+  // Positive return codes are warnings, e.g. QZ_NO_HW with software backup
+  ret = dlsym_qzInit(sess, params.sw_backup);
+  if (ret >= QZ_OK) {
+    ret = dlsym_qzSetupSession(sess, &params);
+    if (ret < QZ_OK) {
+      // Don't leave a half set up session behind for the next call to reuse
+      dlsym_qzTeardownSession(sess);
+      dlsym_qzClose(sess);
+    }
+  }
+  if (ret < QZ_OK) {
+    char msg[128];
+    memset(sess, 0, sizeof(*sess));
+    snprintf(msg, sizeof(msg), "Could not set up session for level %d, return %d", level, ret);
+    THROW(env, "java/lang/InternalError", msg);
+    return NULL;
+  }
+  return sess;
+}
+
+JNIEXPORT void JNICALL Java_org_apache_hadoop_io_compress_qat_QatCompressor_initIDs
+(JNIEnv *env, jclass clazz){
 #ifdef UNIX
   // Load libqatzip.so
   void *libqatzip = dlopen("libqatzip.so", RTLD_LAZY | RTLD_GLOBAL);
@@ -75,66 +113,47 @@ JNIEXPORT void JNICALL Java_org_apache_hadoop_io_compress_qat_QatCompressor_init
   LOAD_DYNAMIC_SYMBOL(dlsym_qzCompress, env, libqatzip, "qzCompress");
   LOAD_DYNAMIC_SYMBOL(dlsym_qzMalloc, env, libqatzip, "qzMalloc");
   LOAD_DYNAMIC_SYMBOL(dlsym_qzGetDefaults, env, libqatzip, "qzGetDefaults");
-  LOAD_DYNAMIC_SYMBOL(dlsym_qzSetDefaults, env, libqatzip, "qzSetDefaults");
+  LOAD_DYNAMIC_SYMBOL(dlsym_qzInit, env, libqatzip, "qzInit");
+  LOAD_DYNAMIC_SYMBOL(dlsym_qzSetupSession, env, libqatzip, "qzSetupSession");
+  LOAD_DYNAMIC_SYMBOL(dlsym_qzTeardownSession, env, libqatzip, "qzTeardownSession");
+  LOAD_DYNAMIC_SYMBOL(dlsym_qzClose, env, libqatzip, "qzClose");
 #endif
-
-  QatCompressor_clazz = (*env)->GetStaticFieldID(env, clazz, "clazz",
-                                                 "Ljava/lang/Class;");
-  QatCompressor_uncompressedDirectBuf = (*env)->GetFieldID(env, clazz,
-                                                           "uncompressedDirectBuf",
-                                                           "Ljava/nio/Buffer;");
-  QatCompressor_uncompressedDirectBufLen = (*env)->GetFieldID(env, clazz,
-                                                              "uncompressedDirectBufLen", "I");
-  QatCompressor_compressedDirectBuf = (*env)->GetFieldID(env, clazz,
-                                                         "compressedDirectBuf",
-                                                         "Ljava/nio/Buffer;");
-  QatCompressor_directBufferSize = (*env)->GetFieldID(env, clazz,
-                                                       "directBufferSize", "I");
-  dlsym_qzGetDefaults(&params);
-  params.comp_lvl = level;
-  fprintf(stderr, "compression level is %d, tid is %d\n", level, syscall(__NR_gettid));
-  dlsym_qzSetDefaults(&params);
 }
 
 JNIEXPORT jint JNICALL Java_org_apache_hadoop_io_compress_qat_QatCompressor_compressBytesDirect
-(JNIEnv *env, jobject thisj){
+(JNIEnv *env, jclass cls, jobject uncompressed_direct_buf, jint uncompressed_direct_buf_len,
+ jobject compressed_direct_buf, jint compressed_direct_buf_len, jint level){
   const unsigned char* uncompressed_bytes;
   unsigned char* compressed_bytes;
   int ret;
-  // Get members of QatCompressor
-  jobject clazz = (*env)->GetStaticObjectField(env, thisj, QatCompressor_clazz);
-  jobject uncompressed_direct_buf = (*env)->GetObjectField(env, thisj, QatCompressor_uncompressedDirectBuf);
-  jint uncompressed_direct_buf_len = (*env)->GetIntField(env, thisj, QatCompressor_uncompressedDirectBufLen);
-  jobject compressed_direct_buf = (*env)->GetObjectField(env, thisj, QatCompressor_compressedDirectBuf);
-  jint compressed_direct_buf_len = (*env)->GetIntField(env, thisj, QatCompressor_directBufferSize);
+  QzSession_T *sess;
   unsigned int buf_len;
   unsigned int src_len;
 
-  // Get the input direct buffer
-  LOCK_CLASS(env, clazz, "QatCompressor");
+  // The buffers are passed in by the caller, so no field lookups or class
+  // monitor are needed and concurrent compressors never contend here.
   uncompressed_bytes = (const unsigned char*)(*env)->GetDirectBufferAddress(env, uncompressed_direct_buf);
-  UNLOCK_CLASS(env, clazz, "QatCompressor");
-
   if (uncompressed_bytes == 0) {
     return (jint)0;
   }
 
-  // Get the output direct buffer
-  LOCK_CLASS(env, clazz, "QatCompressor");
   compressed_bytes = (unsigned char *)(*env)->GetDirectBufferAddress(env, compressed_direct_buf);
-  UNLOCK_CLASS(env, clazz, "QatCompressor");
-
   if (compressed_bytes == 0) {
     return (jint)0;
   }
 
+  sess = get_level_session(env, level);
+  if (sess == NULL) {
+    return (jint)0;
+  }
+
   /* size_t should always be 4 bytes or larger. */
   buf_len = compressed_direct_buf_len;
   src_len = uncompressed_direct_buf_len;
-  ret = dlsym_qzCompress(&g_qzCompressSession, uncompressed_bytes, &src_len,
+  ret = dlsym_qzCompress(sess, uncompressed_bytes, &src_len,
         compressed_bytes, &buf_len, 1);
   if (ret != QZ_OK){
-    THROW(env, "java/lang/InternalError", "Could not compress data, return " + ret);
+    THROW_QZ_ERROR(env, "compress", ret);
     return 0;
   }
   if (buf_len > JINT_MAX) {
@@ -142,7 +161,6 @@ JNIEXPORT jint JNICALL Java_org_apache_hadoop_io_compress_qat_QatCompressor_comp
     return 0;
   }
 
-  (*env)->SetIntField(env, thisj, QatCompressor_uncompressedDirectBufLen, 0);
   return (jint)buf_len;
 }
 
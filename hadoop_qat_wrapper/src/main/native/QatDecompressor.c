@@ -27,13 +27,6 @@
 
 #include "org_apache_hadoop_io_compress_qat_QatDecompressor.h"
 
-
-static jfieldID QatDecompressor_clazz;
-static jfieldID QatDecompressor_compressedDirectBuf;
-static jfieldID QatDecompressor_compressedDirectBufLen;
-static jfieldID QatDecompressor_uncompressedDirectBuf;
-static jfieldID QatDecompressor_directBufferSize;
-
 #define qaePinnedMemAlloc(x, y)  qaeMemAllocNUMA((x), (y), 8)
 #define qaePinnedMemFree(x)      qaeMemFreeNUMA((void **)&(x))
 
@@ -84,62 +77,73 @@ JNIEXPORT void JNICALL Java_org_apache_hadoop_io_compress_qat_QatDecompressor_in
 #ifdef WINDOWS
   LOAD_DYNAMIC_SYMBOL(__dlsym_qatzip_uncompress, dlsym_qzDecompress, env, libqatzip, "qzDecompress");
 #endif
-
-  QatDecompressor_clazz = (*env)->GetStaticFieldID(env, clazz, "clazz",
-                                                   "Ljava/lang/Class;");
-  QatDecompressor_compressedDirectBuf = (*env)->GetFieldID(env,clazz,
-                                                           "compressedDirectBuf",
-                                                           "Ljava/nio/Buffer;");
-  QatDecompressor_compressedDirectBufLen = (*env)->GetFieldID(env,clazz,
-                                                              "compressedDirectBufLen", "I");
-  QatDecompressor_uncompressedDirectBuf = (*env)->GetFieldID(env,clazz,
-                                                             "uncompressedDirectBuf",
-                                                             "Ljava/nio/Buffer;");
-  QatDecompressor_directBufferSize = (*env)->GetFieldID(env, clazz,
-                                                         "directBufferSize", "I");
 }
 
 JNIEXPORT jint JNICALL Java_org_apache_hadoop_io_compress_qat_QatDecompressor_decompressBytesDirect
-(JNIEnv *env, jobject thisj){
+(JNIEnv *env, jclass cls, jobject compressed_direct_buf, jint compressed_direct_buf_len,
+ jobject uncompressed_direct_buf, jint uncompressed_direct_buf_size){
   const unsigned char* compressed_bytes = NULL;
   unsigned char* uncompressed_bytes = NULL;
   unsigned int compressed_buf_len;
+  unsigned int uncompressed_buf_len;
   int ret;
-  // Get members of QatDecompressor
-  jobject clazz = (*env)->GetStaticObjectField(env,thisj, QatDecompressor_clazz);
-  jobject compressed_direct_buf = (*env)->GetObjectField(env,thisj, QatDecompressor_compressedDirectBuf);
-  jint compressed_direct_buf_len = (*env)->GetIntField(env,thisj, QatDecompressor_compressedDirectBufLen);
-  jobject uncompressed_direct_buf = (*env)->GetObjectField(env,thisj, QatDecompressor_uncompressedDirectBuf);
-  unsigned int uncompressed_direct_buf_len = (*env)->GetIntField(env, thisj, QatDecompressor_directBufferSize);
-
-  // Get the input direct buffer
-  LOCK_CLASS(env, clazz, "QatDecompressor");
-  compressed_bytes = (const unsigned char*)(*env)->GetDirectBufferAddress(env, compressed_direct_buf);
-  UNLOCK_CLASS(env, clazz, "QatDecompressor");
 
+  // The buffers are passed in by the caller, so no field lookups or class
+  // monitor are needed and concurrent decompressors never contend here.
+  compressed_bytes = (const unsigned char*)(*env)->GetDirectBufferAddress(env, compressed_direct_buf);
   if (compressed_bytes == 0) {
     return (jint)0;
   }
 
-  // Get the output direct buffer
-  LOCK_CLASS(env, clazz, "QatDecompressor");
   uncompressed_bytes = (unsigned char *)(*env)->GetDirectBufferAddress(env, uncompressed_direct_buf);
-  UNLOCK_CLASS(env, clazz, "QatDecompressor");
-
   if (uncompressed_bytes == 0) {
     return (jint)0;
   }
 
   compressed_buf_len = compressed_direct_buf_len;
+  uncompressed_buf_len = uncompressed_direct_buf_size;
   ret = dlsym_qzDecompress(&g_qzCompressSession, compressed_bytes, &compressed_buf_len,
-        uncompressed_bytes, &uncompressed_direct_buf_len);
+        uncompressed_bytes, &uncompressed_buf_len);
   if (ret != QZ_OK) {
-    THROW(env, "java/lang/InternalError", "Could not decompress data, return " + ret);
+    THROW_QZ_ERROR(env, "decompress", ret);
+    return 0;
+  }
+
+  return (jint)uncompressed_buf_len;
+}
+
+JNIEXPORT jint JNICALL Java_org_apache_hadoop_io_compress_qat_QatDecompressor_decompressBytesArray
+(JNIEnv *env, jclass cls, jobject compressed_direct_buf, jint compressed_direct_buf_len,
+ jbyteArray uncompressed_array, jint uncompressed_off, jint uncompressed_len){
+  const unsigned char* compressed_bytes = NULL;
+  unsigned char* uncompressed_bytes = NULL;
+  unsigned int compressed_buf_len;
+  unsigned int uncompressed_buf_len;
+  int ret;
+
+  compressed_bytes = (const unsigned char*)(*env)->GetDirectBufferAddress(env, compressed_direct_buf);
+  if (compressed_bytes == 0) {
+    return (jint)0;
   }
 
-  (*env)->SetIntField(env, thisj, QatDecompressor_compressedDirectBufLen, 0);
+  // No JNI calls are allowed while the array is held.
+  uncompressed_bytes = (unsigned char *)(*env)->GetPrimitiveArrayCritical(env, uncompressed_array, NULL);
+  if (uncompressed_bytes == 0) {
+    THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor output array");
+    return (jint)0;
+  }
+
+  compressed_buf_len = compressed_direct_buf_len;
+  uncompressed_buf_len = uncompressed_len;
+  ret = dlsym_qzDecompress(&g_qzCompressSession, compressed_bytes, &compressed_buf_len,
+        uncompressed_bytes + uncompressed_off, &uncompressed_buf_len);
+  (*env)->ReleasePrimitiveArrayCritical(env, uncompressed_array, uncompressed_bytes, 0);
+  if (ret != QZ_OK) {
+    THROW_QZ_ERROR(env, "decompress", ret);
+    return 0;
+  }
 
-  return (jint)uncompressed_direct_buf_len;
+  return (jint)uncompressed_buf_len;
 }
 
 JNIEXPORT jobject JNICALL
@@ -24,8 +24,6 @@
  *   * UNIX
  *   * THROW
  *   * LOAD_DYNAMIC_SYMBOL
- *   * LOCK_CLASS
- *   * UNLOCK_CLASS
  *   * Probably at least one of the Windows-specific definitions too
  *
  * org_apache_hadoop.h also prevents us dropping config.h, as this file is
@@ -42,4 +40,19 @@
 
 #define HADOOP_QAT_LIBRARY "libqatzip.so"
 
+/* Throws for a failed qzCompress or qzDecompress call. A request failing on
+ * its data, e.g. corrupt input or a too small output buffer, would fail in
+ * software too and gets an IOException; a device or session failure gets an
+ * InternalError, which lets the caller move to software. */
+#define THROW_QZ_ERROR(env, op, ret) \
+  { \
+    char qz_msg[64]; \
+    snprintf(qz_msg, sizeof(qz_msg), "Could not %s data, return %d", op, ret); \
+    if ((ret) == QZ_DATA_ERROR || (ret) == QZ_BUF_ERROR || (ret) == QZ_PARAMS) { \
+      THROW(env, "java/io/IOException", qz_msg); \
+    } else { \
+      THROW(env, "java/lang/InternalError", qz_msg); \
+    } \
+  }
+
 extern __thread QzSession_T  g_qzCompressSession;
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.BlockDecompressorStream;
+import org.apache.hadoop.io.compress.QatCodec;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestParallelQatCompressionOutputStream {
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private Configuration conf;
+  private byte[] data;
+
+  @Before
+  public void before() {
+    conf = new Configuration();
+    // without the native qat library this runs in software
+    conf.setBoolean(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_KEY, true);
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
+        BUFFER_SIZE);
+    Random random = new Random(12345);
+    data = new byte[37 * BUFFER_SIZE + 321];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(16));
+    }
+  }
+
+  private byte[] compress(int parallelBlocks, int writeSize) throws IOException {
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY,
+        parallelBlocks);
+    QatCodec codec = new QatCodec();
+    codec.setConf(conf);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = codec.createOutputStream(bytes);
+    assertTrue(out instanceof ParallelQatCompressionOutputStream);
+    for (int off = 0; off < data.length; off += writeSize) {
+      out.write(data, off, Math.min(writeSize, data.length - off));
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      actual.write(buffer, 0, n);
+    }
+    in.close();
+    return actual.toByteArray();
+  }
+
+  @Test
+  public void testParallelQatCompressionReadByBlockDecompressorStream()
+      throws IOException {
+    for (int parallelBlocks : new int[] {2, 4, 16}) {
+      for (int writeSize : new int[] {1, 999, 64 * 1024}) {
+        byte[] compressed = compress(parallelBlocks, writeSize);
+        InputStream in = new BlockDecompressorStream(
+            new ByteArrayInputStream(compressed),
+            new QatDecompressor(BUFFER_SIZE), BUFFER_SIZE);
+        assertArrayEquals(data, readAll(in));
+      }
+    }
+  }
+
+  @Test
+  public void testParallelQatCompressionReadByCodec() throws IOException {
+    byte[] compressed = compress(8, 64 * 1024);
+    QatCodec codec = new QatCodec();
+    codec.setConf(conf);
+    assertArrayEquals(data,
+        readAll(codec.createInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void testParallelQatCompressionEmptyStream() throws IOException {
+    data = new byte[0];
+    byte[] compressed = compress(4, 1);
+    assertArrayEquals(new byte[0], compressed);
+  }
+
+  private static int compressThreads() {
+    int threads = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("qat-parallel-compress-")) {
+        threads++;
+      }
+    }
+    return threads;
+  }
+
+  @Test
+  public void testParallelQatCompressionSharesThreads() throws IOException {
+    // streams share one pool, so QAT sessions are not set up per stream
+    compress(4, 64 * 1024);
+    int threads = compressThreads();
+    assertTrue(threads >= 4);
+    for (int i = 0; i < 10; i++) {
+      compress(4, 64 * 1024);
+    }
+    assertEquals(threads, compressThreads());
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.BlockCompressorStream;
+import org.apache.hadoop.io.compress.QatCodec;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQatBlockDecompressorStream {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private QatCodec codec;
+  private byte[] data;
+  private byte[] compressed;
+
+  @Before
+  public void before() throws IOException {
+    Configuration conf = new Configuration();
+    // without the native qat library this runs in software
+    conf.setBoolean(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_KEY, true);
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
+        BUFFER_SIZE);
+    codec = new QatCodec();
+    codec.setConf(conf);
+
+    Random random = new Random(12345);
+    data = new byte[5 * BUFFER_SIZE + 123];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(16));
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = new BlockCompressorStream(bytes,
+        new QatCompressor(BUFFER_SIZE), BUFFER_SIZE, BUFFER_SIZE / 6 + 32);
+    out.write(data);
+    out.close();
+    compressed = bytes.toByteArray();
+  }
+
+  private QatBlockDecompressorStream open(InputStream in) throws IOException {
+    InputStream stream = codec.createInputStream(in);
+    assertTrue(stream instanceof QatBlockDecompressorStream);
+    return (QatBlockDecompressorStream) stream;
+  }
+
+  @Test
+  public void testQatBlockDecompressorStreamReadBytes() throws IOException {
+    // whole blocks decompress straight into the array, the others are copied
+    for (int size : new int[] {BUFFER_SIZE, 1000}) {
+      QatBlockDecompressorStream in =
+          open(new ByteArrayInputStream(compressed));
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      byte[] buffer = new byte[size];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        actual.write(buffer, 0, n);
+      }
+      in.close();
+      assertArrayEquals(data, actual.toByteArray());
+    }
+  }
+
+  @Test
+  public void testQatBlockDecompressorStreamReadByteBuffers() throws IOException {
+    // whole blocks decompress straight into dst, the others are copied
+    ByteBuffer[] buffers = {ByteBuffer.allocateDirect(BUFFER_SIZE),
+        ByteBuffer.allocateDirect(1000), ByteBuffer.allocate(BUFFER_SIZE)};
+    for (ByteBuffer buffer : buffers) {
+      QatBlockDecompressorStream in =
+          open(new ByteArrayInputStream(compressed));
+      ByteBuffer actual = ByteBuffer.allocate(data.length);
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        assertEquals(n, buffer.position());
+        buffer.flip();
+        actual.put(buffer);
+        buffer.clear();
+      }
+      in.close();
+      assertEquals(0, actual.remaining());
+      assertArrayEquals(data, actual.array());
+    }
+  }
+
+  @Test
+  public void testQatBlockDecompressorStreamFromFileSystem() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = new Path(System.getProperty("test.build.data", "target/test-data"),
+        "TestQatBlockDecompressorStream.qat");
+    OutputStream out = fs.create(file, true);
+    out.write(compressed);
+    out.close();
+
+    QatBlockDecompressorStream in = open(fs.open(file));
+    ByteBuffer actual = ByteBuffer.allocate(data.length);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    while (in.read(buffer) > 0) {
+      buffer.flip();
+      actual.put(buffer);
+      buffer.clear();
+    }
+    in.close();
+    assertArrayEquals(data, actual.array());
+  }
+}
@@ -18,9 +18,9 @@
 package org.apache.hadoop.io.compress.qat;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.junit.Assume.assumeTrue;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -31,8 +31,10 @@
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.compress.BlockCompressorStream;
@@ -40,19 +42,19 @@
 import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.io.compress.QatCodec;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.apache.hadoop.io.compress.qat.QatCompressor.QatDirectCompressor;
 import org.apache.hadoop.io.compress.qat.QatDecompressor.QatDirectDecompressor;
 import org.apache.hadoop.test.MultithreadedTestUtil;
 import org.junit.Assert;
-import org.junit.Before;
 import org.junit.Test;
 
+/**
+ * Without the native qat library, the compressors and decompressors under test
+ * fall back to software, which is enabled by default.
+ */
 public class TestQatCompressorDecompressor {
 
-  @Before
-  public void before() {
-    assumeTrue(QatCodec.isNativeCodeLoaded());
-  }
-
   @Test
   public void testQatCompressorSetInputNullPointerException() {
     try {
@@ -202,6 +204,72 @@ public void testQatCompressDecompress() {
     }
   }
 
+  @Test
+  public void testQatDecompressCorruptInput() throws IOException {
+    int BYTE_SIZE = 1024 * 54;
+    byte[] bytes = BytesGenerator.get(BYTE_SIZE);
+    QatCompressor compressor = new QatCompressor();
+    compressor.setInput(bytes, 0, bytes.length);
+    compressor.finish();
+    byte[] compressed = new byte[BYTE_SIZE];
+    int cSize = compressor.compress(compressed, 0, compressed.length);
+    // break the CRC32 in the gzip trailer
+    compressed[cSize - 8] ^= 0xFF;
+
+    QatDispatcher dispatcher = QatDispatcher.decompression();
+    long failures = dispatcher.getHardwareFailures();
+    QatDecompressor decompressor = new QatDecompressor(BYTE_SIZE);
+    decompressor.setInput(compressed, 0, cSize);
+    try {
+      decompressor.decompress(new byte[BYTE_SIZE], 0, BYTE_SIZE);
+      fail("testQatDecompressCorruptInput error !!!");
+    } catch (IOException e) {
+      // expected
+    }
+    // corrupt data is not a device failure, so nothing moves to software
+    assertEquals(failures, dispatcher.getHardwareFailures());
+  }
+
+  @Test
+  public void testQatCompressorReinit() {
+    int BYTE_SIZE = 1024 * 16;
+    byte[] bytes = BytesGenerator.get(BYTE_SIZE);
+    QatCompressor compressor = new QatCompressor();
+    Configuration conf = new Configuration();
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_LEVEL_KEY, 9);
+    try {
+      // first fits in the existing 64K buffers, then needs larger ones
+      for (int bufferSize : new int[] {32 * 1024, 128 * 1024}) {
+        conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
+            bufferSize);
+        compressor.reinit(conf);
+        assertEquals(9, compressor.getLevel());
+        compressor.setInput(bytes, 0, bytes.length);
+        compressor.finish();
+        byte[] compressed = new byte[BYTE_SIZE * 2];
+        int cSize = compressor.compress(compressed, 0, compressed.length);
+
+        QatDecompressor decompressor = new QatDecompressor(BYTE_SIZE);
+        decompressor.setInput(compressed, 0, cSize);
+        byte[] decompressed = new byte[BYTE_SIZE];
+        decompressor.decompress(decompressed, 0, decompressed.length);
+        Assert.assertArrayEquals(bytes, decompressed);
+      }
+      compressor.reinit(new Configuration());
+      assertEquals(QatCompressor.getDefaultLevel(), compressor.getLevel());
+    } catch (Exception e) {
+      fail("testQatCompressorReinit ex error!!!" + e);
+    }
+
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_LEVEL_KEY, 10);
+    try {
+      compressor.reinit(conf);
+      fail("testQatCompressorReinit error !!!");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
   @Test
   public void testCompressorDecompressorEmptyStreamLogic() {
     ByteArrayInputStream bytesIn = null;
@@ -320,7 +388,6 @@ private void compressDecompressLoop(int rawDataSize) throws IOException {
   @Test
   public void testQatDirectBlockCompression() {
     int[] size = {4 * 1024, 64 * 1024, 128 * 1024, 1024 * 1024};
-    assumeTrue(QatCodec.isNativeCodeLoaded());
     try {
       for (int i = 0; i < size.length; i++) {
         compressDecompressLoop(size[i]);
@@ -330,6 +397,85 @@ public void testQatDirectBlockCompression() {
     }
   }
 
+  @Test
+  public void testQatDirectCompressorDecompressor() {
+    int[] size = {4 * 1024, 64 * 1024, 128 * 1024, 1024 * 1024};
+    try {
+      for (int i = 0; i < size.length; i++) {
+        directCompressDecompress(new QatDirectCompressor(),
+            new QatDirectDecompressor(), size[i]);
+      }
+    } catch (IOException ex) {
+      fail("testQatDirectCompressorDecompressor ex !!!" + ex);
+    }
+  }
+
+  @Test
+  public void testQatCodecCreateDirectCompressor() {
+    QatCodec codec = new QatCodec();
+    Configuration conf = new Configuration();
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_LEVEL_KEY, 9);
+    codec.setConf(conf);
+    QatDirectCompressor compressor = codec.createDirectCompressor();
+    assertTrue(compressor != null);
+    assertEquals(9, compressor.getLevel());
+    try {
+      directCompressDecompress(compressor, new QatDirectDecompressor(), 64 * 1024);
+    } catch (IOException ex) {
+      fail("testQatCodecCreateDirectCompressor ex !!!" + ex);
+    }
+  }
+
+  @Test
+  public void testQatCodecCreateDirectDecompressor() {
+    QatCodec codec = new QatCodec();
+    Configuration conf = new Configuration();
+    conf.setBoolean(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_KEY, true);
+    // route every request to software, so the settings are seen to apply
+    conf.setInt(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_KEY,
+        Integer.MAX_VALUE);
+    codec.setConf(conf);
+    QatDirectDecompressor decompressor =
+        (QatDirectDecompressor) codec.createDirectDecompressor();
+    assertTrue(decompressor != null);
+    QatDispatcher dispatcher = QatDispatcher.decompression();
+    long hardwareRequests = dispatcher.getRequests(QatDispatcher.Route.HARDWARE);
+    long softwareRequests = dispatcher.getRequests(QatDispatcher.Route.SOFTWARE);
+    try {
+      directCompressDecompress(codec.createDirectCompressor(), decompressor,
+          64 * 1024);
+    } catch (IOException ex) {
+      fail("testQatCodecCreateDirectDecompressor ex !!!" + ex);
+    }
+    assertEquals(hardwareRequests,
+        dispatcher.getRequests(QatDispatcher.Route.HARDWARE));
+    assertEquals(softwareRequests + 1,
+        dispatcher.getRequests(QatDispatcher.Route.SOFTWARE));
+  }
+
+  private void directCompressDecompress(QatDirectCompressor compressor,
+      QatDirectDecompressor decompressor, int rawDataSize) throws IOException {
+    byte[] rawData = BytesGenerator.get(rawDataSize);
+    ByteBuffer src = ByteBuffer.allocateDirect(rawDataSize);
+    src.put(rawData);
+    src.flip();
+    // Start past the beginning to check that dst's position is honoured
+    ByteBuffer compressed = ByteBuffer.allocateDirect(rawDataSize * 2 + 64);
+    compressed.position(16);
+    int compressedSize = compressor.compress(src, compressed);
+    assertEquals(0, src.remaining());
+    assertEquals(16 + compressedSize, compressed.position());
+
+    compressed.flip();
+    compressed.position(16);
+    ByteBuffer uncompressed = ByteBuffer.allocateDirect(rawDataSize);
+    decompressor.decompress(compressed, uncompressed);
+    uncompressed.flip();
+    assertEquals(ByteBuffer.wrap(rawData), uncompressed);
+  }
+
   @Test
   public void testQatCompressorDecopressorLogicWithCompressionStreams() {
     int BYTE_SIZE = 1024 * 100;
@@ -413,4 +559,54 @@ public void doWork() throws Exception {
     ctx.waitFor(60000);
   }
 
+  private static byte[] compressWithLevel(byte[] bytes, int level)
+      throws IOException {
+    QatCompressor compressor = new QatCompressor(bytes.length * 2, false,
+        false, false, level);
+    assertEquals(level, compressor.getLevel());
+    compressor.setInput(bytes, 0, bytes.length);
+    compressor.finish();
+    byte[] compressed = new byte[bytes.length * 2];
+    int cSize = compressor.compress(compressed, 0, compressed.length);
+    byte[] result = new byte[cSize];
+    System.arraycopy(compressed, 0, result, 0, cSize);
+    return result;
+  }
+
+  @Test
+  public void testQatCompressorLevelsInMultiThreads() throws Exception {
+    final byte[] bytes = BytesGenerator.get(1024 * 64);
+    final byte[] expectedLow = compressWithLevel(bytes, 1);
+    final byte[] expectedHigh = compressWithLevel(bytes, 9);
+    // otherwise the checks below pass even if the level is ignored
+    assertFalse(Arrays.equals(expectedLow, expectedHigh));
+    MultithreadedTestUtil.TestContext ctx =
+        new MultithreadedTestUtil.TestContext();
+    for (int i = 0; i < 10; i++) {
+      ctx.addThread(new MultithreadedTestUtil.TestingThread(ctx) {
+
+        @Override
+        public void doWork() throws Exception {
+          // A level leaking from one compressor into another would change
+          // the compressed output of the interleaved calls.
+          for (int round = 0; round < 20; round++) {
+            byte[] low = compressWithLevel(bytes, 1);
+            byte[] high = compressWithLevel(bytes, 9);
+            Assert.assertArrayEquals(expectedLow, low);
+            Assert.assertArrayEquals(expectedHigh, high);
+
+            QatDecompressor decompressor = new QatDecompressor(bytes.length);
+            decompressor.setInput(high, 0, high.length);
+            byte[] decompressed = new byte[bytes.length];
+            decompressor.decompress(decompressed, 0, decompressed.length);
+            Assert.assertArrayEquals(bytes, decompressed);
+          }
+        }
+      });
+    }
+    ctx.startThreads();
+
+    ctx.waitFor(60000);
+  }
+
 }
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress.qat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.qat.QatDispatcher.Route;
+import org.apache.hadoop.io.compress.qat.QatDispatcher.Settings;
+import org.junit.Test;
+
+public class TestQatDispatcher {
+  private static final int LARGE =
+      QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_DEFAULT;
+
+  @Test
+  public void testRoutesBySize() {
+    QatDispatcher dispatcher = new QatDispatcher("test");
+    assertEquals(Route.SOFTWARE, dispatcher.route(LARGE, false, Settings.DEFAULT));
+    assertEquals(Route.SOFTWARE, dispatcher.route(LARGE - 1, true, Settings.DEFAULT));
+    assertEquals(Route.HARDWARE, dispatcher.route(LARGE, true, Settings.DEFAULT));
+  }
+
+  @Test
+  public void testRoutesByInFlight() {
+    QatDispatcher dispatcher = new QatDispatcher("test");
+    int max = QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_DEFAULT;
+    long[] starts = new long[max];
+    for (int i = 0; i < max; i++) {
+      starts[i] = dispatcher.start(Route.HARDWARE);
+    }
+    assertEquals(max, dispatcher.getInFlight());
+    assertEquals(Route.SOFTWARE, dispatcher.route(LARGE, true, Settings.DEFAULT));
+    dispatcher.finish(Route.HARDWARE, starts[0], LARGE, null);
+    assertEquals(Route.HARDWARE, dispatcher.route(LARGE, true, Settings.DEFAULT));
+  }
+
+  @Test
+  public void testRoutesByCost() {
+    QatDispatcher dispatcher = new QatDispatcher("test");
+    dispatcher.finish(Route.SOFTWARE, dispatcher.start(Route.SOFTWARE), LARGE,
+        null);
+    // a hardware request taking a second is slower than any software one
+    long start = dispatcher.start(Route.HARDWARE) - 1000L * 1000 * 1000;
+    dispatcher.finish(Route.HARDWARE, start, LARGE, null);
+
+    int hardware = 0;
+    for (int i = 0; i < QatDispatcher.PROBE_INTERVAL * 4; i++) {
+      if (dispatcher.route(LARGE, true, Settings.DEFAULT) == Route.HARDWARE) {
+        hardware++;
+      }
+    }
+    // only the probes go to the hardware
+    assertEquals(4, hardware);
+  }
+
+  @Test
+  public void testCounters() {
+    QatDispatcher dispatcher = new QatDispatcher("test");
+    dispatcher.finish(Route.SOFTWARE, dispatcher.start(Route.SOFTWARE), 100,
+        null);
+    dispatcher.finish(Route.HARDWARE, dispatcher.start(Route.HARDWARE), LARGE,
+        null);
+    dispatcher.finish(Route.HARDWARE, dispatcher.start(Route.HARDWARE), LARGE,
+        null);
+    assertEquals(1, dispatcher.getRequests(Route.SOFTWARE));
+    assertEquals(100, dispatcher.getBytes(Route.SOFTWARE));
+    assertEquals(2, dispatcher.getRequests(Route.HARDWARE));
+    assertEquals(2L * LARGE, dispatcher.getBytes(Route.HARDWARE));
+    assertEquals(0, dispatcher.getInFlight());
+    assertEquals(0, dispatcher.getHardwareFailures());
+  }
+
+  @Test
+  public void testSettingsArePerCaller() {
+    QatDispatcher dispatcher = new QatDispatcher("test");
+    Configuration conf = new Configuration();
+    conf.setInt(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MIN_HARDWARE_SIZE_KEY,
+        1024);
+    conf.setInt(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_DISPATCH_MAX_IN_FLIGHT_KEY, 1);
+    Settings small = Settings.fromConf(conf);
+    Settings large = new Settings(64 * 1024, 0);
+    assertEquals(Route.HARDWARE, dispatcher.route(1024, true, small));
+    assertEquals(Route.SOFTWARE, dispatcher.route(1024, true, large));
+    long start = dispatcher.start(Route.HARDWARE);
+    assertEquals(Route.SOFTWARE, dispatcher.route(64 * 1024, true, small));
+    assertEquals(Route.HARDWARE, dispatcher.route(64 * 1024, true, large));
+    dispatcher.finish(Route.HARDWARE, start, 64 * 1024, null);
+  }
+
+  @Test
+  public void testAbandonDoesNotBackOff() {
+    QatDispatcher dispatcher = new QatDispatcher("test");
+    dispatcher.start(Route.HARDWARE);
+    dispatcher.abandon(Route.HARDWARE);
+    assertEquals(0, dispatcher.getInFlight());
+    assertEquals(0, dispatcher.getHardwareFailures());
+    assertEquals(0, dispatcher.getRequests(Route.HARDWARE));
+    assertEquals(Route.HARDWARE, dispatcher.route(LARGE, true, Settings.DEFAULT));
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress.qat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class TestQatSoftwareEngine {
+
+  private static byte[] generate(int size) {
+    Random rnd = new Random(12345L);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) rnd.nextInt(16);
+    }
+    return data;
+  }
+
+  @Test
+  public void testCompressDecompress() throws IOException {
+    QatSoftwareEngine engine = new QatSoftwareEngine(1);
+    for (int size : new int[] {0, 1, 4096, QatSoftwareEngine.MEMBER_SIZE,
+        3 * QatSoftwareEngine.MEMBER_SIZE + 17}) {
+      byte[] raw = generate(size);
+      byte[] compressed = new byte[QatSoftwareEngine.maxCompressedLength(size)];
+      int compressedLen = engine.compress(raw, 0, size, compressed, 0,
+          compressed.length);
+      byte[] uncompressed = new byte[size];
+      assertEquals(size, engine.decompress(compressed, 0, compressedLen,
+          uncompressed, 0, size));
+      assertArrayEquals(raw, uncompressed);
+    }
+    engine.end();
+  }
+
+  @Test
+  public void testIncompressibleFitsBound() throws IOException {
+    QatSoftwareEngine engine = new QatSoftwareEngine(9);
+    byte[] raw = new byte[256 * 1024];
+    new Random(1L).nextBytes(raw);
+    byte[] compressed = new byte[QatSoftwareEngine.maxCompressedLength(raw.length)];
+    int compressedLen = engine.compress(raw, 0, raw.length, compressed, 0,
+        compressed.length);
+    byte[] uncompressed = new byte[raw.length];
+    engine.decompress(compressed, 0, compressedLen, uncompressed, 0,
+        uncompressed.length);
+    assertArrayEquals(raw, uncompressed);
+    engine.end();
+  }
+
+  @Test
+  public void testGzipCompatible() throws IOException {
+    QatSoftwareEngine engine = new QatSoftwareEngine(1);
+    byte[] raw = generate(200 * 1024);
+    byte[] compressed = new byte[QatSoftwareEngine.maxCompressedLength(raw.length)];
+    int compressedLen = engine.compress(raw, 0, raw.length, compressed, 0,
+        compressed.length);
+
+    GZIPInputStream in = new GZIPInputStream(
+        new ByteArrayInputStream(compressed, 0, compressedLen));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    assertArrayEquals(raw, out.toByteArray());
+
+    // concatenated members from another gzip writer
+    out.reset();
+    for (int i = 0; i < 2; i++) {
+      GZIPOutputStream gz = new GZIPOutputStream(out);
+      gz.write(raw, i * 1000, 1000);
+      gz.close();
+    }
+    byte[] uncompressed = new byte[2000];
+    assertEquals(2000, engine.decompress(out.toByteArray(), 0, out.size(),
+        uncompressed, 0, uncompressed.length));
+    assertArrayEquals(Arrays.copyOf(raw, 2000), uncompressed);
+    engine.end();
+  }
+
+  @Test
+  public void testCorruptInput() throws IOException {
+    QatSoftwareEngine engine = new QatSoftwareEngine(1);
+    byte[] raw = generate(8192);
+    byte[] compressed = new byte[QatSoftwareEngine.maxCompressedLength(raw.length)];
+    int compressedLen = engine.compress(raw, 0, raw.length, compressed, 0,
+        compressed.length);
+    byte[] uncompressed = new byte[raw.length];
+    try {
+      engine.decompress(compressed, 0, compressedLen - 1, uncompressed, 0,
+          uncompressed.length);
+      fail("truncated input should fail");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      engine.decompress(compressed, 0, compressedLen, uncompressed, 0,
+          uncompressed.length - 1);
+      fail("short output should fail");
+    } catch (IOException e) {
+      // expected
+    }
+    compressed[compressedLen - 8] ^= 1;
+    try {
+      engine.decompress(compressed, 0, compressedLen, uncompressed, 0,
+          uncompressed.length);
+      fail("checksum mismatch should fail");
+    } catch (IOException e) {
+      // expected
+    }
+    engine.end();
+  }
+
+  @Test
+  public void testCompressorWithoutHardware() throws IOException {
+    // fallback makes the compressor usable whether or not QAT is present
+    QatCompressor compressor = new QatCompressor(64 * 1024);
+    QatDecompressor decompressor = new QatDecompressor(64 * 1024);
+    byte[] raw = generate(32 * 1024);
+    compressor.setInput(raw, 0, raw.length);
+    compressor.finish();
+    byte[] compressed = new byte[64 * 1024];
+    int compressedLen = 0;
+    while (!compressor.finished()) {
+      compressedLen += compressor.compress(compressed, compressedLen,
+          compressed.length - compressedLen);
+    }
+    decompressor.setInput(compressed, 0, compressedLen);
+    byte[] uncompressed = new byte[raw.length];
+    int n = 0;
+    while (n < raw.length && !decompressor.finished()) {
+      n += decompressor.decompress(uncompressed, n, raw.length - n);
+    }
+    assertArrayEquals(raw, uncompressed);
+  }
+
+  @Test
+  public void testDecompressArrayWithoutHardware() throws IOException {
+    QatCompressor compressor = new QatCompressor(64 * 1024);
+    QatDecompressor decompressor = new QatDecompressor(64 * 1024);
+    byte[] raw = generate(32 * 1024);
+    compressor.setInput(raw, 0, raw.length);
+    compressor.finish();
+    byte[] compressed = new byte[64 * 1024];
+    int compressedLen = 0;
+    while (!compressor.finished()) {
+      compressedLen += compressor.compress(compressed, compressedLen,
+          compressed.length - compressedLen);
+    }
+    ByteBuffer src = decompressor.compressedBuffer();
+    src.put(compressed, 0, compressedLen);
+    src.flip();
+    byte[] uncompressed = new byte[raw.length + 7];
+    assertEquals(raw.length,
+        decompressor.decompressArray(src, uncompressed, 7, raw.length));
+    assertEquals(0, src.remaining());
+    assertArrayEquals(raw, Arrays.copyOfRange(uncompressed, 7, uncompressed.length));
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.qat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.QatCodec;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.io.compress.SplittableQatCodec;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+import org.apache.hadoop.util.LineReader;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQatSyncBlockCompression {
+  private Configuration conf;
+  private SplittableQatCodec codec;
+  private FileSystem fs;
+  private Path file;
+
+  @Before
+  public void before() throws IOException {
+    conf = new Configuration();
+    // without the native qat library this runs in software
+    conf.setBoolean(
+        QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_SOFTWARE_FALLBACK_KEY, true);
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY, 4096);
+    codec = new SplittableQatCodec();
+    codec.setConf(conf);
+    fs = FileSystem.getLocal(conf);
+    file = new Path(System.getProperty("test.build.data", "target/test-data"),
+        "TestQatSyncBlockCompression.sqat");
+  }
+
+  private List<String> writeLines(int count) throws IOException {
+    return writeLines(codec, count);
+  }
+
+  private List<String> writeLines(QatCodec codec, int count) throws IOException {
+    Random random = new Random(12345);
+    List<String> lines = new ArrayList<String>();
+    OutputStream out = codec.createOutputStream(fs.create(file, true));
+    for (int i = 0; i < count; i++) {
+      StringBuilder line = new StringBuilder("line " + i + " ");
+      // some lines span several blocks
+      int length = random.nextInt(10) == 0 ? random.nextInt(10000) : random.nextInt(100);
+      for (int j = 0; j < length; j++) {
+        line.append((char) ('a' + random.nextInt(26)));
+      }
+      lines.add(line.toString());
+      out.write((line + "\n").getBytes("UTF-8"));
+    }
+    out.close();
+    return lines;
+  }
+
+  /**
+   * Reads the records of a split the way LineRecordReader does.
+   */
+  private List<String> readSplit(long start, long end) throws IOException {
+    FSDataInputStream in = fs.open(file);
+    SplitCompressionInputStream split = codec.createInputStream(in,
+        codec.createDecompressor(), start, end,
+        SplittableCompressionCodec.READ_MODE.BYBLOCK);
+    LineReader reader = new LineReader(split);
+    List<String> lines = new ArrayList<String>();
+    Text line = new Text();
+    if (start != 0) {
+      reader.readLine(line);
+    }
+    while (split.getPos() <= end && reader.readLine(line) > 0) {
+      lines.add(line.toString());
+    }
+    reader.close();
+    return lines;
+  }
+
+  @Test
+  public void testQatSyncBlockCompressDecompress() throws IOException {
+    List<String> lines = writeLines(1000);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (String line : lines) {
+      expected.write((line + "\n").getBytes("UTF-8"));
+    }
+    InputStream in = codec.createInputStream(fs.open(file));
+    assertTrue(in instanceof QatSyncBlockDecompressorStream);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      actual.write(buffer, 0, n);
+    }
+    in.close();
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void testQatSyncBlockSplits() throws IOException {
+    List<String> lines = writeLines(1000);
+    long length = fs.getFileStatus(file).getLen();
+    for (long splitSize : new long[] {100, 4095, 4096, 10000, length}) {
+      List<String> actual = new ArrayList<String>();
+      for (long start = 0; start < length; start += splitSize) {
+        actual.addAll(readSplit(start, Math.min(start + splitSize, length)));
+      }
+      assertEquals("split size " + splitSize, lines, actual);
+    }
+  }
+
+  @Test
+  public void testQatBlockCompressedFileReadByFirstSplit() throws IOException {
+    QatCodec blockCodec = new QatCodec();
+    blockCodec.setConf(conf);
+    List<String> lines = writeLines(blockCodec, 100);
+    CompressionInputStream in = codec.createInputStream(fs.open(file));
+    assertTrue(!(in instanceof QatSyncBlockDecompressorStream));
+    in.close();
+    long length = fs.getFileStatus(file).getLen();
+    assertEquals(lines, readSplit(0, length / 2));
+    assertTrue(readSplit(length / 2, length).isEmpty());
+  }
+
+  @Test
+  public void testQatCodecIsNotSplittable() {
+    // FileInputFormat would split every existing .qat file otherwise
+    QatCodec blockCodec = new QatCodec();
+    assertFalse(blockCodec instanceof SplittableCompressionCodec);
+    assertEquals(".qat", blockCodec.getDefaultExtension());
+    assertEquals(".sqat", codec.getDefaultExtension());
+  }
+
+  @Test
+  public void testSplittableQatCodecIgnoresParallelBlocks() throws IOException {
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY, 4);
+    List<String> lines = writeLines(100);
+    CompressionInputStream in = codec.createInputStream(fs.open(file));
+    assertTrue(in instanceof QatSyncBlockDecompressorStream);
+    in.close();
+    long length = fs.getFileStatus(file).getLen();
+    assertEquals(lines, readSplit(0, length));
+  }
+}
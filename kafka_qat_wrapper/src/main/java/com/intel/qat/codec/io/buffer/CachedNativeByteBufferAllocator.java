@@ -19,95 +19,321 @@
 package com.intel.qat.codec.io.buffer;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.intel.qat.codec.io.conf.KafkaQatConfig;
 import com.intel.qat.codec.io.jni.QatNative;
 
 /**
  * Cached implementation of ByteBuffer, which tries to create from native
  * allocation if specified and falls back direct byte buffer for any failures.
+ *
+ * Buffers are cached per size class, alignment and memory kind in lock-free
+ * free lists, so a request is only served by a buffer of at least the
+ * requested size and of the requested kind. Sizes are rounded up to a
+ * multiple of 4 KB.
+ *
+ * The most recently released buffer is reused first. Buffers idle in the cache
+ * for longer than kafka.qat.buffer-pool.idle-timeout-ms are evicted, and the
+ * cached bytes are capped by kafka.qat.buffer-pool.max-bytes. Evicted native
+ * buffers are freed right away, direct buffers are left to the GC.
  */
 public final class CachedNativeByteBufferAllocator implements BufferAllocator {
   private static final Logger LOG = LoggerFactory
       .getLogger(CachedNativeByteBufferAllocator.class);
-  private static BufferAllocator instance;
-  private final Deque<ByteBuffer> bufferQueue;
+  private static volatile CachedNativeByteBufferAllocator instance;
+
+  static final int SIZE_CLASS_GRANULARITY = 4096;
+
+  private static final int DIRECT = 0;
+  private static final int NATIVE = 1;
+  // qzMalloc kinds, combined with the NUMA and force-pinned flags
+  private static final int QZ_MALLOC = 2;
+  private static final int QZ_MALLOC_NUMA = 1;
+  private static final int QZ_MALLOC_PINNED = 2;
+
+  private final ConcurrentHashMap<Key, ConcurrentLinkedDeque<Entry>> freeLists;
+  // Requested key and actual memory kind of every buffer handed out for a
+  // native request, by identity. Direct buffers are keyed by capacity alone.
+  private final ConcurrentHashMap<IdentityKey, Owner> owners;
+  private final long maxCachedBytes;
+  private final long idleTimeoutNanos;
+  private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+  private final AtomicLong liveBytes = new AtomicLong();
+  private final AtomicLong cachedBytes = new AtomicLong();
+  private final AtomicLong pinnedBytes = new AtomicLong();
 
-  public static BufferAllocator get() {
+  public static CachedNativeByteBufferAllocator get() {
     if (instance == null) {
       synchronized (CachedNativeByteBufferAllocator.class) {
         if (instance == null) {
-          instance = new CachedNativeByteBufferAllocator();
+          KafkaQatConfig config = KafkaQatConfig.get();
+          instance = new CachedNativeByteBufferAllocator(
+              config.getBufferPoolMaxBytes(),
+              config.getBufferPoolIdleTimeoutMs());
         }
       }
     }
     return instance;
   }
 
-  private CachedNativeByteBufferAllocator() {
-    this.bufferQueue = new ArrayDeque<ByteBuffer>();
+  CachedNativeByteBufferAllocator(long maxCachedBytes, long idleTimeoutMs) {
+    this.freeLists = new ConcurrentHashMap<Key, ConcurrentLinkedDeque<Entry>>();
+    this.owners = new ConcurrentHashMap<IdentityKey, Owner>();
+    this.maxCachedBytes = maxCachedBytes;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
   }
 
   @Override
   public ByteBuffer allocate(int size, int align, boolean useNative,
       boolean nativeBBUseQzMalloc, boolean nativeBBUseNuma,
       boolean nativeBBUseForcePinned) {
-    synchronized (this) {
-      if (bufferQueue.isEmpty()) {
-        return getInstance(size, align, useNative, nativeBBUseQzMalloc,
-            nativeBBUseNuma, nativeBBUseForcePinned);
-      } else {
-        return bufferQueue.pollFirst();
-      }
+    int capacity = sizeClass(size);
+    int kind = DIRECT;
+    if (useNative) {
+      kind = nativeBBUseQzMalloc
+          ? qzMallocKind(nativeBBUseNuma, nativeBBUseForcePinned) : NATIVE;
     }
+    Key key = new Key(capacity, kind == DIRECT ? 0 : align, kind);
+    ConcurrentLinkedDeque<Entry> freeList = freeLists.get(key);
+    Entry entry = freeList == null ? null : freeList.pollFirst();
+    if (entry != null) {
+      cachedBytes.addAndGet(-capacity);
+      return entry.buffer;
+    }
+    return getInstance(key, nativeBBUseNuma, nativeBBUseForcePinned);
   }
 
   /**
    * Creates ByteBuffer instance from native or direct byte buffer based on the
-   * configuration.
+   * key. A buffer which falls back to another memory kind is still cached
+   * under the requested key.
    *
-   * @param size
-   * @param align
-   * @param useNative
-   * @param nativeBBUseForcePinned
+   * @param key
    * @param nativeBBUseNuma
-   * @param nativeBBUseQzMalloc
+   * @param nativeBBUseForcePinned
    * @return
    */
-  private ByteBuffer getInstance(int size, int align, boolean useNative,
-      boolean nativeBBUseQzMalloc, boolean nativeBBUseNuma,
+  private ByteBuffer getInstance(Key key, boolean nativeBBUseNuma,
       boolean nativeBBUseForcePinned) {
-    if (useNative) {
+    int capacity = key.capacity;
+    liveBytes.addAndGet(capacity);
+    if (key.kind >= QZ_MALLOC) {
       try {
-        if (nativeBBUseQzMalloc) {
-          try {
-            return (ByteBuffer) QatNative.qzMalloc(size, nativeBBUseNuma,
-                nativeBBUseForcePinned);
-          } catch (Throwable e) {
-            LOG.warn("Failed to create native byte buffer using qzMalloc,"
-                + " falling back to creating native byte buffer without qzMalloc.", e);
-          }
+        ByteBuffer buffer = (ByteBuffer) QatNative.qzMalloc(capacity,
+            nativeBBUseNuma, nativeBBUseForcePinned);
+        if (nativeBBUseForcePinned) {
+          pinnedBytes.addAndGet(capacity);
         }
-        return (ByteBuffer) QatNative.allocNativeBuffer(size, align);
+        return track(buffer, key, key.kind);
+      } catch (Throwable e) {
+        LOG.warn("Failed to create native byte buffer using qzMalloc,"
+            + " falling back to creating native byte buffer without qzMalloc.", e);
+      }
+    }
+    if (key.kind != DIRECT) {
+      try {
+        return track((ByteBuffer) QatNative.allocNativeBuffer(capacity,
+            key.align), key, NATIVE);
       } catch (Throwable e) {
         LOG.warn("Failed to create native byte buffer, "
             + "falling back to creating direct byte buffer.", e);
-        return ByteBuffer.allocateDirect(size);
+        return track(ByteBuffer.allocateDirect(capacity), key, DIRECT);
       }
-    } else {
-      return ByteBuffer.allocateDirect(size);
     }
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  private ByteBuffer track(ByteBuffer buffer, Key key, int kind) {
+    owners.put(new IdentityKey(buffer), new Owner(key, kind));
+    return buffer;
   }
 
   @Override
   public void release(ByteBuffer buffer) {
     buffer.clear();
-    synchronized (this) {
-      bufferQueue.addLast(buffer);
+    Owner owner = owners.get(new IdentityKey(buffer));
+    Key key = owner == null ? new Key(buffer.capacity(), 0, DIRECT) : owner.key;
+    long now = System.nanoTime();
+    if (cachedBytes.addAndGet(buffer.capacity()) > maxCachedBytes) {
+      cachedBytes.addAndGet(-buffer.capacity());
+      free(buffer);
+    } else {
+      ConcurrentLinkedDeque<Entry> freeList = freeLists.get(key);
+      if (freeList == null) {
+        ConcurrentLinkedDeque<Entry> created = new ConcurrentLinkedDeque<Entry>();
+        freeList = freeLists.putIfAbsent(key, created);
+        if (freeList == null) {
+          freeList = created;
+        }
+      }
+      freeList.offerFirst(new Entry(buffer, now));
+    }
+    evictIdle(now);
+  }
+
+  /**
+   * Returns the bytes allocated and not yet freed, whether in use or cached.
+   *
+   * @return - live bytes
+   */
+  public long getLiveBytes() {
+    return liveBytes.get();
+  }
+
+  /**
+   * Returns the bytes held in the cache.
+   *
+   * @return - cached bytes
+   */
+  public long getCachedBytes() {
+    return cachedBytes.get();
+  }
+
+  /**
+   * Returns the live bytes allocated with force-pinned qzMalloc.
+   *
+   * @return - pinned bytes
+   */
+  public long getPinnedBytes() {
+    return pinnedBytes.get();
+  }
+
+  /**
+   * Frees the buffers idle for longer than the idle timeout. Runs at most once
+   * per half timeout, on the thread whose release finds it due. The oldest
+   * buffers are at the tail of the free lists.
+   */
+  private void evictIdle(long now) {
+    long last = lastEviction.get();
+    if (now - last < idleTimeoutNanos / 2
+        || !lastEviction.compareAndSet(last, now)) {
+      return;
+    }
+    for (Map.Entry<Key, ConcurrentLinkedDeque<Entry>> freeList
+        : freeLists.entrySet()) {
+      Entry oldest;
+      while ((oldest = freeList.getValue().peekLast()) != null
+          && now - oldest.releasedAt > idleTimeoutNanos
+          && freeList.getValue().removeLastOccurrence(oldest)) {
+        cachedBytes.addAndGet(-oldest.buffer.capacity());
+        free(oldest.buffer);
+      }
+    }
+  }
+
+  private void free(ByteBuffer buffer) {
+    liveBytes.addAndGet(-buffer.capacity());
+    Owner owner = owners.remove(new IdentityKey(buffer));
+    if (owner == null || owner.kind == DIRECT) {
+      return;
+    }
+    if (owner.kind == NATIVE) {
+      QatNative.freeNativeBuffer(buffer);
+    } else {
+      if (((owner.kind - QZ_MALLOC) & QZ_MALLOC_PINNED) != 0) {
+        pinnedBytes.addAndGet(-buffer.capacity());
+      }
+      QatNative.qzFree(buffer);
+    }
+  }
+
+  private static int qzMallocKind(boolean nativeBBUseNuma,
+      boolean nativeBBUseForcePinned) {
+    return QZ_MALLOC + (nativeBBUseNuma ? QZ_MALLOC_NUMA : 0)
+        + (nativeBBUseForcePinned ? QZ_MALLOC_PINNED : 0);
+  }
+
+  /**
+   * Rounds the size up to its size class.
+   *
+   * @param size - requested size
+   * @return - capacity of the size class
+   */
+  static int sizeClass(int size) {
+    if (size < 0 || size > Integer.MAX_VALUE - SIZE_CLASS_GRANULARITY) {
+      throw new IllegalArgumentException("Unsupported buffer size " + size);
+    }
+    int rounded = (size + SIZE_CLASS_GRANULARITY - 1)
+        & -SIZE_CLASS_GRANULARITY;
+    return Math.max(rounded, SIZE_CLASS_GRANULARITY);
+  }
+
+  private static final class Key {
+    final int capacity;
+    final int align;
+    final int kind;
+
+    Key(int capacity, int align, int kind) {
+      this.capacity = capacity;
+      this.align = align;
+      this.kind = kind;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return capacity == key.capacity && align == key.align
+          && kind == key.kind;
+    }
+
+    @Override
+    public int hashCode() {
+      return (capacity * 31 + align) * 31 + kind;
+    }
+  }
+
+  private static final class Owner {
+    final Key key;
+    final int kind;
+
+    Owner(Key key, int kind) {
+      this.key = key;
+      this.kind = kind;
+    }
+  }
+
+  private static final class Entry {
+    final ByteBuffer buffer;
+    final long releasedAt;
+
+    Entry(ByteBuffer buffer, long releasedAt) {
+      this.buffer = buffer;
+      this.releasedAt = releasedAt;
+    }
+  }
+
+  /**
+   * Identity wrapper, as ByteBuffer equals and hashCode depend on the buffer
+   * content.
+   */
+  private static final class IdentityKey {
+    private final ByteBuffer buffer;
+
+    IdentityKey(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof IdentityKey
+          && ((IdentityKey) other).buffer == buffer;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(buffer);
     }
   }
 }
@@ -34,6 +34,7 @@
  * kafka.qat.compression.native-bb.useQzMalloc
  * kafka.qat.compression.native-bb.useNuma
  * kafka.qat.compression.native-bb.useForcePinned
+ * kafka.qat.compression.parallelism
  *
  * kafka.qat.decompression.compression-buffer.size
  * kafka.qat.decompression.compression-buffer.size
@@ -42,6 +43,9 @@
  * kafka.qat.decompression.native-bb.useQzMalloc
  * kafka.qat.decompression.native-bb.useNuma
  * kafka.qat.decompression.native-bb.useForcePinned
+ *
+ * kafka.qat.buffer-pool.max-bytes
+ * kafka.qat.buffer-pool.idle-timeout-ms
  */
 public final class KafkaQatConfig {
 
@@ -56,6 +60,7 @@ public final class KafkaQatConfig {
   private boolean compressNativeBBUseQzMalloc = DEFAULT_COMPRESS_NATIVE_BB_USE_QZMALLOC_VALUE;
   private boolean compressNativeBBUseNuma = DEFAULT_COMPRESS_NATIVE_BB_USE_NUMA_VALUE;
   private boolean compressNativeBBUseForcePinned = DEFAULT_COMPRESS_NATIVE_BB_USE_FORCEPINNED_VALUE;
+  private int compressParallelism = DEFAULT_COMPRESS_PARALLELISM_VALUE;
 
   private int decompressCompressionBufferSize = DEFAULT_DECOMPRESS_COMPRESSION_BUFFER_SIZE_VALUE;
   private int decompressDecompressionBufferSize = DEFAULT_DECOMPRESS_DECOMPRESSION_BUFFER_SIZE_VALUE;
@@ -65,6 +70,9 @@ public final class KafkaQatConfig {
   private boolean decompressNativeBBUseNuma = DEFAULT_DECOMPRESS_NATIVE_BB_USE_NUMA_VALUE;
   private boolean decompressNativeBBUseForcePinned = DEFAULT_DECOMPRESS_NATIVE_BB_USE_FORCEPINNED_VALUE;
 
+  private long bufferPoolMaxBytes = DEFAULT_BUFFER_POOL_MAX_BYTES_VALUE;
+  private long bufferPoolIdleTimeoutMs = DEFAULT_BUFFER_POOL_IDLE_TIMEOUT_MS_VALUE;
+
   private static final String COMPRESSION_LEVEL_KEY = "kafka.qat.compression-level";
   private static final int DEFAULT_COMPRESSION_LEVEL_VALUE = 1;
 
@@ -89,6 +97,9 @@ public final class KafkaQatConfig {
   private static final String COMPRESS_NATIVE_BB_USE_FORCEPINNED_KEY = "kafka.qat.compression.native-bb.useForcePinned";
   private static final boolean DEFAULT_COMPRESS_NATIVE_BB_USE_FORCEPINNED_VALUE = true;
 
+  private static final String COMPRESS_PARALLELISM_KEY = "kafka.qat.compression.parallelism";
+  private static final int DEFAULT_COMPRESS_PARALLELISM_VALUE = 1;
+
   private static final String DECOMPRESS_COMPRESSION_BUFFER_SIZE_KEY = "kafka.qat.decompression.compression-buffer.size";
   private static final int DEFAULT_DECOMPRESS_COMPRESSION_BUFFER_SIZE_VALUE = 32
       * 1024;
@@ -110,6 +121,14 @@ public final class KafkaQatConfig {
   private static final String DECOMPRESS_NATIVE_BB_USE_FORCEPINNED_KEY = "kafka.qat.decompression.native-bb.useForcePinned";
   private static final boolean DEFAULT_DECOMPRESS_NATIVE_BB_USE_FORCEPINNED_VALUE = true;
 
+  private static final String BUFFER_POOL_MAX_BYTES_KEY = "kafka.qat.buffer-pool.max-bytes";
+  private static final long DEFAULT_BUFFER_POOL_MAX_BYTES_VALUE = 64L * 1024
+      * 1024;
+
+  private static final String BUFFER_POOL_IDLE_TIMEOUT_MS_KEY = "kafka.qat.buffer-pool.idle-timeout-ms";
+  private static final long DEFAULT_BUFFER_POOL_IDLE_TIMEOUT_MS_VALUE = 60
+      * 1000L;
+
   static {
     instance = new KafkaQatConfig();
     try {
@@ -173,6 +192,11 @@ private void loadConfig() throws IOException {
             prop.get(COMPRESS_NATIVE_BB_USE_FORCEPINNED_KEY).toString().trim());
       }
 
+      if (prop.get(COMPRESS_PARALLELISM_KEY) != null) {
+        compressParallelism = Integer
+            .parseInt(prop.get(COMPRESS_PARALLELISM_KEY).toString().trim());
+      }
+
       if (prop.get(DECOMPRESS_COMPRESSION_BUFFER_SIZE_KEY) != null) {
         decompressCompressionBufferSize = Integer.parseInt(
             prop.get(DECOMPRESS_COMPRESSION_BUFFER_SIZE_KEY).toString().trim());
@@ -207,6 +231,16 @@ private void loadConfig() throws IOException {
         decompressNativeBBUseForcePinned = Boolean.parseBoolean(prop
             .get(DECOMPRESS_NATIVE_BB_USE_FORCEPINNED_KEY).toString().trim());
       }
+
+      if (prop.get(BUFFER_POOL_MAX_BYTES_KEY) != null) {
+        bufferPoolMaxBytes = Long
+            .parseLong(prop.get(BUFFER_POOL_MAX_BYTES_KEY).toString().trim());
+      }
+
+      if (prop.get(BUFFER_POOL_IDLE_TIMEOUT_MS_KEY) != null) {
+        bufferPoolIdleTimeoutMs = Long.parseLong(
+            prop.get(BUFFER_POOL_IDLE_TIMEOUT_MS_KEY).toString().trim());
+      }
     }
   }
 
@@ -242,6 +276,10 @@ public boolean isCompressNativeBBUseForcePinned() {
     return compressNativeBBUseForcePinned;
   }
 
+  public int getCompressParallelism() {
+    return compressParallelism;
+  }
+
   public int getDecompressCompressionBufferSize() {
     return decompressCompressionBufferSize;
   }
@@ -273,4 +311,12 @@ public boolean isDecompressNativeBBUseNuma() {
   public boolean isDecompressNativeBBUseForcePinned() {
     return decompressNativeBBUseForcePinned;
   }
+
+  public long getBufferPoolMaxBytes() {
+    return bufferPoolMaxBytes;
+  }
+
+  public long getBufferPoolIdleTimeoutMs() {
+    return bufferPoolIdleTimeoutMs;
+  }
 }
@@ -81,6 +81,24 @@ private QatNative() {
   public static native Object qzMalloc(long capacity, boolean numa,
       boolean forcePinned);
 
+  /**
+   * Frees a ByteBuffer allocated by qzMalloc. The buffer must not be used
+   * afterwards.
+   *
+   * @param buffer
+   *          - ByteBuffer returned by qzMalloc
+   */
+  public static native void qzFree(ByteBuffer buffer);
+
+  /**
+   * Frees a ByteBuffer allocated by allocNativeBuffer. The buffer must not be
+   * used afterwards.
+   *
+   * @param buffer
+   *          - ByteBuffer returned by allocNativeBuffer
+   */
+  public static native void freeNativeBuffer(ByteBuffer buffer);
+
   /**
    * Creates the compress context.
    *
@@ -119,4 +137,19 @@ public static native int compress(long context, ByteBuffer srcBuffer,
    */
   public static native int decompress(ByteBuffer srcBuffer, int srcOff,
       int srcLen, ByteBuffer destBuffer, int destOff, int destLen);
+
+  /**
+   * Uncompresses the data from the srcBuffer into a byte array, for
+   * decompression buffers on the heap.
+   *
+   * @param srcBuffer
+   * @param srcOff
+   * @param srcLen
+   * @param dest
+   * @param destOff
+   * @param destLen
+   * @return Uncompressed data length.
+   */
+  public static native int decompressToArray(ByteBuffer srcBuffer, int srcOff,
+      int srcLen, byte[] dest, int destOff, int destLen);
 }
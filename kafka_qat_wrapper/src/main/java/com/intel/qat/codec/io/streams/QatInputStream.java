@@ -31,13 +31,22 @@
 import com.intel.qat.codec.io.exception.QatIOException;
 import com.intel.qat.codec.io.jni.QatNative;
 import com.intel.qat.codec.io.util.QatCodec;
+import org.apache.kafka.common.record.BufferSupplier;
 
 /**
  * QatInputStream reads compressed data from the input stream and uncompresses
  * the data as blocks.
+ *
+ * Created on a ByteBuffer, blocks are decompressed straight from the buffer
+ * when it is direct, and copied once per block into a direct buffer when it is
+ * on the heap. The decompressed block buffer is then taken from the Kafka
+ * BufferSupplier if one is given.
  */
 public class QatInputStream extends InputStream {
   private InputStream in;
+  // the compressed batch when reading from a ByteBuffer, otherwise null
+  private ByteBuffer source;
+  private BufferSupplier bufferSupplier;
 
   private byte[] header = new byte[QatCodec.headerSize()];
 
@@ -53,7 +62,26 @@ public class QatInputStream extends InputStream {
   private BufferAllocator allocator = CachedNativeByteBufferAllocator.get();
 
   public QatInputStream(InputStream in) throws IOException {
+    this(in, null, null);
+  }
+
+  /**
+   * Creates the stream on a compressed batch, from its position to its limit.
+   *
+   * @param source - compressed data, consumed as it is read
+   * @param bufferSupplier - supplier of the decompressed block buffer, or null
+   * @throws IOException - if the header is invalid
+   */
+  public QatInputStream(ByteBuffer source, BufferSupplier bufferSupplier)
+      throws IOException {
+    this(null, source, bufferSupplier);
+  }
+
+  private QatInputStream(InputStream in, ByteBuffer source,
+      BufferSupplier bufferSupplier) throws IOException {
     this.in = in;
+    this.source = source;
+    this.bufferSupplier = bufferSupplier;
     KafkaQatConfig conf = KafkaQatConfig.get();
     this.uncompressedBlockSize = conf.getDecompressDecompressionBufferSize();
     this.compressedBlockSize = conf.getDecompressCompressionBufferSize();
@@ -69,19 +97,28 @@ public QatInputStream(InputStream in) throws IOException {
     boolean decompressNativeBBUseForcePinned = conf
         .isDecompressNativeBBUseForcePinned();
 
-    this.uncompressedBuffer = allocator.allocate(uncompressedBlockSize,
-        conf.getDecompressAlignSize(), conf.isDecompressUseNativeBuffer(),
-        compressNativeBBUseQzMalloc, compressNativeBBUseNuma,
-        compressNativeBBUseForcePinned);
-    this.compressedBuffer = allocator.allocate(compressedBlockSize,
-        conf.getDecompressAlignSize(), conf.isDecompressUseNativeBuffer(),
-        decompressNativeBBUseQzMalloc, decompressNativeBBUseNuma,
-        decompressNativeBBUseForcePinned);
+    if (bufferSupplier != null) {
+      this.uncompressedBuffer = bufferSupplier.get(uncompressedBlockSize);
+    } else {
+      this.uncompressedBuffer = allocator.allocate(uncompressedBlockSize,
+          conf.getDecompressAlignSize(), conf.isDecompressUseNativeBuffer(),
+          compressNativeBBUseQzMalloc, compressNativeBBUseNuma,
+          compressNativeBBUseForcePinned);
+    }
+    // a direct source is decompressed in place
+    if (source == null || !source.isDirect()) {
+      this.compressedBuffer = allocator.allocate(compressedBlockSize,
+          conf.getDecompressAlignSize(), conf.isDecompressUseNativeBuffer(),
+          decompressNativeBBUseQzMalloc, decompressNativeBBUseNuma,
+          decompressNativeBBUseForcePinned);
+    }
 
     uncompressedBufferPosition = originalLen = 0;
     closed = false;
     eof = false;
-    tempBuffer = new byte[compressedBlockSize];
+    if (source == null) {
+      tempBuffer = new byte[compressedBlockSize];
+    }
 
     readHeader();
   }
@@ -152,7 +189,7 @@ private void decompressData() throws IOException {
     int compressedLen = 0;
     try {
       byte[] length = new byte[4];
-      if (in.read(length) != 4) {
+      if (readBytes(length, 0, 4) != 4) {
         eof = true;
         return;
       }
@@ -161,15 +198,32 @@ private void decompressData() throws IOException {
       eof = true;
       return;
     }
-    if (compressedBuffer.capacity() < compressedLen) {
-      throw new IOException(
-          "Input Stream is corrupted, compressed length large than "
-              + compressedBlockSize);
+    ByteBuffer src = compressedBuffer;
+    int srcOff = 0;
+    if (source != null && source.isDirect()) {
+      if (source.remaining() < compressedLen) {
+        throw new EOFException("Unexpected end of block in input stream");
+      }
+      src = source;
+      srcOff = source.position();
+      source.position(srcOff + compressedLen);
+    } else {
+      if (compressedBuffer.capacity() < compressedLen) {
+        throw new IOException(
+            "Input Stream is corrupted, compressed length large than "
+                + compressedBlockSize);
+      }
+      readCompressedData(compressedBuffer, compressedLen);
     }
-    readCompressedData(compressedBuffer, compressedLen);
     try {
-      originalLen = QatNative.decompress(compressedBuffer, 0, compressedLen,
-          uncompressedBuffer, 0, uncompressedBlockSize);
+      if (uncompressedBuffer.isDirect()) {
+        originalLen = QatNative.decompress(src, srcOff, compressedLen,
+            uncompressedBuffer, 0, uncompressedBlockSize);
+      } else {
+        originalLen = QatNative.decompressToArray(src, srcOff, compressedLen,
+            uncompressedBuffer.array(), uncompressedBuffer.arrayOffset(),
+            uncompressedBlockSize);
+      }
     } catch (Exception e) {
       throw new IOException("Input Stream is corrupted, can't decompress", e);
     }
@@ -182,6 +236,17 @@ private void readCompressedData(ByteBuffer b, int len) throws IOException {
     int read = 0;
     assert b.capacity() >= len;
     b.clear();
+    if (source != null) {
+      if (source.remaining() < len) {
+        throw new EOFException("Unexpected end of block in input stream");
+      }
+      ByteBuffer block = source.duplicate();
+      block.limit(block.position() + len);
+      b.put(block);
+      source.position(block.position());
+      b.flip();
+      return;
+    }
     while (read < len) {
       final int bytesToRead = Math.min(len - read, tempBuffer.length);
       final int r = in.read(tempBuffer, 0, bytesToRead);
@@ -215,25 +280,47 @@ public void close() throws IOException {
       return;
     }
     try {
-      in.close();
+      if (in != null) {
+        in.close();
+      }
     } finally {
-      allocator.release(compressedBuffer);
-      allocator.release(uncompressedBuffer);
+      if (compressedBuffer != null) {
+        allocator.release(compressedBuffer);
+      }
+      if (bufferSupplier != null) {
+        bufferSupplier.release(uncompressedBuffer);
+      } else {
+        allocator.release(uncompressedBuffer);
+      }
       tempBuffer = null;
       in = null;
+      source = null;
       closed = true;
     }
   }
 
   @Override
   public String toString() {
-    return getClass().getSimpleName() + "(in=" + in + ")";
+    return getClass().getSimpleName() + "(in=" + (source != null ? source : in)
+        + ")";
+  }
+
+  private int readBytes(byte[] b, int off, int len) throws IOException {
+    if (source == null) {
+      return in.read(b, off, len);
+    }
+    if (!source.hasRemaining()) {
+      return -1;
+    }
+    len = Math.min(len, source.remaining());
+    source.get(b, off, len);
+    return len;
   }
 
   private void readHeader() throws IOException {
     int readBytes = 0;
     while (readBytes < header.length) {
-      int ret = in.read(header, readBytes, header.length - readBytes);
+      int ret = readBytes(header, readBytes, header.length - readBytes);
       if (ret == -1) {
         break;
       }
@@ -19,8 +19,18 @@
 package com.intel.qat.codec.io.streams;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.intel.qat.codec.io.buffer.BufferAllocator;
 import com.intel.qat.codec.io.buffer.CachedNativeByteBufferAllocator;
@@ -31,9 +41,16 @@
 /**
  * QatOutputStream compresses the data as blocks and writes compressed data into
  * the specified output stream.
+ *
+ * With kafka.qat.compression.parallelism above 1, consecutive blocks are
+ * compressed concurrently on a shared pool of at least that many threads, each
+ * with its own QAT session, and written in block order. The output is the same
+ * as with sequential compression.
  */
 public class QatOutputStream extends OutputStream {
 
+  private static volatile ThreadPoolExecutor compressExecutor;
+
   private OutputStream out;
   private boolean closed;
 
@@ -42,8 +59,13 @@ public class QatOutputStream extends OutputStream {
   private int uncompressedBlockSize;
   private int compressedBlockSize;
 
-  private ByteBuffer uncompressedBuffer;
-  private ByteBuffer compressedBuffer;
+  private final int parallelism;
+  private final Block[] blocks;
+  // the block being filled
+  private Block current;
+  // blocks being compressed, in block order
+  private final ArrayDeque<Block> inFlight = new ArrayDeque<Block>();
+  private final ArrayDeque<Block> free = new ArrayDeque<Block>();
 
   private int uncompressedBufferPosition;
   private byte[] tempBuffer;
@@ -52,7 +74,22 @@ public class QatOutputStream extends OutputStream {
   private boolean headerWritten;
 
   public QatOutputStream(OutputStream out) {
+    this(out, KafkaQatConfig.get().getCompressParallelism());
+  }
+
+  /**
+   * Creates the stream compressing up to parallelism blocks concurrently.
+   *
+   * @param out - stream to write the compressed data to
+   * @param parallelism - number of blocks compressed concurrently
+   */
+  public QatOutputStream(OutputStream out, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "Invalid compression parallelism " + parallelism);
+    }
     this.out = out;
+    this.parallelism = parallelism;
     KafkaQatConfig conf = KafkaQatConfig.get();
 
     this.compressionLevel = conf.getCompressionLevel();
@@ -71,14 +108,21 @@ public QatOutputStream(OutputStream out) {
     boolean decompressNativeBBUseForcePinned = conf
         .isDecompressNativeBBUseForcePinned();
 
-    this.uncompressedBuffer = allocator.allocate(uncompressedBlockSize,
-        conf.getCompressAlignSize(), conf.isCompressUseNativeBuffer(),
-        decompressNativeBBUseQzMalloc, decompressNativeBBUseNuma,
-        decompressNativeBBUseForcePinned);
-    this.compressedBuffer = allocator.allocate(compressedBlockSize,
-        conf.getCompressAlignSize(), conf.isCompressUseNativeBuffer(),
-        compressNativeBBUseNuma, compressNativeBBUseNuma,
-        compressNativeBBUseForcePinned);
+    this.blocks = new Block[parallelism];
+    for (int i = 0; i < parallelism; i++) {
+      Block block = new Block();
+      block.uncompressedBuffer = allocator.allocate(uncompressedBlockSize,
+          conf.getCompressAlignSize(), conf.isCompressUseNativeBuffer(),
+          decompressNativeBBUseQzMalloc, decompressNativeBBUseNuma,
+          decompressNativeBBUseForcePinned);
+      block.compressedBuffer = allocator.allocate(compressedBlockSize,
+          conf.getCompressAlignSize(), conf.isCompressUseNativeBuffer(),
+          compressNativeBBUseNuma, compressNativeBBUseNuma,
+          compressNativeBBUseForcePinned);
+      blocks[i] = block;
+      free.add(block);
+    }
+    current = free.poll();
 
     uncompressedBufferPosition = 0;
     closed = false;
@@ -102,13 +146,13 @@ public void write(byte[] b, int off, int len) throws IOException {
 
     while (uncompressedBufferPosition + len > uncompressedBlockSize) {
       int left = uncompressedBlockSize - uncompressedBufferPosition;
-      uncompressedBuffer.put(b, off, left);
+      current.uncompressedBuffer.put(b, off, left);
       uncompressedBufferPosition = uncompressedBlockSize;
       compressBufferedData();
       off += left;
       len -= left;
     }
-    uncompressedBuffer.put(b, off, len);
+    current.uncompressedBuffer.put(b, off, len);
     uncompressedBufferPosition += len;
   }
 
@@ -134,20 +178,90 @@ public void close() throws IOException {
       out.close();
     } finally {
       closed = true;
-      allocator.release(compressedBuffer);
-      allocator.release(uncompressedBuffer);
+      awaitInFlight();
+      for (Block block : blocks) {
+        allocator.release(block.compressedBuffer);
+        allocator.release(block.uncompressedBuffer);
+      }
       tempBuffer = null;
       out = null;
       context = 0;
     }
   }
 
+  /**
+   * Waits for the compressions a failed stream leaves behind, so no worker
+   * touches a buffer after it is released.
+   */
+  private void awaitInFlight() {
+    boolean interrupted = false;
+    for (Block block : inFlight) {
+      while (true) {
+        try {
+          block.pending.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          break;
+        }
+      }
+    }
+    inFlight.clear();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void compressBufferedData() throws IOException {
     if (uncompressedBufferPosition == 0) {
       return;
     }
-    int compressedLength = QatNative.compress(context, uncompressedBuffer, 0,
-        uncompressedBufferPosition, compressedBuffer, 0, compressedBlockSize);
+    final Block block = current;
+    final int length = uncompressedBufferPosition;
+    uncompressedBufferPosition = 0;
+    if (parallelism == 1) {
+      writeBlock(block, block.compress(length));
+      return;
+    }
+    block.pending = getCompressExecutor(parallelism).submit(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return block.compress(length);
+          }
+        });
+    inFlight.add(block);
+    current = free.poll();
+    if (current == null) {
+      current = writeOldest();
+    }
+  }
+
+  /**
+   * Waits for the first block in flight, writes it and returns it for reuse.
+   */
+  private Block writeOldest() throws IOException {
+    Block block = inFlight.peek();
+    int compressedLength;
+    try {
+      compressedLength = block.pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for compression");
+    } catch (ExecutionException e) {
+      inFlight.poll();
+      throw new IOException("Failed to compress block", e.getCause());
+    }
+    inFlight.poll();
+    block.pending = null;
+    writeBlock(block, compressedLength);
+    return block;
+  }
+
+  private void writeBlock(Block block, int compressedLength)
+      throws IOException {
+    ByteBuffer compressedBuffer = block.compressedBuffer;
     int header = 0;
     if (!headerWritten) {
       header = writeHeader(tempBuffer);
@@ -167,14 +281,16 @@ private void compressBufferedData() throws IOException {
       totalWritten += bytesToWrite;
       off = 0;
     }
-    uncompressedBuffer.clear();
+    block.uncompressedBuffer.clear();
     compressedBuffer.clear();
-    uncompressedBufferPosition = 0;
   }
 
   public void finish() throws IOException {
     validateStream();
     compressBufferedData();
+    while (!inFlight.isEmpty()) {
+      free.add(writeOldest());
+    }
     out.flush();
   }
 
@@ -197,9 +313,59 @@ private int writeHeader(byte[] outputBuffer) {
     return QatCodec.CURRENT_HEADER.writeHeader(outputBuffer, 0);
   }
 
+  /**
+   * Returns the shared compression pool, grown to at least
+   * <code>threads</code> threads so no stream gets less parallelism than it
+   * asked for. Its threads never retire, so the thread local QAT session of
+   * each stays set up.
+   */
+  private static ExecutorService getCompressExecutor(int threads) {
+    ThreadPoolExecutor executor = compressExecutor;
+    if (executor == null || executor.getCorePoolSize() < threads) {
+      synchronized (QatOutputStream.class) {
+        executor = compressExecutor;
+        if (executor == null) {
+          executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads,
+              new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r,
+                      "kafka-qat-compress-" + count.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+          compressExecutor = executor;
+        } else if (executor.getCorePoolSize() < threads) {
+          // raise the maximum first, the core size may not exceed it
+          executor.setMaximumPoolSize(threads);
+          executor.setCorePoolSize(threads);
+        }
+      }
+    }
+    return executor;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(out=" + out + ", level="
-        + compressionLevel + ", blockSize=" + uncompressedBlockSize + ")";
+        + compressionLevel + ", blockSize=" + uncompressedBlockSize
+        + ", parallelism=" + parallelism + ")";
+  }
+
+  /**
+   * A block buffer pair and its pending compression.
+   */
+  private final class Block {
+    ByteBuffer uncompressedBuffer;
+    ByteBuffer compressedBuffer;
+    Future<Integer> pending;
+
+    int compress(int length) {
+      return QatNative.compress(context, uncompressedBuffer, 0, length,
+          compressedBuffer, 0, compressedBlockSize);
+    }
   }
 }
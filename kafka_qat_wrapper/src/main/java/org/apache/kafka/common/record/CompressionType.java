@@ -148,7 +148,7 @@ public OutputStream wrapForOutput(ByteBufferOutputStream buffer, byte messageVer
         @Override
         public InputStream wrapForInput(ByteBuffer buffer, byte messageVersion, BufferSupplier decompressionBufferSupplier) {
             try {
-                return (InputStream) QatConstructors.INPUT.invoke(new ByteBufferInputStream(buffer));
+                return (InputStream) QatConstructors.INPUT.invoke(buffer, decompressionBufferSupplier);
             } catch (Throwable e) {
                 throw new KafkaException(e);
             }
@@ -247,7 +247,7 @@ private static class ZstdConstructors {
 
     private static class QatConstructors {
         static final MethodHandle INPUT = findConstructor("com.intel.qat.codec.io.streams.QatInputStream",
-            MethodType.methodType(void.class, InputStream.class));
+            MethodType.methodType(void.class, ByteBuffer.class, BufferSupplier.class));
         static final MethodHandle OUTPUT = findConstructor("com.intel.qat.codec.io.streams.QatOutputStream",
             MethodType.methodType(void.class, OutputStream.class));
     }
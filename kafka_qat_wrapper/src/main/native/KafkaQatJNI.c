@@ -298,3 +298,94 @@ JNIEXPORT jstring JNICALL Java_com_intel_qat_codec_io_jni_QatNative_getLibraryNa
   }
   return (*env)->NewStringUTF(env, QAT_ZIP_LIBRARY_NAME);
 }
+
+/*
+ * Class:     com_intel_qat_codec_io_jni_QatNative
+ * Method:    qzFree
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL
+Java_com_intel_qat_codec_io_jni_QatNative_qzFree(
+        JNIEnv *env, jclass cls, jobject buffer)
+{
+    void *address = (*env)->GetDirectBufferAddress(env, buffer);
+    if (address != NULL)
+    {
+        qzFree(address);
+    }
+}
+
+/*
+ * Class:     com_intel_qat_codec_io_jni_QatNative
+ * Method:    freeNativeBuffer
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL
+Java_com_intel_qat_codec_io_jni_QatNative_freeNativeBuffer(
+        JNIEnv *env, jclass cls, jobject buffer)
+{
+    void *address = (*env)->GetDirectBufferAddress(env, buffer);
+    if (address != NULL)
+    {
+        free(address);
+    }
+}
+
+/*
+ * Class:     com_intel_qat_codec_io_jni_QatNative
+ * Method:    decompressToArray
+ * Signature: (Ljava/nio/ByteBuffer;II[BII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_intel_qat_codec_io_jni_QatNative_decompressToArray(
+        JNIEnv *env, jclass cls,
+        jobject srcBuffer, jint srcOff, jint srcLen,
+        jbyteArray dest, jint destOff, jint destLen)
+{
+    uint8_t* in;
+    uint8_t* out;
+    uint32_t uncompressed_size = 0;
+    uint32_t compressed_size = 0;
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+
+    in = (uint8_t*)(*env)->GetDirectBufferAddress(env, srcBuffer);
+    if (in == NULL)
+    {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor input buffer");
+        return 0;
+    }
+
+    // No JNI calls are allowed while the array is held.
+    out = (uint8_t*)(*env)->GetPrimitiveArrayCritical(env, dest, NULL);
+    if (out == NULL)
+    {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't get decompressor output array");
+        return 0;
+    }
+
+    compressed_size = srcLen;
+    uncompressed_size = destLen;
+    int ret = qat_wrapper_context->decompress(&g_qzSession, in + srcOff, &compressed_size,
+            out + destOff, &uncompressed_size);
+    (*env)->ReleasePrimitiveArrayCritical(env, dest, out, 0);
+
+    if (ret == QZ_OK)
+    {
+    }
+    else if (ret == QZ_PARAMS)
+    {
+        THROW(env, "java/lang/InternalError", "Could not decompress data. *sess is NULL or member of params is invalid");
+    }
+    else if (ret == QZ_FAIL)
+    {
+        THROW(env, "java/lang/InternalError", "Could not decompress data. Function did not succeed.");
+    }
+    else
+    {
+        char temp[256];
+        sprintf(temp, "Could not decompress data. Return error code %d", ret);
+        THROW(env, "java/lang/InternalError", temp);
+    }
+
+    return uncompressed_size;
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.codec.io.buffer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Test class to verify the caching and eviction of the buffer allocator.
+ */
+public class TestCachedNativeByteBufferAllocator {
+
+  @Test
+  public void testReuseMostRecentlyReleased() throws Exception {
+    CachedNativeByteBufferAllocator allocator = new CachedNativeByteBufferAllocator(
+        1024 * 1024, 60 * 1000);
+    ByteBuffer buffer0 = allocator.allocate(4096, 64, false, false, false, false);
+    ByteBuffer buffer1 = allocator.allocate(4096, 64, false, false, false, false);
+    allocator.release(buffer0);
+    allocator.release(buffer1);
+    assertEquals(8192, allocator.getCachedBytes());
+    assertSame(buffer1, allocator.allocate(4096, 64, false, false, false, false));
+    assertEquals(4096, allocator.getCachedBytes());
+    assertEquals(8192, allocator.getLiveBytes());
+  }
+
+  @Test
+  public void testReuseBySize() throws Exception {
+    CachedNativeByteBufferAllocator allocator = new CachedNativeByteBufferAllocator(
+        1024 * 1024, 60 * 1000);
+    ByteBuffer compressed = allocator.allocate(32 * 1024 * 3 / 2, 64, false,
+        false, false, false);
+    ByteBuffer uncompressed = allocator.allocate(32 * 1024, 64, false, false,
+        false, false);
+    assertEquals(48 * 1024, compressed.capacity());
+    assertEquals(32 * 1024, uncompressed.capacity());
+    allocator.release(compressed);
+    allocator.release(uncompressed);
+    assertSame(compressed, allocator.allocate(32 * 1024 * 3 / 2, 64, false,
+        false, false, false));
+    assertSame(uncompressed, allocator.allocate(32 * 1024, 64, false, false,
+        false, false));
+    ByteBuffer buffer = allocator.allocate(1000, 64, false, false, false, false);
+    assertEquals(4096, buffer.capacity());
+  }
+
+  @Test
+  public void testMaxCachedBytes() throws Exception {
+    CachedNativeByteBufferAllocator allocator = new CachedNativeByteBufferAllocator(
+        4096, 60 * 1000);
+    ByteBuffer buffer0 = allocator.allocate(4096, 64, false, false, false, false);
+    ByteBuffer buffer1 = allocator.allocate(4096, 64, false, false, false, false);
+    allocator.release(buffer0);
+    allocator.release(buffer1);
+    assertEquals(4096, allocator.getCachedBytes());
+    assertEquals(4096, allocator.getLiveBytes());
+  }
+
+  @Test
+  public void testIdleEviction() throws Exception {
+    CachedNativeByteBufferAllocator allocator = new CachedNativeByteBufferAllocator(
+        1024 * 1024, 10);
+    ByteBuffer buffer = allocator.allocate(4096, 64, false, false, false, false);
+    allocator.release(buffer);
+    Thread.sleep(50);
+    allocator.release(allocator.allocate(8192, 64, false, false, false, false));
+    assertNotSame(buffer, allocator.allocate(4096, 64, false, false, false, false));
+    assertEquals(8192, allocator.getCachedBytes());
+  }
+}
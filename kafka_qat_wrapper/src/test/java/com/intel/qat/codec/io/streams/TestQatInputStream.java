@@ -23,6 +23,7 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -30,6 +31,7 @@
 
 import com.intel.qat.codec.io.exception.QatIOException;
 import com.intel.qat.codec.io.util.DataBytesGenerator;
+import org.apache.kafka.common.record.BufferSupplier;
 
 /**
  * Test class to verify QatInputStream.
@@ -121,6 +123,41 @@ public void close() throws IOException {
     assertTrue("close should be invoked.", closeInvoked.get());
   }
 
+  @Test
+  public void testReadFromDirectBuffer() throws Exception {
+    byte[] input = DataBytesGenerator.get(100 * 1024);
+    byte[] compressed = compressData(input);
+    ByteBuffer source = ByteBuffer.allocateDirect(compressed.length);
+    source.put(compressed).flip();
+    assertArrayEquals("Direct buffer data is not matching.", input,
+        readFully(new QatInputStream(source, BufferSupplier.create()),
+            input.length));
+    assertFalse("Source should be consumed.", source.hasRemaining());
+  }
+
+  @Test
+  public void testReadFromHeapBuffer() throws Exception {
+    byte[] input = DataBytesGenerator.get(100 * 1024);
+    ByteBuffer source = ByteBuffer.wrap(compressData(input));
+    assertArrayEquals("Heap buffer data is not matching.", input,
+        readFully(new QatInputStream(source, null), input.length));
+  }
+
+  private static byte[] readFully(QatInputStream in, int length)
+      throws IOException {
+    byte[] data = new byte[length];
+    try {
+      int read = 0;
+      while (read < length) {
+        read += in.read(data, read, length - read);
+      }
+      assertEquals("Stream should be at the end.", -1, in.read());
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
   private byte[] compressData(byte[] input) throws IOException {
     byte[] data;
     try (ByteArrayOutputStream out = new ByteArrayOutputStream();
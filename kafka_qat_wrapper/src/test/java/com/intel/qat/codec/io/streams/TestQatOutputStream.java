@@ -117,4 +117,35 @@ public void flush() throws IOException {
     }
     assertTrue("flush should be invoked.", flushInvokedExp.get());
   }
+
+  @Test
+  public void testParallelWrite() throws IOException {
+    byte[] input = DataBytesGenerator.get(1024 * 1024 + 100);
+    byte[] sequential = compress(input, 1);
+    byte[] parallel = compress(input, 4);
+    assertArrayEquals("Parallel output should match sequential output.",
+        sequential, parallel);
+
+    byte[] uncompressedData = new byte[input.length];
+    try (QatInputStream in = new QatInputStream(
+        new ByteArrayInputStream(parallel))) {
+      int read = 0;
+      while (read < uncompressedData.length) {
+        read += in.read(uncompressedData, read, uncompressedData.length - read);
+      }
+    }
+    assertArrayEquals("Write data is not correct.", input, uncompressedData);
+  }
+
+  private static byte[] compress(byte[] input, int parallelism)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (QatOutputStream outputStream = new QatOutputStream(out,
+        parallelism)) {
+      for (int off = 0; off < input.length; off += 10000) {
+        outputStream.write(input, off, Math.min(10000, input.length - off));
+      }
+    }
+    return out.toByteArray();
+  }
 }
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intel.qat.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.qat.func.QatCompressor;
+import com.intel.qat.func.QatDecompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many small buffers compressed one native call at a time against the batch
+ * API, which handles the whole batch in one call.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar BatchCompressBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BatchCompressBenchmark {
+
+  @Param({"4096", "16384", "65536"})
+  public int bufferSize;
+
+  @Param({"64"})
+  public int batchSize;
+
+  @Param({"medium"})
+  public String entropy;
+
+  private QatCompressor compressor;
+  private QatDecompressor decompressor;
+
+  private byte[][] buffers;
+  private byte[][] compressed;
+  private byte[][] compressBuffers;
+  private byte[][] decompressBuffers;
+  private int[] offsets;
+  private int[] lengths;
+  private int[] compressedLengths;
+
+  @Setup
+  public void setup() throws IOException {
+    compressor = new QatCompressor();
+    decompressor = new QatDecompressor();
+
+    buffers = new byte[batchSize][];
+    compressed = new byte[batchSize][];
+    compressBuffers = new byte[batchSize][];
+    decompressBuffers = new byte[batchSize][];
+    offsets = new int[batchSize];
+    lengths = new int[batchSize];
+    compressedLengths = new int[batchSize];
+    byte[] data = BenchmarkData.generate(bufferSize * batchSize, entropy);
+    for (int i = 0; i < batchSize; i++) {
+      buffers[i] = new byte[bufferSize];
+      System.arraycopy(data, i * bufferSize, buffers[i], 0, bufferSize);
+      compressed[i] = compressor.compress(buffers[i]);
+      compressBuffers[i] = new byte[compressor.maxCompressedLength(bufferSize)];
+      decompressBuffers[i] = new byte[bufferSize];
+      lengths[i] = bufferSize;
+      compressedLengths[i] = compressed[i].length;
+    }
+  }
+
+  @Benchmark
+  public int compressEach() throws IOException {
+    int total = 0;
+    for (int i = 0; i < batchSize; i++) {
+      total += compressor.compress(buffers[i], 0, bufferSize, compressBuffers[i], 0);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public int[] compressBatch() throws IOException {
+    return compressor.compress(buffers, offsets, lengths, compressBuffers, offsets);
+  }
+
+  @Benchmark
+  public int decompressEach() throws IOException {
+    int total = 0;
+    for (int i = 0; i < batchSize; i++) {
+      total += decompressor.decompress(compressed[i], 0, compressedLengths[i],
+          decompressBuffers[i], 0);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public int[] decompressBatch() throws IOException {
+    return decompressor.decompress(compressed, offsets, compressedLengths,
+        decompressBuffers, offsets);
+  }
+}
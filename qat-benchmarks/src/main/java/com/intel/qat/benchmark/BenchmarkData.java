@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible benchmark input of a given entropy.
+ */
+public final class BenchmarkData {
+  private BenchmarkData() {
+  }
+
+  /**
+   * Returns <code>size</code> bytes drawn from an alphabet chosen by
+   * <code>entropy</code>:
+   * <ul>
+   *   <li><code>low</code> - 4 symbols, like dictionary encoded columns</li>
+   *   <li><code>medium</code> - 16 symbols, like typical text and row data</li>
+   *   <li><code>high</code> - all 256 symbols, effectively incompressible</li>
+   * </ul>
+   */
+  public static byte[] generate(int size, String entropy) {
+    int symbols;
+    switch (entropy) {
+      case "low":
+        symbols = 4;
+        break;
+      case "medium":
+        symbols = 16;
+        break;
+      case "high":
+        symbols = 256;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown entropy: " + entropy);
+    }
+    Random random = new Random(12345L);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) random.nextInt(symbols);
+    }
+    return data;
+  }
+}
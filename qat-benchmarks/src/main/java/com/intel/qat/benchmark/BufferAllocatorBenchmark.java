@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.qat.util.buffer.BufferAllocator;
+import com.intel.qat.util.buffer.CachedBufferAllocator;
+import com.intel.qat.util.buffer.PooledBufferAllocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention on the Spark stream buffer allocators: every operation allocates
+ * and releases the buffers a QatCodecBlockOutputStream uses, as a shuffle task
+ * opening and closing a stream does.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar BufferAllocatorBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BufferAllocatorBenchmark {
+
+  @Param({"cached", "pooled"})
+  public String allocator;
+
+  @Param({"1048576"})
+  public int blockSize;
+
+  private BufferAllocator uncompressedAllocator;
+  private BufferAllocator compressedAllocator;
+
+  @Setup
+  public void setup() {
+    if ("cached".equals(allocator)) {
+      uncompressedAllocator = CachedBufferAllocator.getAllocator(blockSize);
+      compressedAllocator = CachedBufferAllocator.getAllocator(blockSize * 3 / 2);
+    } else {
+      uncompressedAllocator = new PooledBufferAllocator(
+          PooledBufferAllocator.DEFAULT_MAX_POOLED_BYTES,
+          PooledBufferAllocator.DEFAULT_IDLE_TIMEOUT_MS);
+      compressedAllocator = uncompressedAllocator;
+    }
+  }
+
+  private int openAndCloseStream() {
+    int compressedSize = blockSize * 3 / 2;
+    ByteBuffer uncompressed = uncompressedAllocator.allocateDirectByteBuffer(
+        false, blockSize, 64, false, false, false);
+    ByteBuffer compressed = compressedAllocator.allocateDirectByteBuffer(
+        false, compressedSize, 64, false, false, false);
+    byte[] temp = compressedAllocator.allocateByteArray(compressedSize);
+    int capacity = uncompressed.capacity() + compressed.capacity() + temp.length;
+    compressedAllocator.releaseByteArray(temp);
+    compressedAllocator.releaseDirectByteBuffer(compressed);
+    uncompressedAllocator.releaseDirectByteBuffer(uncompressed);
+    return capacity;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int threads1() {
+    return openAndCloseStream();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int threads4() {
+    return openAndCloseStream();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int threads16() {
+    return openAndCloseStream();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public int threads64() {
+    return openAndCloseStream();
+  }
+}
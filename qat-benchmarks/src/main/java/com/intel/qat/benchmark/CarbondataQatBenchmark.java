@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.qat.func.QatCompressor;
+import com.intel.qat.func.QatDecompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CarbonData column page compression through the copying
+ * <code>byte[]</code> API, the in-place array API and direct ByteBuffers.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar CarbondataQatBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CarbondataQatBenchmark {
+
+  // CarbonData pages hold 32000 rows; these span narrow to wide column pages.
+  @Param({"32000", "128000", "256000", "1024000"})
+  public int pageSize;
+
+  @Param({"low", "medium"})
+  public String entropy;
+
+  private QatCompressor compressor;
+  private QatDecompressor decompressor;
+
+  private byte[] page;
+  private byte[] compressedPage;
+  private byte[] compressBuffer;
+  private byte[] decompressBuffer;
+
+  private ByteBuffer directPage;
+  private ByteBuffer directCompressedPage;
+  private ByteBuffer directCompressBuffer;
+  private ByteBuffer directDecompressBuffer;
+
+  @Setup
+  public void setup() throws IOException {
+    compressor = new QatCompressor();
+    decompressor = new QatDecompressor();
+
+    page = BenchmarkData.generate(pageSize, entropy);
+    compressedPage = compressor.compress(page);
+    compressBuffer = new byte[compressor.maxCompressedLength(pageSize)];
+    decompressBuffer = new byte[pageSize];
+
+    directPage = ByteBuffer.allocateDirect(pageSize);
+    directPage.put(page).flip();
+    directCompressedPage = ByteBuffer.allocateDirect(compressedPage.length);
+    directCompressedPage.put(compressedPage).flip();
+    directCompressBuffer = ByteBuffer.allocateDirect(compressBuffer.length);
+    directDecompressBuffer = ByteBuffer.allocateDirect(pageSize);
+  }
+
+  @Benchmark
+  public byte[] compressCopying() throws IOException {
+    return compressor.compress(page);
+  }
+
+  @Benchmark
+  public int compressInPlace() throws IOException {
+    return compressor.compress(page, 0, page.length, compressBuffer, 0);
+  }
+
+  @Benchmark
+  public int compressDirect() throws IOException {
+    directPage.rewind();
+    directCompressBuffer.clear();
+    return compressor.compress(directPage, directCompressBuffer);
+  }
+
+  @Benchmark
+  public byte[] decompressCopying() throws IOException {
+    return decompressor.decompress(compressedPage);
+  }
+
+  @Benchmark
+  public int decompressInPlace() throws IOException {
+    return decompressor.decompress(compressedPage, 0, compressedPage.length,
+        decompressBuffer, 0);
+  }
+
+  @Benchmark
+  public int decompressDirect() throws IOException {
+    directCompressedPage.rewind();
+    directDecompressBuffer.clear();
+    return decompressor.decompress(directCompressedPage, directDecompressBuffer);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.compress.qat.QatCompressor;
+import org.apache.hadoop.io.compress.qat.QatCompressor.QatDirectCompressor;
+import org.apache.hadoop.io.compress.qat.QatDecompressor;
+import org.apache.hadoop.io.compress.qat.QatDecompressor.QatDirectDecompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hadoop QatCompressor/QatDecompressor block compression. Every invocation
+ * compresses or decompresses one block on each of <code>threads</code>
+ * threads, each with its own compressor, so linear scaling keeps the score
+ * constant as threads grow.
+ * <p>
+ * <code>bufferKind</code> selects the byte[] API over
+ * <code>ByteBuffer.allocateDirect</code> buffers (<code>heap</code>), over
+ * <code>nativeAllocateBB</code> buffers (<code>qzMalloc</code>), or the direct
+ * ByteBuffer API (<code>direct</code>).
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar HadoopQatBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HadoopQatBenchmark {
+
+  @Param({"65536", "262144"})
+  public int blockSize;
+
+  @Param({"1", "9"})
+  public int level;
+
+  @Param({"1", "4", "8"})
+  public int threads;
+
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  @Param({"heap", "direct", "qzMalloc"})
+  public String bufferKind;
+
+  private ParallelRunner runner;
+  private byte[] block;
+  private QatCompressor[] compressors;
+  private QatDecompressor[] decompressors;
+  private byte[][] compressed;
+  private int[] compressedLength;
+  private byte[][] output;
+  private ByteBuffer[] directBlock;
+  private ByteBuffer[] directCompressed;
+  private ByteBuffer[] directOutput;
+
+  @Setup
+  public void setup() throws IOException {
+    runner = new ParallelRunner(threads);
+    block = BenchmarkData.generate(blockSize, entropy);
+    // room for incompressible input, as BlockCompressorStream leaves
+    int bufferSize = blockSize + blockSize / 6 + 32;
+    boolean direct = "direct".equals(bufferKind);
+    boolean qzMalloc = "qzMalloc".equals(bufferKind);
+
+    compressors = new QatCompressor[threads];
+    decompressors = new QatDecompressor[threads];
+    compressed = new byte[threads][bufferSize];
+    compressedLength = new int[threads];
+    output = new byte[threads][blockSize];
+    directBlock = new ByteBuffer[threads];
+    directCompressed = new ByteBuffer[threads];
+    directOutput = new ByteBuffer[threads];
+    for (int i = 0; i < threads; i++) {
+      if (direct) {
+        compressors[i] = new QatDirectCompressor(level);
+        decompressors[i] = new QatDirectDecompressor();
+        directBlock[i] = ByteBuffer.allocateDirect(blockSize);
+        directBlock[i].put(block).flip();
+        directCompressed[i] = ByteBuffer.allocateDirect(bufferSize);
+        directOutput[i] = ByteBuffer.allocateDirect(blockSize);
+      } else {
+        compressors[i] = new QatCompressor(bufferSize, qzMalloc, true, false,
+            level);
+        decompressors[i] = new QatDecompressor(bufferSize, qzMalloc, true,
+            false);
+      }
+      compressedLength[i] = (int) compress(i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    runner.shutdown();
+  }
+
+  private long compress(int i) throws IOException {
+    if (directBlock[i] != null) {
+      directBlock[i].rewind();
+      directCompressed[i].clear();
+      return ((QatDirectCompressor) compressors[i]).compress(directBlock[i],
+          directCompressed[i]);
+    }
+    QatCompressor compressor = compressors[i];
+    compressor.reset();
+    compressor.setInput(block, 0, blockSize);
+    compressor.finish();
+    int n = 0;
+    while (!compressor.finished()) {
+      n += compressor.compress(compressed[i], n, compressed[i].length - n);
+    }
+    return n;
+  }
+
+  private long decompress(int i) throws IOException {
+    if (directBlock[i] != null) {
+      directCompressed[i].clear();
+      directCompressed[i].limit(compressedLength[i]);
+      directOutput[i].clear();
+      ((QatDirectDecompressor) decompressors[i]).decompress(
+          directCompressed[i], directOutput[i]);
+      return directOutput[i].position();
+    }
+    QatDecompressor decompressor = decompressors[i];
+    decompressor.reset();
+    decompressor.setInput(compressed[i], 0, compressedLength[i]);
+    int n = 0;
+    while (n < blockSize && !decompressor.finished()) {
+      n += decompressor.decompress(output[i], n, blockSize - n);
+    }
+    return n;
+  }
+
+  @Benchmark
+  public long compress() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return compress(index);
+      }
+    });
+  }
+
+  @Benchmark
+  public long decompress() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return decompress(index);
+      }
+    });
+  }
+}
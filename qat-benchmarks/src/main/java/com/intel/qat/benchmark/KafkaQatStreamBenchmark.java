@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.qat.codec.io.streams.QatInputStream;
+import com.intel.qat.codec.io.streams.QatOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Kafka record batches through QatOutputStream and QatInputStream. Every
+ * invocation writes or reads one batch on each of <code>threads</code>
+ * threads.
+ * <p>
+ * Batches are read from a heap or direct ByteBuffer, as the broker and
+ * consumers hand them over, per <code>bufferKind</code>. The level, block
+ * size and native buffer settings of the streams come from
+ * <code>kafka-qat.conf</code> on the classpath.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar KafkaQatStreamBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KafkaQatStreamBenchmark {
+
+  // producer batch.size defaults to 16K; brokers see up to 1M
+  @Param({"16384", "1048576"})
+  public int batchSize;
+
+  @Param({"1", "4"})
+  public int parallelism;
+
+  @Param({"1", "4", "8"})
+  public int threads;
+
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  @Param({"heap", "direct"})
+  public String bufferKind;
+
+  // Kafka appends records one at a time.
+  private static final int RECORD_SIZE = 1024;
+
+  private ParallelRunner runner;
+  private byte[] batch;
+  private ByteBuffer[] compressed;
+  private ByteArrayOutputStream[] sinks;
+  private byte[][] readBuffers;
+
+  @Setup
+  public void setup() throws IOException {
+    runner = new ParallelRunner(threads);
+    batch = BenchmarkData.generate(batchSize, entropy);
+    sinks = new ByteArrayOutputStream[threads];
+    compressed = new ByteBuffer[threads];
+    readBuffers = new byte[threads][RECORD_SIZE];
+    for (int i = 0; i < threads; i++) {
+      sinks[i] = new ByteArrayOutputStream(batchSize);
+    }
+    write(0);
+    byte[] bytes = sinks[0].toByteArray();
+    for (int i = 0; i < threads; i++) {
+      compressed[i] = "direct".equals(bufferKind)
+          ? ByteBuffer.allocateDirect(bytes.length)
+          : ByteBuffer.allocate(bytes.length);
+      compressed[i].put(bytes).flip();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    runner.shutdown();
+  }
+
+  private long write(int i) throws IOException {
+    ByteArrayOutputStream sink = sinks[i];
+    sink.reset();
+    QatOutputStream out = new QatOutputStream(sink, parallelism);
+    try {
+      for (int off = 0; off < batchSize; off += RECORD_SIZE) {
+        out.write(batch, off, Math.min(RECORD_SIZE, batchSize - off));
+      }
+    } finally {
+      out.close();
+    }
+    return sink.size();
+  }
+
+  private long read(int i) throws IOException {
+    compressed[i].rewind();
+    InputStream in = new QatInputStream(compressed[i], null);
+    long total = 0;
+    try {
+      int n;
+      while ((n = in.read(readBuffers[i])) > 0) {
+        total += n;
+      }
+    } finally {
+      in.close();
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long write() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return write(index);
+      }
+    });
+  }
+
+  @Benchmark
+  public long read() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return read(index);
+      }
+    });
+  }
+}
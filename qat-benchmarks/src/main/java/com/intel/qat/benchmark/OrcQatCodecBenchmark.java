@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.io.orc.QATCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ORC QATCodec chunk compression as the ORC writer and reader call it. Every
+ * invocation compresses or decompresses one chunk on each of
+ * <code>threads</code> threads, over heap or direct buffers per
+ * <code>bufferKind</code>. QATCodec has no level setting.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar OrcQatCodecBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OrcQatCodecBenchmark {
+
+  // orc.compress.size defaults to 256K
+  @Param({"65536", "262144"})
+  public int chunkSize;
+
+  @Param({"1", "4", "8"})
+  public int threads;
+
+  // incompressible chunks are stored uncompressed by ORC, so not measured
+  @Param({"low", "medium"})
+  public String entropy;
+
+  @Param({"heap", "direct"})
+  public String bufferKind;
+
+  private ParallelRunner runner;
+  private QATCodec codec;
+  private ByteBuffer[] chunks;
+  private ByteBuffer[] compressed;
+  private ByteBuffer[] output;
+
+  @Setup
+  public void setup() throws IOException {
+    runner = new ParallelRunner(threads);
+    codec = new QATCodec(chunkSize + chunkSize / 6 + 32);
+    byte[] data = BenchmarkData.generate(chunkSize, entropy);
+    chunks = new ByteBuffer[threads];
+    compressed = new ByteBuffer[threads];
+    output = new ByteBuffer[threads];
+    for (int i = 0; i < threads; i++) {
+      chunks[i] = allocate(chunkSize);
+      chunks[i].put(data).flip();
+      // ORC stores chunks that don't shrink uncompressed
+      compressed[i] = allocate(chunkSize);
+      output[i] = allocate(chunkSize);
+    }
+    if (!codec.compress(chunks[0], compressed[0], null)) {
+      throw new IOException("Chunk did not compress");
+    }
+    compressed[0].flip();
+    for (int i = 1; i < threads; i++) {
+      compressed[i].put(compressed[0].duplicate()).flip();
+    }
+  }
+
+  private ByteBuffer allocate(int size) {
+    return "direct".equals(bufferKind) ? ByteBuffer.allocateDirect(size)
+        : ByteBuffer.allocate(size);
+  }
+
+  @TearDown
+  public void tearDown() {
+    runner.shutdown();
+  }
+
+  private long compress(int i) throws IOException {
+    chunks[i].rewind();
+    compressed[i].clear();
+    codec.compress(chunks[i], compressed[i], null);
+    return compressed[i].position();
+  }
+
+  private long decompress(int i) throws IOException {
+    compressed[i].rewind();
+    output[i].clear();
+    codec.decompress(compressed[i], output[i]);
+    return output[i].remaining();
+  }
+
+  @Benchmark
+  public long compress() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return compress(index);
+      }
+    });
+  }
+
+  @Benchmark
+  public long decompress() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return decompress(index);
+      }
+    });
+  }
+}
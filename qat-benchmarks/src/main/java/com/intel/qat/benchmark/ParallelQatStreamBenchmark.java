@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.QatCodec;
+import org.apache.hadoop.io.compress.conf.QatConfigurationKeys;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hadoop QatCodec output stream writing one large file, with
+ * <code>parallelBlocks</code> blocks compressed at once. 1 writes through
+ * BlockCompressorStream, more through ParallelQatCompressionOutputStream, so
+ * the score shows how a single output scales with blocks in flight.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar ParallelQatStreamBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParallelQatStreamBenchmark {
+
+  @Param({"1", "2", "4", "8", "16"})
+  public int parallelBlocks;
+
+  @Param({"65536", "262144"})
+  public int bufferSize;
+
+  @Param({"low", "medium"})
+  public String entropy;
+
+  @Param({"67108864"})
+  public int streamSize;
+
+  private QatCodec codec;
+  private byte[] data;
+
+  @Setup
+  public void setup() {
+    Configuration conf = new Configuration();
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_BUFFERSIZE_KEY,
+        bufferSize);
+    conf.setInt(QatConfigurationKeys.IO_COMPRESSION_CODEC_QAT_PARALLEL_BLOCKS_KEY,
+        parallelBlocks);
+    codec = new QatCodec();
+    codec.setConf(conf);
+    data = BenchmarkData.generate(1024 * 1024, entropy);
+  }
+
+  @Benchmark
+  public long write() throws IOException {
+    CountingOutputStream sink = new CountingOutputStream();
+    CompressionOutputStream out = codec.createOutputStream(sink);
+    for (int written = 0; written < streamSize; written += data.length) {
+      out.write(data, 0, Math.min(data.length, streamSize - written));
+    }
+    out.close();
+    return sink.count;
+  }
+
+  private static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a task on a fixed number of threads at once, so suites can sweep the
+ * thread count as a JMH parameter. Each thread passes its own index to the
+ * task and works on its own state.
+ */
+final class ParallelRunner {
+
+  /** Work done by one thread in one benchmark invocation. */
+  interface Task {
+    long run(int index) throws IOException;
+  }
+
+  private final int threads;
+  private final ExecutorService executor;
+
+  ParallelRunner(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count " + threads);
+    }
+    this.threads = threads;
+    this.executor = threads > 1 ? Executors.newFixedThreadPool(threads - 1) : null;
+  }
+
+  /**
+   * Runs <code>task</code> for every index, index 0 on the calling thread,
+   * and returns the sum of the results.
+   */
+  long run(final Task task) throws IOException {
+    if (executor == null) {
+      return task.run(0);
+    }
+    List<Future<Long>> futures = new ArrayList<>(threads - 1);
+    for (int i = 1; i < threads; i++) {
+      final int index = i;
+      futures.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          return task.run(index);
+        }
+      }));
+    }
+    long total = task.run(0);
+    for (Future<Long> future : futures) {
+      try {
+        total += future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    }
+    return total;
+  }
+
+  void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.qat.spark.QatCodecBlockInputStream;
+import com.intel.qat.spark.QatCodecBlockOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Spark QatCodecBlockOutputStream/QatCodecBlockInputStream over in-memory
+ * streams. Every invocation writes or reads <code>streamSize</code> bytes on
+ * each of <code>threads</code> threads.
+ * <p>
+ * <code>bufferKind</code> selects heap block buffers (<code>heap</code>),
+ * <code>ByteBuffer.allocateDirect</code> buffers (<code>direct</code>) or
+ * qzMalloc buffers (<code>qzMalloc</code>).
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar SparkBlockStreamBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SparkBlockStreamBenchmark {
+
+  @Param({"65536", "1048576"})
+  public int blockSize;
+
+  @Param({"1", "9"})
+  public int level;
+
+  @Param({"1", "4", "8"})
+  public int threads;
+
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  @Param({"heap", "direct", "qzMalloc"})
+  public String bufferKind;
+
+  @Param({"8388608"})
+  public int streamSize;
+
+  // Spark serializers write and read records in small chunks.
+  private static final int RECORD_BATCH_SIZE = 32 * 1024;
+
+  private ParallelRunner runner;
+  private byte[] data;
+  private byte[] compressed;
+  private ByteArrayOutputStream[] sinks;
+  private byte[][] readBuffers;
+
+  @Setup
+  public void setup() throws IOException {
+    runner = new ParallelRunner(threads);
+    data = BenchmarkData.generate(streamSize, entropy);
+    sinks = new ByteArrayOutputStream[threads];
+    readBuffers = new byte[threads][RECORD_BATCH_SIZE];
+    for (int i = 0; i < threads; i++) {
+      sinks[i] = new ByteArrayOutputStream(streamSize);
+    }
+    write(0);
+    compressed = sinks[0].toByteArray();
+  }
+
+  @TearDown
+  public void tearDown() {
+    runner.shutdown();
+  }
+
+  private long write(int i) throws IOException {
+    ByteArrayOutputStream sink = sinks[i];
+    sink.reset();
+    QatCodecBlockOutputStream out = new QatCodecBlockOutputStream(sink, level,
+        blockSize, !"heap".equals(bufferKind), "qzMalloc".equals(bufferKind),
+        true, false);
+    try {
+      for (int off = 0; off < streamSize; off += RECORD_BATCH_SIZE) {
+        out.write(data, off, Math.min(RECORD_BATCH_SIZE, streamSize - off));
+      }
+    } finally {
+      out.close();
+    }
+    return sink.size();
+  }
+
+  private long read(int i) throws IOException {
+    InputStream in = new QatCodecBlockInputStream(
+        new ByteArrayInputStream(compressed), blockSize,
+        !"heap".equals(bufferKind), "qzMalloc".equals(bufferKind), true, false);
+    long total = 0;
+    try {
+      int n;
+      while ((n = in.read(readBuffers[i])) > 0) {
+        total += n;
+      }
+    } finally {
+      in.close();
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long write() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return write(index);
+      }
+    });
+  }
+
+  @Benchmark
+  public long read() throws IOException {
+    return runner.run(new ParallelRunner.Task() {
+      @Override
+      public long run(int index) throws IOException {
+        return read(index);
+      }
+    });
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.intel.qat.spark.QatCodecBlockOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wall time of a Spark shuffle write through QatCodecBlockOutputStream into a
+ * buffered file stream or straight into the file channel, with synchronous
+ * compression and with the pipelined modes of
+ * <code>spark.io.compression.qat.pipelineDepth</code>.
+ *
+ * <pre>
+ * java -jar qat-benchmarks/target/benchmarks.jar SparkShuffleWriteBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SparkShuffleWriteBenchmark {
+
+  @Param({"1", "2", "3"})
+  public int pipelineDepth;
+
+  @Param({"1048576"})
+  public int blockSize;
+
+  // bytes written per shuffle file
+  @Param({"268435456"})
+  public int shuffleSize;
+
+  @Param({"medium"})
+  public String entropy;
+
+  @Param({"stream", "channel"})
+  public String sink;
+
+  // Spark writes records through a serializer in small chunks.
+  private static final int RECORD_BATCH_SIZE = 32 * 1024;
+
+  private byte[] records;
+  private File file;
+
+  @Setup
+  public void setup() throws IOException {
+    records = BenchmarkData.generate(8 * 1024 * 1024, entropy);
+    file = File.createTempFile("qat-shuffle", ".data");
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public long shuffleWrite() throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    OutputStream out;
+    if ("channel".equals(sink)) {
+      out = new QatCodecBlockOutputStream(fileOut.getChannel(), 1, blockSize,
+          false, false, false, false, pipelineDepth);
+    } else {
+      out = new QatCodecBlockOutputStream(
+          new BufferedOutputStream(fileOut, 32 * 1024), 1, blockSize, false,
+          false, false, false, pipelineDepth);
+    }
+    try {
+      for (int written = 0; written < shuffleSize; written += RECORD_BATCH_SIZE) {
+        out.write(records, written % records.length, RECORD_BATCH_SIZE);
+      }
+    } finally {
+      out.close();
+    }
+    return file.length();
+  }
+}
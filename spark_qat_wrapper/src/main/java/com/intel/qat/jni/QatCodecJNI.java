@@ -23,25 +23,100 @@
 
 /**
  * JNI bindings to the original C implementation of QatCodec.
+ *
+ * <p>Each context returned by {@link #createCompressContext(int)} or
+ * {@link #createDecompressContext()} owns a QAT session taken from a bounded,
+ * process-wide pool and must be returned with {@link #destroyContext(long)}.
+ * A context is not bound to the creating thread, but must not be used by more
+ * than one thread at a time.
  */
 public enum QatCodecJNI {
   ;
+  /**
+   * Batch result of an entry whose decompressed data does not fit its
+   * destination.
+   */
+  public static final int DES_TOO_SMALL = -1;
+
   static {
     NativeCodeLoader.load();
     init();
   }
 
   static native void init();
+
+  /**
+   * Configures the native session pool.
+   *
+   * @param maxSessions       the maximum number of QAT sessions alive at once
+   * @param acquireTimeoutMs  how long context creation waits for a free session
+   *                          before throwing
+   *                          {@link com.intel.qat.spark.QatCodecException}
+   */
+  public static native void configureSessionPool(int maxSessions, int acquireTimeoutMs);
   public static native Object allocNativeBuffer(int capacity, int align);
+
+  /**
+   * Takes a session set up with <code>level</code> from the pool, waiting up
+   * to the acquire timeout for one.
+   *
+   * @throws com.intel.qat.spark.QatCodecException if no session is released
+   *         within the acquire timeout
+   */
   public static native long createCompressContext(int level);
+
+  /**
+   * Takes a session set up with <code>level</code> from the pool like
+   * {@link #createCompressContext(int)}, but returns 0 instead of waiting
+   * when none is free.
+   */
+  public static native long tryCreateCompressContext(int level);
+
+  /**
+   * Takes a session of any level from the pool, like
+   * {@link #createCompressContext(int)}.
+   */
   public static native long createDecompressContext();
   public static native void destroyContext(long context);
   public static native int compress(long context, ByteBuffer srcBuffer, int srcOff, int srcLen,
           ByteBuffer destBuffer, int destOff, int maxDestLen);
   public static native int decompress(long context, ByteBuffer srcBuffer, int srcOff, int srcLen,
           ByteBuffer destBuffer, int destOff, int destLen);
+
+  /**
+   * Compresses every entry <code>i</code>, the <code>srcLens[i]</code> bytes at
+   * <code>srcOffs[i]</code> of <code>srcBuffers[i]</code>, into
+   * <code>destBuffers[i]</code> at <code>destOffs[i]</code> in a single call on
+   * the context's session, storing the compressed lengths in
+   * <code>results</code>. Buffers must be direct and all arrays the same
+   * length.
+   */
+  public static native void compressBatch(long context, ByteBuffer[] srcBuffers,
+      int[] srcOffs, int[] srcLens, ByteBuffer[] destBuffers, int[] destOffs,
+      int[] maxDestLens, int[] results);
+
+  /**
+   * Decompresses a batch of entries like {@link #compressBatch}, storing the
+   * decompressed lengths in <code>results</code>, or {@link #DES_TOO_SMALL}
+   * for an entry that does not fit in <code>destLens[i]</code> bytes.
+   */
+  public static native void decompressBatch(long context, ByteBuffer[] srcBuffers,
+      int[] srcOffs, int[] srcLens, ByteBuffer[] destBuffers, int[] destOffs,
+      int[] destLens, int[] results);
   public static native String getLibraryName(int codec);
   public static native Object qzMalloc(long capacity, boolean numa,
       boolean forcePinned);
+
+  /**
+   * Frees a buffer returned by {@link #qzMalloc}. The buffer must not be used
+   * afterwards.
+   */
+  public static native void qzFree(ByteBuffer buffer);
+
+  /**
+   * Frees a buffer returned by {@link #allocNativeBuffer}. The buffer must not
+   * be used afterwards.
+   */
+  public static native void freeNativeBuffer(ByteBuffer buffer);
 }
 
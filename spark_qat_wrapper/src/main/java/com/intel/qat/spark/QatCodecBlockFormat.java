@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.spark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Frame formats of {@link QatCodecBlockOutputStream}.
+ * <p>
+ * Version 0, the default, is a sequence of <code>[int32 LE compressed length]
+ * [compressed block]</code> frames.
+ * <p>
+ * Version 1 starts with a 6 byte header: {@link #MAGIC}, the version and a
+ * flags byte. As a length the magic is negative, so it never starts a version 0
+ * stream. Each frame is <code>[int32 LE compressed length][int32 LE
+ * uncompressed length][compressed block]</code>, and the last frame is
+ * followed by {@link #TERMINATOR}, so a truncated stream is detected. With
+ * {@link #FLAG_BLOCK_INDEX} the terminator is followed by the block index and
+ * a trailer:
+ * <pre>
+ *   int32 LE  block count
+ *   per block: int64 LE frame offset, int64 LE uncompressed offset
+ *   int64 LE  total uncompressed length
+ *   int64 LE  index offset, the offset of the block count
+ *   int32 LE  {@link #INDEX_MAGIC}
+ * </pre>
+ * Offsets are relative to the start of the stream.
+ */
+final class QatCodecBlockFormat {
+  static final int VERSION_0 = 0;
+  static final int VERSION_1 = 1;
+
+  static final int MAGIC = 0xFF544151;        // "QAT" 0xFF
+  static final int STREAM_HEADER_LENGTH = 6;
+  static final int FLAG_BLOCK_INDEX = 1;
+
+  static final int FRAME_HEADER_LENGTH_V0 = 4;
+  static final int FRAME_HEADER_LENGTH_V1 = 8;
+  static final int TERMINATOR = -1;
+
+  static final int INDEX_MAGIC = 0x49544151;  // "QATI"
+  static final int TRAILER_LENGTH = 12;
+  static final int INDEX_ENTRY_LENGTH = 16;
+
+  private QatCodecBlockFormat() {
+  }
+
+  /**
+   * The block index of a version 1 stream.
+   */
+  static final class BlockIndex {
+    final long[] frameOffsets;
+    final long[] uncompressedOffsets;
+    final long uncompressedLength;
+
+    BlockIndex(long[] frameOffsets, long[] uncompressedOffsets,
+        long uncompressedLength) {
+      this.frameOffsets = frameOffsets;
+      this.uncompressedOffsets = uncompressedOffsets;
+      this.uncompressedLength = uncompressedLength;
+    }
+
+    /**
+     * Returns the block holding <code>uncompressedOffset</code>, or the block
+     * count at the end of the stream.
+     */
+    int blockOf(long uncompressedOffset) {
+      int low = 0;
+      int high = uncompressedOffsets.length - 1;
+      if (uncompressedOffset >= uncompressedLength) {
+        return uncompressedOffsets.length;
+      }
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (uncompressedOffsets[mid] <= uncompressedOffset) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Reads the block index of the stream starting at <code>start</code> and
+   * ending at the end of <code>channel</code>. Leaves the channel position
+   * undefined.
+   */
+  static BlockIndex readIndex(SeekableByteChannel channel, long start)
+      throws IOException {
+    long end = channel.size();
+    if (end - start < STREAM_HEADER_LENGTH + TRAILER_LENGTH) {
+      throw new IOException("Stream has no block index");
+    }
+    ByteBuffer trailer = read(channel, end - TRAILER_LENGTH, TRAILER_LENGTH);
+    long indexOffset = trailer.getLong(0);
+    if (trailer.getInt(8) != INDEX_MAGIC || indexOffset < STREAM_HEADER_LENGTH
+        || start + indexOffset > end - TRAILER_LENGTH) {
+      throw new IOException("Stream has no block index");
+    }
+    ByteBuffer index = read(channel, start + indexOffset,
+        (int) (end - TRAILER_LENGTH - start - indexOffset));
+    int count = index.getInt(0);
+    if (count < 0 || index.capacity() != 4 + count * INDEX_ENTRY_LENGTH + 8) {
+      throw new IOException("Block index is corrupted");
+    }
+    long[] frameOffsets = new long[count];
+    long[] uncompressedOffsets = new long[count];
+    long uncompressedLength = index.getLong(4 + count * INDEX_ENTRY_LENGTH);
+    for (int i = 0; i < count; i++) {
+      frameOffsets[i] = index.getLong(4 + i * INDEX_ENTRY_LENGTH);
+      uncompressedOffsets[i] = index.getLong(4 + i * INDEX_ENTRY_LENGTH + 8);
+      // frames follow each other between the stream header and the index,
+      // and each holds a part of the uncompressed data
+      long previousFrame = i == 0 ? STREAM_HEADER_LENGTH - 1 : frameOffsets[i - 1];
+      long previousBlock = i == 0 ? -1 : uncompressedOffsets[i - 1];
+      if (frameOffsets[i] <= previousFrame || frameOffsets[i] >= indexOffset
+          || uncompressedOffsets[i] <= previousBlock
+          || uncompressedOffsets[i] >= uncompressedLength
+          || i == 0 && uncompressedOffsets[i] != 0) {
+        throw new IOException("Block index is corrupted");
+      }
+    }
+    if (count == 0 && uncompressedLength != 0) {
+      throw new IOException("Block index is corrupted");
+    }
+    return new BlockIndex(frameOffsets, uncompressedOffsets, uncompressedLength);
+  }
+
+  private static ByteBuffer read(SeekableByteChannel channel, long position,
+      int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    channel.position(position);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Unexpected end of block index");
+      }
+    }
+    return buffer;
+  }
+}
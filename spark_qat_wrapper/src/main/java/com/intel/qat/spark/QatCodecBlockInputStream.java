@@ -21,7 +21,22 @@
 import java.io.EOFException;
 import java.io.InputStream;
 import java.io.FilterInputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.intel.qat.util.buffer.*;
 import com.intel.qat.jni.QatCodecJNI;
@@ -31,22 +46,85 @@
  * {@link InputStream} implementation to decompress data written with
  * {@link QatCodecBlockOutputStream}. This class is not
  * thread-safe and does not support {@link #mark(int)}/{@link #reset()}.
+ * <p>
+ * With a read-ahead above 0, a shared worker thread reads and decompresses
+ * up to that many blocks ahead of the reader, and reads the compressed bytes of
+ * one more block while it waits for a buffer to decompress into.
+ * {@link #close()} closes the input to stop a worker blocked reading it, and
+ * waits for the worker only for a while: a worker still running after that
+ * releases the buffers and the QAT session itself when it stops.
+ * <p>
+ * Created on a {@link ReadableByteChannel}, compressed blocks are read
+ * straight into their direct buffer instead of through a heap buffer.
+ * {@link #read(ByteBuffer)} copies out of the block buffer without a heap
+ * buffer either.
+ * <p>
+ * Both frame versions of {@link QatCodecBlockFormat} are read. On version 1
+ * streams {@link #skip(long)} passes over whole blocks without decompressing
+ * them, and a stream created on a {@link SeekableByteChannel} can
+ * {@link #seek(long)} through its block index.
  * @see QatCodecBlockOutputStream
  */
-public final class QatCodecBlockInputStream extends FilterInputStream {
+public final class QatCodecBlockInputStream extends FilterInputStream
+    implements ReadableByteChannel {
+
+  private static final ExecutorService READ_AHEAD_EXECUTOR =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "qat-read-ahead-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // how long close waits for the read-ahead worker to stop
+  private static final long READ_AHEAD_CLOSE_TIMEOUT_MS = 1000;
+
+  // marks the end of the input in the ready queue, and close in the free queue
+  private static final Block END_OF_INPUT = new Block(null);
+
   private long context;
   private int compressedBlockSize;
   private int uncompressedBlockSize;
   private final BufferAllocator compressedBufferAllocator;
   private final BufferAllocator uncompressedBufferAllocator;
   private final ByteBuffer compressedBuffer;
-  private final ByteBuffer uncompressedBuffer;
+  private ByteBuffer uncompressedBuffer;
   private int originalLen;
   private int uncompressedBufferPosition;
   private boolean closed;
   private boolean eof;
   private byte[] tempBuffer;
   private final BufferAllocator tempBufferAllocator;
+  // the channel read from directly, or null to read through tempBuffer
+  private final ReadableByteChannel channel;
+  private final ByteBuffer header;
+  // the frame version, or -1 until the first frame is read
+  private int frameVersion = -1;
+  // uncompressed length of the last frame read, or -1 for version 0
+  private int frameUncompressedLen;
+  // channel position of the start of the stream, or -1 if it can't seek
+  private long streamStart = -1;
+  private QatCodecBlockFormat.BlockIndex blockIndex;
+
+  private final int readAhead;
+  // read-ahead state, unused when readAhead is 0
+  private Block[] blocks;
+  private Block current;
+  private BlockingQueue<Block> freeBlocks;
+  private BlockingQueue<Block> readyBlocks;
+  private volatile IOException readAheadFailure;
+  private volatile boolean stopReadAhead;
+  private CountDownLatch readAheadDone;
+  private Future<?> readAheadTask;
+  // claimed by the worker when it starts, or by close if it never did
+  private final AtomicBoolean readAheadClaimed = new AtomicBoolean();
+  // set by the worker when it stops, or by close when it stops waiting for
+  // the worker: whichever comes second releases the buffers and the session
+  private final AtomicBoolean readAheadReleased = new AtomicBoolean();
 
   /**
    * Create a new {@link InputStream}.
@@ -61,7 +139,51 @@ public QatCodecBlockInputStream(InputStream in, int blockSize, boolean useNative
 
   public QatCodecBlockInputStream(InputStream in, int blockSize,
       boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned, boolean useNuma) {
+    this(in, blockSize, useNativeBuffer, useQzMalloc, useForcePinned, useNuma, 0);
+  }
+
+  /**
+   * Create a new {@link InputStream} decompressing up to <code>readAhead</code>
+   * blocks in the background. A read-ahead of 0 decompresses on the reading
+   * thread when a block is needed.
+   */
+  public QatCodecBlockInputStream(InputStream in, int blockSize,
+      boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned, boolean useNuma,
+      int readAhead) {
+    this(in, null, blockSize, useNativeBuffer, useQzMalloc, useForcePinned, useNuma,
+        readAhead);
+  }
+
+  /**
+   * Create a new {@link InputStream} reading compressed blocks straight from
+   * <code>channel</code> into their direct buffer.
+   */
+  public QatCodecBlockInputStream(ReadableByteChannel channel, int blockSize,
+      boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned, boolean useNuma,
+      int readAhead) {
+    this(Channels.newInputStream(channel), channel, blockSize, useNativeBuffer, useQzMalloc,
+        useForcePinned, useNuma, readAhead);
+  }
+
+  private QatCodecBlockInputStream(InputStream in, ReadableByteChannel channel,
+      int blockSize, boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned,
+      boolean useNuma, int readAhead) {
     super(in);
+    this.channel = channel;
+    this.header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    if (readAhead < 0) {
+      throw new IllegalArgumentException("Invalid read-ahead " + readAhead);
+    }
+    if (channel instanceof SeekableByteChannel) {
+      try {
+        streamStart = ((SeekableByteChannel) channel).position();
+      } catch (IOException e) {
+        streamStart = -1;
+      }
+    }
+    // Acquire the session first so an exhausted session pool leaks no buffers.
+    context = QatCodecJNI.createDecompressContext();
+    this.readAhead = readAhead;
     this.uncompressedBlockSize = blockSize;
     this.compressedBlockSize = blockSize * 3 / 2;
     this.uncompressedBufferAllocator = CachedBufferAllocator
@@ -87,10 +209,35 @@ public QatCodecBlockInputStream(InputStream in, int blockSize,
     eof = false;
     tempBufferAllocator = CachedBufferAllocator
         .getBufferAllocatorFactory().getBufferAllocator(compressedBlockSize);
-    tempBuffer = tempBufferAllocator
-        .allocateByteArray(compressedBlockSize);
+    if (channel == null) {
+      tempBuffer = tempBufferAllocator
+          .allocateByteArray(compressedBlockSize);
+    }
 
-    context = QatCodecJNI.createDecompressContext();
+    if (readAhead > 0) {
+      // one block for the reader and readAhead decompressed ahead of it
+      blocks = new Block[readAhead + 1];
+      freeBlocks = new ArrayBlockingQueue<Block>(blocks.length + 1);
+      readyBlocks = new ArrayBlockingQueue<Block>(blocks.length + 1);
+      blocks[0] = new Block(uncompressedBuffer);
+      freeBlocks.add(blocks[0]);
+      for (int i = 1; i < blocks.length; i++) {
+        blocks[i] = new Block(uncompressedBufferAllocator.allocateDirectByteBuffer(
+            useNativeBuffer, uncompressedBlockSize, 64, useQzMalloc, useForcePinned,
+            useNuma));
+        blocks[i].buffer.clear();
+        freeBlocks.add(blocks[i]);
+      }
+      readAheadDone = new CountDownLatch(1);
+      readAheadTask = READ_AHEAD_EXECUTOR.submit(new Runnable() {
+        @Override
+        public void run() {
+          if (readAheadClaimed.compareAndSet(false, true)) {
+            readAhead();
+          }
+        }
+      });
+    }
   }
 
   private void checkStream() {
@@ -131,6 +278,29 @@ public int read(byte[] b, int off, int len) throws IOException {
     return len;
   }
 
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    checkStream();
+    if (uncompressedBufferPosition == originalLen) {
+      refill();
+    }
+    if (eof) {
+      return -1;
+    }
+    int len = Math.min(dst.remaining(), originalLen - uncompressedBufferPosition);
+    ByteBuffer src = uncompressedBuffer.duplicate();
+    src.limit(src.position() + len);
+    dst.put(src);
+    uncompressedBufferPosition += len;
+    uncompressedBuffer.position(uncompressedBufferPosition);
+    return len;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
   @Override
   public int read(byte[] b) throws IOException {
     return read(b, 0, b.length);
@@ -147,11 +317,27 @@ public int read() throws IOException {
     }
   }
 
+  /**
+   * Skips within the current block, or over the whole next block without
+   * decompressing it when the stream records its uncompressed length and
+   * <code>n</code> covers it.
+   */
   @Override
   public long skip(long n) throws IOException {
     checkStream();
     if (uncompressedBufferPosition == originalLen) {
-      refill();
+      if (readAhead > 0 || eof) {
+        refill();
+      } else {
+        int compressedLen = nextFrame();
+        if (compressedLen >= 0) {
+          if (frameUncompressedLen > 0 && n >= frameUncompressedLen) {
+            skipCompressedData(compressedLen);
+            return frameUncompressedLen;
+          }
+          loadBlock(compressedLen);
+        }
+      }
     }
     if (eof) {
       return -1;
@@ -162,45 +348,324 @@ public long skip(long n) throws IOException {
     return skipped;
   }
 
+  /**
+   * Positions the stream at <code>position</code> bytes of uncompressed data,
+   * decompressing only the block holding it. Requires a stream created on a
+   * {@link SeekableByteChannel} without read-ahead, written with a block index
+   * and extending to the end of the channel.
+   *
+   * @throws IOException if the stream doesn't meet these requirements, or its
+   *                     block index is corrupted
+   */
+  public void seek(long position) throws IOException {
+    checkStream();
+    if (position < 0) {
+      throw new IllegalArgumentException("Invalid position " + position);
+    }
+    QatCodecBlockFormat.BlockIndex index = loadBlockIndex();
+    int block = index.blockOf(position);
+    originalLen = uncompressedBufferPosition = 0;
+    eof = false;
+    if (block == index.frameOffsets.length) {
+      eof = true;
+      return;
+    }
+    ((SeekableByteChannel) channel).position(
+        streamStart + index.frameOffsets[block]);
+    uncompressedBuffer.clear();
+    refill();
+    if (eof) {
+      throw new EOFException("Unexpected end of block in input stream");
+    }
+    long blockEnd = block + 1 < index.uncompressedOffsets.length
+        ? index.uncompressedOffsets[block + 1] : index.uncompressedLength;
+    if (index.uncompressedOffsets[block] + originalLen != blockEnd) {
+      throw new IOException("Block index is corrupted, block " + block
+          + " doesn't match its frame");
+    }
+    uncompressedBufferPosition = (int) (position - index.uncompressedOffsets[block]);
+    uncompressedBuffer.position(uncompressedBufferPosition);
+  }
+
+  /**
+   * Returns the uncompressed length of the stream from its block index, with
+   * the same requirements as {@link #seek(long)}.
+   */
+  public long uncompressedLength() throws IOException {
+    checkStream();
+    return loadBlockIndex().uncompressedLength;
+  }
+
+  private QatCodecBlockFormat.BlockIndex loadBlockIndex() throws IOException {
+    if (blockIndex != null) {
+      return blockIndex;
+    }
+    if (streamStart < 0 || readAhead > 0) {
+      throw new IOException(
+          "Seeking requires a SeekableByteChannel and no read-ahead");
+    }
+    SeekableByteChannel seekable = (SeekableByteChannel) channel;
+    long position = seekable.position();
+    try {
+      blockIndex = QatCodecBlockFormat.readIndex(seekable, streamStart);
+    } finally {
+      seekable.position(position);
+    }
+    frameVersion = QatCodecBlockFormat.VERSION_1;
+    return blockIndex;
+  }
+
   private void refill() throws IOException {
-    int compressedLen = 0;
+    if (readAhead > 0) {
+      takeReadAheadBlock();
+      return;
+    }
+    int compressedLen = nextFrame();
+    if (compressedLen >= 0) {
+      loadBlock(compressedLen);
+    }
+  }
+
+  /**
+   * Reads the next frame header, returning its compressed length or -1 at the
+   * end of the stream. Stays at the end once reached, as a block index may
+   * follow the last frame.
+   */
+  private int nextFrame() throws IOException {
+    if (eof) {
+      return -1;
+    }
+    int compressedLen = readFrameHeader();
+    if (compressedLen < 0) {
+      eof = true;
+    }
+    return compressedLen;
+  }
+
+  private void loadBlock(int compressedLen) throws IOException {
+    readCompressedBlock(compressedLen);
+    originalLen = decompressBlock(compressedLen, uncompressedBuffer);
+    uncompressedBuffer.position(0);
+    uncompressedBuffer.limit(originalLen);
+    uncompressedBufferPosition = 0;
+  }
+
+  /**
+   * Hands the drained block back to the read-ahead worker and switches to the
+   * next decompressed one.
+   */
+  private void takeReadAheadBlock() throws IOException {
+    if (eof) {
+      return;
+    }
+    if (current != null) {
+      current.buffer.clear();
+      freeBlocks.add(current);
+      current = null;
+    }
+    Block next;
+    try {
+      next = readyBlocks.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for the next block");
+    }
+    if (next == END_OF_INPUT) {
+      IOException failure = readAheadFailure;
+      if (failure != null) {
+        // keep failing later reads too, with the same type of error as
+        // without read-ahead
+        readyBlocks.offer(END_OF_INPUT);
+        IOException e = failure instanceof EOFException
+            ? new EOFException(failure.getMessage())
+            : new IOException(failure.getMessage());
+        e.initCause(failure);
+        throw e;
+      }
+      eof = true;
+      return;
+    }
+    current = next;
+    uncompressedBuffer = next.buffer;
+    originalLen = next.length;
+    uncompressedBufferPosition = 0;
+  }
+
+  /**
+   * Read-ahead worker loop: reads each compressed block, waits for a free
+   * block and decompresses into it, until the end of the input, a failure or
+   * close.
+   */
+  private void readAhead() {
     try {
-       compressedLen = readCompressedBlockLength();
+      while (!stopReadAhead) {
+        int compressedLen = readFrameHeader();
+        if (compressedLen < 0) {
+          break;
+        }
+        readCompressedBlock(compressedLen);
+        Block block = freeBlocks.take();
+        if (stopReadAhead) {
+          break;
+        }
+        block.length = decompressBlock(compressedLen, block.buffer);
+        block.buffer.position(0);
+        block.buffer.limit(block.length);
+        readyBlocks.put(block);
+      }
     } catch (IOException e) {
-        eof = true;
-        return;
+      readAheadFailure = e;
+    } catch (InterruptedException e) {
+      readAheadFailure = new InterruptedIOException("Read-ahead interrupted");
+    } catch (RuntimeException | Error e) {
+      readAheadFailure = new IOException("Read-ahead failed", e);
+    } finally {
+      readyBlocks.offer(END_OF_INPUT);
+      readAheadDone.countDown();
+      if (!readAheadReleased.compareAndSet(false, true)) {
+        // close gave up waiting for this worker
+        releaseResources();
+      }
     }
+  }
+
+  private void readCompressedBlock(int compressedLen) throws IOException {
     if (compressedBuffer.capacity() < compressedLen) {
       throw new IOException("Input Stream is corrupted, compressed length large than " + compressedBlockSize);
     }
     readCompressedData(compressedBuffer, compressedLen);
+  }
+
+  private int decompressBlock(int compressedLen, ByteBuffer destBuffer)
+      throws IOException {
+    int decompressedLen;
     try {
-      final int uncompressed_size = QatCodecJNI.decompress(context,
+      decompressedLen = QatCodecJNI.decompress(context,
           compressedBuffer, 0, compressedLen,
-          uncompressedBuffer, 0, uncompressedBlockSize);
-      originalLen = uncompressed_size;
+          destBuffer, 0, uncompressedBlockSize);
     } catch (QatCodecException e) {
       throw new IOException("Input Stream is corrupted, can't decompress", e);
     }
-    uncompressedBuffer.position(0);
-    uncompressedBuffer.limit(originalLen);
-    uncompressedBufferPosition = 0;
+    if (frameUncompressedLen >= 0 && decompressedLen != frameUncompressedLen) {
+      throw new IOException("Input Stream is corrupted, decompressed length "
+          + decompressedLen + " differs from " + frameUncompressedLen);
+    }
+    return decompressedLen;
   }
 
-  private int readCompressedBlockLength() throws IOException {
-    int b1 = in.read();
-    int b2 = in.read();
-    int b3 = in.read();
-    int b4 = in.read();
-    if ((b1 | b2 | b3 | b4) < 0)
-      throw new EOFException();
-    return ((b4 << 24) + (b3 << 16) + (b2 << 8) + (b1 << 0));
+  /**
+   * Reads the next frame header, detecting the frame version on the first
+   * one, and returns the compressed length, or -1 at the end of the stream.
+   * A version 1 stream only ends at its terminator, a version 0 one where the
+   * input does.
+   *
+   * @throws EOFException if the input ends inside a frame header, or before
+   *                      the terminator of a version 1 stream
+   */
+  private int readFrameHeader() throws IOException {
+    int compressedLen;
+    try {
+      compressedLen = readIntLE(4);
+    } catch (EOFException e) {
+      if (header.position() > 0) {
+        throw new EOFException("Unexpected end of frame header in input stream");
+      }
+      if (frameVersion == QatCodecBlockFormat.VERSION_1) {
+        throw new EOFException("Unexpected end of input stream, missing terminator");
+      }
+      return -1;
+    }
+    if (frameVersion < 0) {
+      if (compressedLen == QatCodecBlockFormat.MAGIC) {
+        frameVersion = readFrameHeaderInt(2) & 0xff;
+        if (frameVersion != QatCodecBlockFormat.VERSION_1) {
+          throw new IOException("Unsupported frame version " + frameVersion);
+        }
+        compressedLen = readFrameHeaderInt(4);
+      } else {
+        frameVersion = QatCodecBlockFormat.VERSION_0;
+      }
+    }
+    frameUncompressedLen = -1;
+    if (frameVersion == QatCodecBlockFormat.VERSION_1) {
+      if (compressedLen == QatCodecBlockFormat.TERMINATOR) {
+        return -1;
+      }
+      frameUncompressedLen = readFrameHeaderInt(4);
+    }
+    if (compressedLen < 0) {
+      throw new IOException("Input Stream is corrupted, invalid compressed length "
+          + compressedLen);
+    }
+    return compressedLen;
+  }
+
+  /**
+   * Reads the rest of a frame header, failing if the input ends first.
+   */
+  private int readFrameHeaderInt(int length) throws IOException {
+    try {
+      return readIntLE(length);
+    } catch (EOFException e) {
+      throw new EOFException("Unexpected end of frame header in input stream");
+    }
+  }
+
+  /**
+   * Reads <code>length</code> bytes, up to 4, as a little-endian int.
+   */
+  private int readIntLE(int length) throws IOException {
+    header.clear();
+    if (channel != null) {
+      header.limit(length);
+      readFully(header);
+    } else {
+      for (int i = 0; i < length; i++) {
+        int b = in.read();
+        if (b < 0) {
+          throw new EOFException();
+        }
+        header.put((byte) b);
+      }
+    }
+    int value = 0;
+    for (int i = length - 1; i >= 0; i--) {
+      value = (value << 8) | (header.get(i) & 0xff);
+    }
+    return value;
+  }
+
+  private void skipCompressedData(int len) throws IOException {
+    if (channel instanceof SeekableByteChannel) {
+      SeekableByteChannel seekable = (SeekableByteChannel) channel;
+      seekable.position(seekable.position() + len);
+    } else if (channel != null) {
+      readCompressedBlock(len);
+    } else {
+      long left = len;
+      while (left > 0) {
+        long skipped = in.skip(left);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new EOFException("Unexpected end of block in input stream");
+          }
+          skipped = 1;
+        }
+        left -= skipped;
+      }
+    }
   }
 
   private void readCompressedData(ByteBuffer b, int len) throws IOException {
     int read = 0;
     assert b.capacity() >= len;
     b.clear();
+    if (channel != null) {
+      b.limit(len);
+      readFully(b);
+      b.flip();
+      return;
+    }
     while (read < len) {
       final int bytesToRead = Math.min(len - read, tempBuffer.length);
       final int r = in.read(tempBuffer, 0, bytesToRead);
@@ -213,6 +678,14 @@ private void readCompressedData(ByteBuffer b, int len) throws IOException {
     b.flip();
   }
 
+  private void readFully(ByteBuffer b) throws IOException {
+    while (b.hasRemaining()) {
+      if (channel.read(b) < 0) {
+        throw new EOFException("Unexpected end of block in input stream");
+      }
+    }
+  }
+
   @Override
   public boolean markSupported() {
     return false;
@@ -235,24 +708,82 @@ public void close() throws IOException {
     if (closed) {
       return;
     }
+    boolean workerRunning = false;
     try {
+      if (readAheadDone != null) {
+        // wakes a worker waiting for a free block, and interrupts one inside
+        // a read
+        stopReadAhead = true;
+        freeBlocks.offer(END_OF_INPUT);
+        if (readAheadClaimed.compareAndSet(false, true)) {
+          readAheadTask.cancel(false);
+        } else {
+          readAheadTask.cancel(true);
+          workerRunning = true;
+        }
+      }
+      // also wakes a worker blocked in a read that ignores interrupts
       in.close();
     }
     finally {
-      uncompressedBufferAllocator.releaseDirectByteBuffer(uncompressedBuffer);
-      compressedBufferAllocator.releaseDirectByteBuffer(compressedBuffer);
+      closed = true;
+      if (!workerRunning || awaitReadAhead()) {
+        in = null;
+        releaseResources();
+      }
+    }
+  }
+
+  /**
+   * Waits a while for the read-ahead worker to stop, and returns whether the
+   * caller is to release the buffers and the session. If the worker is still
+   * running, it may still use them, and releases them itself when it stops.
+   */
+  private boolean awaitReadAhead() {
+    try {
+      if (readAheadDone.await(READ_AHEAD_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // false if the worker stopped just now, after the wait
+    return !readAheadReleased.compareAndSet(false, true);
+  }
+
+  private void releaseResources() {
+    if (readAheadDone != null) {
+      for (int i = 1; i < blocks.length; i++) {
+        uncompressedBufferAllocator.releaseDirectByteBuffer(blocks[i].buffer);
+      }
+      uncompressedBuffer = blocks[0].buffer;
+    }
+    uncompressedBufferAllocator.releaseDirectByteBuffer(uncompressedBuffer);
+    compressedBufferAllocator.releaseDirectByteBuffer(compressedBuffer);
+    if (tempBuffer != null) {
       tempBufferAllocator.releaseByteArray(tempBuffer);
       tempBuffer = null;
-      in = null;
-      QatCodecJNI.destroyContext(context);
-      context = 0;
-      closed = true;
     }
+    QatCodecJNI.destroyContext(context);
+    context = 0;
   }
 
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(in=" + in
-        + ")";
+        + ", readAhead=" + readAhead
+        + ", frameVersion=" + frameVersion + ")";
+  }
+
+  /**
+   * An uncompressed block buffer and the length decompressed into it.
+   */
+  private static final class Block {
+    final ByteBuffer buffer;
+    int length;
+
+    Block(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
   }
 }
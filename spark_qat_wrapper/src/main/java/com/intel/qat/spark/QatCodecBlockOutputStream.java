@@ -18,9 +18,23 @@
 package com.intel.qat.spark;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.FilterOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sun.tools.javac.util.Assert;
 import org.slf4j.Logger;
@@ -33,26 +47,77 @@
  * Streaming QatCodec.
  * <p>
  * This class compresses data into fixed-size blocks of compressed data.
+ * <p>
+ * With a pipeline depth above 1, a filled block is compressed on a shared
+ * worker thread while the caller fills the next one, and compressed blocks are
+ * written in order as the caller needs their buffers back. Each block holds
+ * its own buffers and QAT session. A stream only waits for its first session
+ * and takes the others while the session pool has them free, so streams never
+ * wait on each other while holding sessions; a busy pool gives a shallower
+ * pipeline.
+ * <p>
+ * Once a block fails to compress or write, the stream is failed: writes and
+ * {@link #close()} rethrow the error, and close does not end the stream.
+ * <p>
+ * Created on a {@link WritableByteChannel}, compressed blocks are written
+ * from their direct buffers straight to the channel instead of through a heap
+ * buffer. {@link #write(ByteBuffer)} copies into the block buffer without a
+ * heap buffer either.
+ * <p>
+ * Frame version 1 records the uncompressed length of every block, so readers
+ * can skip blocks without decompressing them, and optionally ends the stream
+ * with a block index for {@link QatCodecBlockInputStream#seek(long)}. See
+ * {@link QatCodecBlockFormat}.
  * @see QatCodecBlockInputStream
  */
-public final class QatCodecBlockOutputStream extends FilterOutputStream {
+public final class QatCodecBlockOutputStream extends FilterOutputStream
+    implements WritableByteChannel {
 
   private static final Logger LOG =
       LoggerFactory.getLogger(QatCodecBlockOutputStream.class);
 
-  private long context;
+  private static final ExecutorService COMPRESS_EXECUTOR =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "qat-compress-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   private int level;
   private int compressedBlockSize;
   private int uncompressedBlockSize;
+  private final int pipelineDepth;
+  // the error a block failed with, after which the stream can't be completed
+  private IOException failure;
   private BufferAllocator compressedBufferAllocator;
   private BufferAllocator uncompressedBufferAllocator;
-  private ByteBuffer compressedBuffer;
-  private ByteBuffer uncompressedBuffer;
+  private final Block[] blocks;
+  // the block being filled by the caller
+  private Block current;
+  // blocks being compressed, oldest first
+  private final ArrayDeque<Block> inFlight = new ArrayDeque<Block>();
+  private final ArrayDeque<Block> free = new ArrayDeque<Block>();
   private boolean closed;
   private int uncompressedBufferPosition;
   private byte[] tempBuffer;
   private final BufferAllocator tempBufferAllocator;
+  // the channel written to directly, or null to write through tempBuffer
+  private final WritableByteChannel channel;
+  private final ByteBuffer header;
   static final int HEADER_LENGTH = 4;         // decompressed length
+  private final int frameVersion;
+  private final boolean blockIndex;
+  private boolean streamHeaderWritten;
+  // bytes of compressed stream and of input written so far
+  private long streamOffset;
+  private long uncompressedOffset;
+  private long[] indexEntries;
+  private int blockCount;
 
   /**
    * Create a new {@link OutputStream} with configurable codec, level and block size. Large
@@ -72,46 +137,153 @@ public QatCodecBlockOutputStream(OutputStream out, int level, int blockSize,
   public QatCodecBlockOutputStream(OutputStream out, int level, int blockSize,
       boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned,
       boolean useNuma) {
+    this(out, level, blockSize, useNativeBuffer, useQzMalloc, useForcePinned,
+        useNuma, 1);
+  }
+
+  /**
+   * Create a new {@link OutputStream} compressing up to
+   * <code>pipelineDepth - 1</code> blocks in the background while the caller
+   * fills the next one. A depth of 1 compresses synchronously.
+   */
+  public QatCodecBlockOutputStream(OutputStream out, int level, int blockSize,
+      boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned,
+      boolean useNuma, int pipelineDepth) {
+    this(out, level, blockSize, useNativeBuffer, useQzMalloc, useForcePinned,
+        useNuma, pipelineDepth, QatCodecBlockFormat.VERSION_0, false);
+  }
+
+  /**
+   * Create a new {@link OutputStream} writing frames of the given version,
+   * followed by a block index if <code>blockIndex</code> is set. The block
+   * index requires frame version 1.
+   */
+  public QatCodecBlockOutputStream(OutputStream out, int level, int blockSize,
+      boolean useNativeBuffer, boolean useQzMalloc, boolean useForcePinned,
+      boolean useNuma, int pipelineDepth, int frameVersion, boolean blockIndex) {
+    this(out, null, level, blockSize, useNativeBuffer, useQzMalloc,
+        useForcePinned, useNuma, pipelineDepth, frameVersion, blockIndex);
+  }
+
+  /**
+   * Create a new stream writing compressed blocks straight from their direct
+   * buffers to <code>channel</code>.
+   */
+  public QatCodecBlockOutputStream(WritableByteChannel channel, int level,
+      int blockSize, boolean useNativeBuffer, boolean useQzMalloc,
+      boolean useForcePinned, boolean useNuma, int pipelineDepth) {
+    this(channel, level, blockSize, useNativeBuffer, useQzMalloc,
+        useForcePinned, useNuma, pipelineDepth, QatCodecBlockFormat.VERSION_0,
+        false);
+  }
+
+  public QatCodecBlockOutputStream(WritableByteChannel channel, int level,
+      int blockSize, boolean useNativeBuffer, boolean useQzMalloc,
+      boolean useForcePinned, boolean useNuma, int pipelineDepth,
+      int frameVersion, boolean blockIndex) {
+    this(Channels.newOutputStream(channel), channel, level, blockSize,
+        useNativeBuffer, useQzMalloc, useForcePinned, useNuma, pipelineDepth,
+        frameVersion, blockIndex);
+  }
+
+  private QatCodecBlockOutputStream(OutputStream out, WritableByteChannel channel,
+      int level, int blockSize, boolean useNativeBuffer, boolean useQzMalloc,
+      boolean useForcePinned, boolean useNuma, int pipelineDepth,
+      int frameVersion, boolean blockIndex) {
     super(out);
+    this.channel = channel;
+    this.header = ByteBuffer.allocate(QatCodecBlockFormat.FRAME_HEADER_LENGTH_V1)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    if (pipelineDepth < 1) {
+      throw new IllegalArgumentException("Invalid pipeline depth " + pipelineDepth);
+    }
+    if (frameVersion != QatCodecBlockFormat.VERSION_0
+        && frameVersion != QatCodecBlockFormat.VERSION_1) {
+      throw new IllegalArgumentException("Invalid frame version " + frameVersion);
+    }
+    if (blockIndex && frameVersion == QatCodecBlockFormat.VERSION_0) {
+      throw new IllegalArgumentException("The block index requires frame version 1");
+    }
+    this.frameVersion = frameVersion;
+    this.blockIndex = blockIndex;
+    if (blockIndex) {
+      this.indexEntries = new long[32];
+    }
     this.level = level;
     this.uncompressedBlockSize = blockSize;
     this.compressedBlockSize = blockSize * 3 / 2;
+    // Acquire the sessions first so an exhausted session pool leaks no buffers.
+    // Only the first one is waited for, while holding none: streams waiting for
+    // more sessions while holding some could deadlock each other.
+    long[] contexts = new long[pipelineDepth];
+    int sessions = 0;
+    try {
+      contexts[0] = QatCodecJNI.createCompressContext(level);
+      sessions = 1;
+      while (sessions < pipelineDepth) {
+        long context = QatCodecJNI.tryCreateCompressContext(level);
+        if (context == 0) {
+          break;
+        }
+        contexts[sessions++] = context;
+      }
+    } catch (RuntimeException | Error e) {
+      for (int i = 0; i < sessions; i++) {
+        QatCodecJNI.destroyContext(contexts[i]);
+      }
+      throw e;
+    }
+    if (sessions < pipelineDepth) {
+      LOG.debug("Only " + sessions + " of " + pipelineDepth
+          + " QAT sessions are free, shrinking the pipeline");
+    }
+    this.pipelineDepth = sessions;
+    this.blocks = new Block[sessions];
+    for (int i = 0; i < sessions; i++) {
+      blocks[i] = new Block(contexts[i]);
+    }
     this.uncompressedBufferAllocator = CachedBufferAllocator.
             getBufferAllocatorFactory().getBufferAllocator(uncompressedBlockSize);
     this.compressedBufferAllocator = CachedBufferAllocator.
             getBufferAllocatorFactory().getBufferAllocator(compressedBlockSize);
-    this.uncompressedBuffer = uncompressedBufferAllocator
-        .allocateDirectByteBuffer(useNativeBuffer, uncompressedBlockSize, 64,
-            useQzMalloc, useForcePinned, useNuma);
-    this.compressedBuffer = compressedBufferAllocator.allocateDirectByteBuffer(
-        useNativeBuffer, compressedBlockSize, 64, useQzMalloc, useForcePinned,
-        useNuma);
-    if(uncompressedBuffer != null) {
-      uncompressedBuffer.clear();
-    }
+    for (Block block : blocks) {
+      block.uncompressedBuffer = uncompressedBufferAllocator
+          .allocateDirectByteBuffer(useNativeBuffer, uncompressedBlockSize, 64,
+              useQzMalloc, useForcePinned, useNuma);
+      block.compressedBuffer = compressedBufferAllocator.allocateDirectByteBuffer(
+          useNativeBuffer, compressedBlockSize, 64, useQzMalloc, useForcePinned,
+          useNuma);
+      if(block.uncompressedBuffer != null) {
+        block.uncompressedBuffer.clear();
+      }
 
-    if(compressedBuffer != null) {
-      compressedBuffer.clear();
+      if(block.compressedBuffer != null) {
+        block.compressedBuffer.clear();
+      }
+      free.add(block);
     }
+    current = free.poll();
 
     uncompressedBufferPosition = 0;
     closed = false;
 
     tempBufferAllocator = CachedBufferAllocator.getBufferAllocatorFactory().
             getBufferAllocator(compressedBlockSize);
-    tempBuffer = tempBufferAllocator.allocateByteArray(compressedBlockSize);
+    if (channel == null) {
+      tempBuffer = tempBufferAllocator.allocateByteArray(compressedBlockSize);
+    }
 
-    context = QatCodecJNI.createCompressContext(level);
-    LOG.debug("Create Qat OutputStream with level " + level);
+    LOG.debug("Create Qat OutputStream with level " + level
+        + " and pipeline depth " + pipelineDepth);
   }
 
-  private void checkStream() {
-    if (context == 0) {
-      throw new NullPointerException();
-    }
+  private void checkStream() throws IOException {
     if (closed) {
       throw new IllegalStateException("This output stream is already closed");
     }
+    if (failure != null) {
+      throw failure;
+    }
   }
 
   @Override
@@ -127,13 +299,13 @@ public void write(byte[] b, int off, int len) throws IOException {
 
     while (uncompressedBufferPosition + len > uncompressedBlockSize) {
       int left = uncompressedBlockSize - uncompressedBufferPosition;
-      uncompressedBuffer.put(b, off, left);
+      current.uncompressedBuffer.put(b, off, left);
       uncompressedBufferPosition = uncompressedBlockSize;
       compressBufferedData();
       off += left;
       len -= left;
     }
-    uncompressedBuffer.put(b, off, len);
+    current.uncompressedBuffer.put(b, off, len);
     uncompressedBufferPosition += len;
   }
 
@@ -142,6 +314,29 @@ public void write(byte[] b) throws IOException {
     write(b, 0, b.length);
   }
 
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    checkStream();
+    int written = src.remaining();
+    while (uncompressedBufferPosition + src.remaining() > uncompressedBlockSize) {
+      int left = uncompressedBlockSize - uncompressedBufferPosition;
+      ByteBuffer chunk = src.duplicate();
+      chunk.limit(chunk.position() + left);
+      current.uncompressedBuffer.put(chunk);
+      src.position(chunk.position());
+      uncompressedBufferPosition = uncompressedBlockSize;
+      compressBufferedData();
+    }
+    uncompressedBufferPosition += src.remaining();
+    current.uncompressedBuffer.put(src);
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
   @Override
   public void write(int b) throws IOException {
     byte[] oneByte = new byte[1];
@@ -154,35 +349,149 @@ public void close() throws IOException {
     if (closed) {
       return;
     }
+    Throwable error = null;
     try {
+      if (failure != null) {
+        // a block is lost, so don't end the stream as if it were complete
+        throw failure;
+      }
       finish();
-      out.close();
-    }
-    finally {
+      writeStreamEnd();
+    } catch (IOException | RuntimeException | Error e) {
+      error = e;
+      throw e;
+    } finally {
       closed = true;
-      uncompressedBufferAllocator.releaseDirectByteBuffer(uncompressedBuffer);
-      compressedBufferAllocator.releaseDirectByteBuffer(compressedBuffer);
-      tempBufferAllocator.releaseByteArray(tempBuffer);
-      tempBuffer = null;
+      awaitInFlight();
+      for (Block block : blocks) {
+        uncompressedBufferAllocator.releaseDirectByteBuffer(block.uncompressedBuffer);
+        compressedBufferAllocator.releaseDirectByteBuffer(block.compressedBuffer);
+        QatCodecJNI.destroyContext(block.context);
+      }
+      if (tempBuffer != null) {
+        tempBufferAllocator.releaseByteArray(tempBuffer);
+        tempBuffer = null;
+      }
+      OutputStream stream = out;
       out = null;
-      QatCodecJNI.destroyContext(context);
-      context = 0;
+      current = null;
+      try {
+        stream.close();
+      } catch (IOException e) {
+        if (error == null) {
+          throw e;
+        }
+        error.addSuppressed(e);
+      }
     }
     LOG.debug("Close Qat OutputStream with level " + level);
   }
 
+  /**
+   * Waits for the background compressions a failed stream leaves behind, so
+   * no worker touches a buffer or session after it is released.
+   */
+  private void awaitInFlight() {
+    boolean interrupted = false;
+    for (Block block : inFlight) {
+      while (true) {
+        try {
+          block.pending.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          break;
+        }
+      }
+    }
+    inFlight.clear();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void compressBufferedData() throws IOException {
     if (uncompressedBufferPosition == 0) {
       return;
     }
-    int compressedLength = QatCodecJNI.compress(context,
-        uncompressedBuffer, 0, uncompressedBufferPosition,
-        compressedBuffer, 0, compressedBlockSize);
+    final Block block = current;
+    final int length = uncompressedBufferPosition;
+    uncompressedBufferPosition = 0;
+    block.length = length;
+    if (pipelineDepth == 1) {
+      try {
+        writeBlock(block, block.compress(length));
+      } catch (IOException e) {
+        failure = e;
+        throw e;
+      }
+      return;
+    }
+    block.pending = COMPRESS_EXECUTOR.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return block.compress(length);
+      }
+    });
+    inFlight.add(block);
+    current = free.poll();
+    if (current == null) {
+      current = writeOldest();
+    }
+  }
+
+  /**
+   * Waits for the oldest block in flight, writes it and returns it for reuse.
+   * If that fails the block is lost, and the stream is failed.
+   */
+  private Block writeOldest() throws IOException {
+    Block block = inFlight.peek();
+    try {
+      int compressedLength;
+      try {
+        compressedLength = block.pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for QAT compression");
+      } catch (ExecutionException e) {
+        inFlight.poll();
+        throw new IOException("QAT compression failed", e.getCause());
+      }
+      inFlight.poll();
+      block.pending = null;
+      writeBlock(block, compressedLength);
+      return block;
+    } catch (IOException e) {
+      failure = e;
+      throw e;
+    }
+  }
+
+  private void writeBlock(Block block, int compressedLength) throws IOException {
+    ByteBuffer compressedBuffer = block.compressedBuffer;
+    int frameHeaderLength = QatCodecBlockFormat.FRAME_HEADER_LENGTH_V0;
+    if (frameVersion == QatCodecBlockFormat.VERSION_1) {
+      writeStreamHeader();
+      frameHeaderLength = QatCodecBlockFormat.FRAME_HEADER_LENGTH_V1;
+      if (blockIndex) {
+        addIndexEntry(streamOffset, uncompressedOffset);
+      }
+    }
+    streamOffset += frameHeaderLength + compressedLength;
+    uncompressedOffset += block.length;
+    if (channel != null) {
+      writeBlockToChannel(block, compressedLength, frameHeaderLength);
+      return;
+    }
     writeIntLE(compressedLength, tempBuffer, 0);
+    if (frameHeaderLength == QatCodecBlockFormat.FRAME_HEADER_LENGTH_V1) {
+      writeIntLE(block.length, tempBuffer, 4);
+    }
     compressedBuffer.position(0);
     compressedBuffer.limit(compressedLength);
     int totalWritten = 0;
-    int off = 4;
+    int off = frameHeaderLength;
     while (totalWritten < compressedLength) {
       int bytesToWrite = Math.min((compressedLength - totalWritten), tempBuffer.length - off);
       compressedBuffer.get(tempBuffer, off, bytesToWrite);
@@ -190,17 +499,112 @@ private void compressBufferedData() throws IOException {
       totalWritten += bytesToWrite;
       off = 0;
     }
-    uncompressedBuffer.clear();
+    block.uncompressedBuffer.clear();
+    compressedBuffer.clear();
+  }
+
+  private void writeBlockToChannel(Block block, int compressedLength,
+      int frameHeaderLength) throws IOException {
+    ByteBuffer compressedBuffer = block.compressedBuffer;
+    header.clear();
+    header.putInt(0, compressedLength);
+    if (frameHeaderLength == QatCodecBlockFormat.FRAME_HEADER_LENGTH_V1) {
+      header.putInt(4, block.length);
+    }
+    header.limit(frameHeaderLength);
+    compressedBuffer.position(0);
+    compressedBuffer.limit(compressedLength);
+    if (channel instanceof GatheringByteChannel) {
+      ByteBuffer[] frame = {header, compressedBuffer};
+      while (header.hasRemaining() || compressedBuffer.hasRemaining()) {
+        ((GatheringByteChannel) channel).write(frame);
+      }
+    } else {
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      while (compressedBuffer.hasRemaining()) {
+        channel.write(compressedBuffer);
+      }
+    }
+    block.uncompressedBuffer.clear();
     compressedBuffer.clear();
-    uncompressedBufferPosition = 0;
   }
 
   public void finish() throws IOException {
     checkStream();
     compressBufferedData();
+    while (!inFlight.isEmpty()) {
+      free.add(writeOldest());
+    }
+    out.flush();
+  }
+
+  private void writeStreamHeader() throws IOException {
+    if (streamHeaderWritten) {
+      return;
+    }
+    byte[] streamHeader = new byte[QatCodecBlockFormat.STREAM_HEADER_LENGTH];
+    writeIntLE(QatCodecBlockFormat.MAGIC, streamHeader, 0);
+    streamHeader[4] = (byte) frameVersion;
+    streamHeader[5] = (byte) (blockIndex ? QatCodecBlockFormat.FLAG_BLOCK_INDEX : 0);
+    writeRaw(streamHeader);
+    streamHeaderWritten = true;
+    streamOffset += streamHeader.length;
+  }
+
+  private void addIndexEntry(long frameOffset, long blockOffset) {
+    if (2 * blockCount == indexEntries.length) {
+      indexEntries = Arrays.copyOf(indexEntries, indexEntries.length * 2);
+    }
+    indexEntries[2 * blockCount] = frameOffset;
+    indexEntries[2 * blockCount + 1] = blockOffset;
+    blockCount++;
+  }
+
+  /**
+   * Ends a version 1 stream by the terminator, followed by the block index and
+   * the trailer locating it if the stream has one.
+   */
+  private void writeStreamEnd() throws IOException {
+    if (frameVersion != QatCodecBlockFormat.VERSION_1) {
+      return;
+    }
+    writeStreamHeader();
+    if (!blockIndex) {
+      byte[] terminator = new byte[4];
+      writeIntLE(QatCodecBlockFormat.TERMINATOR, terminator, 0);
+      writeRaw(terminator);
+      out.flush();
+      return;
+    }
+    ByteBuffer index = ByteBuffer.allocate(4 + 4
+        + blockCount * QatCodecBlockFormat.INDEX_ENTRY_LENGTH + 8
+        + QatCodecBlockFormat.TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    index.putInt(QatCodecBlockFormat.TERMINATOR);
+    long indexOffset = streamOffset + 4;
+    index.putInt(blockCount);
+    for (int i = 0; i < 2 * blockCount; i++) {
+      index.putLong(indexEntries[i]);
+    }
+    index.putLong(uncompressedOffset);
+    index.putLong(indexOffset);
+    index.putInt(QatCodecBlockFormat.INDEX_MAGIC);
+    writeRaw(index.array());
     out.flush();
   }
 
+  private void writeRaw(byte[] b) throws IOException {
+    if (channel == null) {
+      out.write(b, 0, b.length);
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(b);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
   private static void writeIntLE(int i, byte [] buf, int off) {
     buf[off] = (byte)i;
     buf[off + 1]= (byte)(i >>> 8);
@@ -213,6 +617,29 @@ private static void writeIntLE(int i, byte [] buf, int off) {
   public String toString() {
     return getClass().getSimpleName() + "(out=" + out
         + ", level=" + level
-        + ", blockSize=" + uncompressedBlockSize + ")";
+        + ", blockSize=" + uncompressedBlockSize
+        + ", pipelineDepth=" + pipelineDepth
+        + ", frameVersion=" + frameVersion + ")";
+  }
+
+  /**
+   * A block buffer pair with the QAT session compressing it.
+   */
+  private final class Block {
+    final long context;
+    ByteBuffer uncompressedBuffer;
+    ByteBuffer compressedBuffer;
+    Future<Integer> pending;
+    // uncompressed length of the data in the block
+    int length;
+
+    Block(long context) {
+      this.context = context;
+    }
+
+    int compress(int length) {
+      return QatCodecJNI.compress(context, uncompressedBuffer, 0, length,
+          compressedBuffer, 0, compressedBlockSize);
+    }
   }
 }
@@ -33,12 +33,17 @@ public class CachedBufferAllocator implements BufferAllocator
 {
     private static final Logger LOG = LoggerFactory.getLogger(CachedBufferAllocator.class);
 
+    /**
+     * The default factory hands out the shared lock-free {@link PooledBufferAllocator}.
+     * Use {@link #setBufferAllocatorFactory} with {@link #getAllocator} to go back to
+     * per-size synchronized allocators.
+     */
     private static BufferAllocatorFactory factory = new BufferAllocatorFactory()
     {
         @Override
         public BufferAllocator getBufferAllocator(int bufferSize)
         {
-            return CachedBufferAllocator.getAllocator(bufferSize);
+            return PooledBufferAllocator.getInstance();
         }
     };
 
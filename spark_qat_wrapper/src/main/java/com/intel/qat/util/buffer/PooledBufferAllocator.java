@@ -0,0 +1,492 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.util.buffer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.intel.qat.jni.QatCodecJNI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link BufferAllocator} pooling buffers by size class and memory kind
+ * without taking any lock.
+ *
+ * <p>Sizes are rounded up to a multiple of 4 KB, as in the Kafka allocator,
+ * so the 1.5x compressed block buffers are pooled at their own size. Each
+ * thread keeps its last few released buffers in a small cache and reuses them
+ * without touching shared state. Other buffers go to one lock-free stack per
+ * kind and size class, which any thread can pop.
+ *
+ * <p>The most recently released buffer is reused first, so buffers no longer
+ * needed sink to the bottom of the stacks. Buffers idle for longer than the
+ * idle timeout are evicted by a daemon timer, and by allocations and releases
+ * that find an eviction due, so an executor that stops shuffling still gives
+ * its memory back. Buffers cached by a thread that has died are handed to the
+ * shared stacks.
+ *
+ * <p>The total size of pooled buffers is capped. A release beyond the cap, or
+ * an eviction, frees <code>allocNativeBuffer</code> and <code>qzMalloc</code>
+ * memory right away and leaves other buffers to the GC. Live, pooled and
+ * pinned bytes are tracked for monitoring.
+ *
+ * <p>Buffers are handed out with the capacity of their size class, which may
+ * be larger than the requested size.
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+  private static final Logger LOG = LoggerFactory.getLogger(PooledBufferAllocator.class);
+
+  static final int SIZE_CLASS_GRANULARITY = 4096;
+  static final int MAX_SIZE = 1 << 30;  // 1 GB
+  // Native buffers are page aligned so a pooled buffer satisfies any smaller alignment.
+  private static final int NATIVE_ALIGNMENT = 4096;
+  static final int THREAD_CACHE_SLOTS = 8;
+  // Eviction runs at least this often, so a shorter idle timeout applies soon.
+  private static final long MAX_EVICTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public static final long DEFAULT_MAX_POOLED_BYTES = 256L * 1024 * 1024;
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000L;
+
+  // Memory kinds of pooled buffers. QZ_MALLOC is combined with the NUMA and
+  // force-pinned flags, so qzMalloc buffers only serve matching requests.
+  static final int HEAP = 0;
+  static final int DIRECT = 1;
+  static final int NATIVE = 2;
+  static final int QZ_MALLOC = 3;
+  private static final int QZ_MALLOC_NUMA = 1;
+  private static final int QZ_MALLOC_PINNED = 2;
+
+  private static final ScheduledExecutorService EVICTOR =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "qat-buffer-pool-evictor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static final PooledBufferAllocator INSTANCE =
+      new PooledBufferAllocator(DEFAULT_MAX_POOLED_BYTES, DEFAULT_IDLE_TIMEOUT_MS);
+
+  // Shared stacks of pooled buffers by kind and capacity, see key().
+  private final ConcurrentHashMap<Long, ConcurrentLinkedDeque<Entry>> pools =
+      new ConcurrentHashMap<Long, ConcurrentLinkedDeque<Entry>>();
+  private final ConcurrentLinkedQueue<ThreadCache> threadCaches =
+      new ConcurrentLinkedQueue<ThreadCache>();
+  private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+    @Override
+    protected ThreadCache initialValue() {
+      ThreadCache cache = new ThreadCache(Thread.currentThread());
+      threadCaches.add(cache);
+      return cache;
+    }
+  };
+  // Memory kind of every native or qzMalloc buffer handed out, keyed by identity.
+  private final ConcurrentHashMap<IdentityKey, Integer> nativeKinds =
+      new ConcurrentHashMap<IdentityKey, Integer>();
+
+  private volatile long maxPooledBytes;
+  private volatile long idleTimeoutNanos;
+  private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+  private final AtomicLong liveBytes = new AtomicLong();
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final AtomicLong pinnedBytes = new AtomicLong();
+
+  public static PooledBufferAllocator getInstance() {
+    return INSTANCE;
+  }
+
+  public PooledBufferAllocator(long maxPooledBytes, long idleTimeoutMs) {
+    configure(maxPooledBytes, idleTimeoutMs);
+    scheduleEviction(new WeakReference<PooledBufferAllocator>(this));
+  }
+
+  /**
+   * Sets the cap on pooled bytes and the idle time after which a pooled
+   * buffer is evicted. A lower cap takes effect as buffers are released or
+   * evicted.
+   */
+  public void configure(long maxPooledBytes, long idleTimeoutMs) {
+    if (maxPooledBytes < 0 || idleTimeoutMs <= 0) {
+      throw new IllegalArgumentException("Invalid buffer pool configuration");
+    }
+    this.maxPooledBytes = maxPooledBytes;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+  }
+
+  /**
+   * Returns the bytes allocated by this pool and not yet freed or dropped,
+   * whether in use or pooled.
+   */
+  public long getLiveBytes() {
+    return liveBytes.get();
+  }
+
+  /**
+   * Returns the bytes currently held in the pool.
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * Returns the live bytes allocated with force-pinned <code>qzMalloc</code>.
+   */
+  public long getPinnedBytes() {
+    return pinnedBytes.get();
+  }
+
+  @Override
+  public ByteBuffer allocateDirectByteBuffer(boolean useNativeBuffer, int size,
+      int align, boolean useQzMalloc, boolean useForcePinned, boolean useNuma) {
+    if (align > NATIVE_ALIGNMENT) {
+      throw new IllegalArgumentException("Alignment " + align
+          + " is larger than the supported " + NATIVE_ALIGNMENT);
+    }
+    int capacity = sizeClass(size);
+    int kind = DIRECT;
+    if (useNativeBuffer) {
+      kind = useQzMalloc ? qzMallocKind(useNuma, useForcePinned) : NATIVE;
+    }
+
+    Object buffer = take(kind, capacity);
+    if (buffer != null) {
+      ((ByteBuffer) buffer).clear();
+      return (ByteBuffer) buffer;
+    }
+    return newDirectByteBuffer(kind, capacity, useForcePinned, useNuma);
+  }
+
+  private ByteBuffer newDirectByteBuffer(int kind, int capacity,
+      boolean useForcePinned, boolean useNuma) {
+    if (kind >= QZ_MALLOC) {
+      try {
+        ByteBuffer buffer = (ByteBuffer) QatCodecJNI.qzMalloc(capacity, useNuma,
+            useForcePinned);
+        if (useForcePinned) {
+          pinnedBytes.addAndGet(capacity);
+        }
+        return track(buffer, kind);
+      } catch (Throwable t) {
+        LOG.error("Native buffer allocation with qzMalloc failed and"
+            + " fall back to native without qzMalloc allocation.");
+        kind = NATIVE;
+      }
+    }
+    if (kind == NATIVE) {
+      try {
+        return track((ByteBuffer) QatCodecJNI.allocNativeBuffer(capacity, NATIVE_ALIGNMENT),
+            NATIVE);
+      } catch (Throwable t) {
+        LOG.error("Native buffer allocation is failed and fall back to direct allocation.");
+      }
+    }
+    liveBytes.addAndGet(capacity);
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  private ByteBuffer track(ByteBuffer buffer, int kind) {
+    nativeKinds.put(new IdentityKey(buffer), kind);
+    liveBytes.addAndGet(buffer.capacity());
+    return buffer;
+  }
+
+  @Override
+  public void releaseDirectByteBuffer(ByteBuffer buffer) {
+    if (buffer == null || !isSizeClass(buffer.capacity())) {
+      // not allocated by this pool
+      return;
+    }
+    Integer kind = nativeKinds.get(new IdentityKey(buffer));
+    put(kind == null ? DIRECT : kind, buffer, buffer.capacity());
+  }
+
+  @Override
+  public byte[] allocateByteArray(int size) {
+    int capacity = sizeClass(size);
+    Object array = take(HEAP, capacity);
+    if (array != null) {
+      return (byte[]) array;
+    }
+    liveBytes.addAndGet(capacity);
+    return new byte[capacity];
+  }
+
+  @Override
+  public void releaseByteArray(byte[] buffer) {
+    if (buffer != null && isSizeClass(buffer.length)) {
+      put(HEAP, buffer, buffer.length);
+    }
+  }
+
+  private Object take(int kind, int capacity) {
+    long now = System.nanoTime();
+    evictIdle(now);
+    Entry entry = threadCache.get().poll(kind, capacity);
+    if (entry == null) {
+      ConcurrentLinkedDeque<Entry> pool = pools.get(key(kind, capacity));
+      entry = pool == null ? null : pool.pollFirst();
+      if (entry == null) {
+        return null;
+      }
+    }
+    pooledBytes.addAndGet(-entry.capacity);
+    return entry.buffer;
+  }
+
+  private void put(int kind, Object buffer, int capacity) {
+    long now = System.nanoTime();
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      free(kind, buffer, capacity);
+    } else {
+      Entry entry = new Entry(buffer, kind, capacity, now);
+      if (!threadCache.get().offer(entry)) {
+        pool(kind, capacity).offerFirst(entry);
+      }
+    }
+    evictIdle(now);
+  }
+
+  private ConcurrentLinkedDeque<Entry> pool(int kind, int capacity) {
+    Long key = key(kind, capacity);
+    ConcurrentLinkedDeque<Entry> pool = pools.get(key);
+    if (pool == null) {
+      ConcurrentLinkedDeque<Entry> created = new ConcurrentLinkedDeque<Entry>();
+      pool = pools.putIfAbsent(key, created);
+      if (pool == null) {
+        pool = created;
+      }
+    }
+    return pool;
+  }
+
+  private static Long key(int kind, int capacity) {
+    return ((long) kind << 32) | capacity;
+  }
+
+  /**
+   * Evicts idle buffers of the allocator until it is collected, at least once
+   * per half idle timeout.
+   */
+  private static void scheduleEviction(final WeakReference<PooledBufferAllocator> ref) {
+    PooledBufferAllocator allocator = ref.get();
+    if (allocator == null) {
+      return;
+    }
+    EVICTOR.schedule(new Runnable() {
+      @Override
+      public void run() {
+        PooledBufferAllocator allocator = ref.get();
+        if (allocator == null) {
+          return;
+        }
+        try {
+          allocator.evictIdle(System.nanoTime());
+        } catch (Throwable t) {
+          LOG.warn("Failed to evict idle QAT buffers", t);
+        }
+        scheduleEviction(ref);
+      }
+    }, allocator.evictionIntervalNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  private long evictionIntervalNanos() {
+    return Math.min(idleTimeoutNanos / 2, MAX_EVICTION_INTERVAL_NANOS);
+  }
+
+  /**
+   * Frees buffers idle for longer than the idle timeout, and moves the buffers
+   * cached by dead threads to the shared stacks. Runs at most once per
+   * eviction interval, on the timer or the thread that finds it due.
+   */
+  private void evictIdle(long now) {
+    long last = lastEviction.get();
+    if (now - last < evictionIntervalNanos() || !lastEviction.compareAndSet(last, now)) {
+      return;
+    }
+    long idleSince = now - idleTimeoutNanos;
+    for (Iterator<ThreadCache> it = threadCaches.iterator(); it.hasNext();) {
+      ThreadCache cache = it.next();
+      boolean dead = !cache.isOwnerAlive();
+      for (int i = 0; i < THREAD_CACHE_SLOTS; i++) {
+        Entry entry = cache.slots.get(i);
+        if (entry == null) {
+          continue;
+        }
+        boolean idle = entry.releasedAt - idleSince < 0;
+        if ((idle || dead) && cache.slots.compareAndSet(i, entry, null)) {
+          if (idle) {
+            evict(entry);
+          } else {
+            pool(entry.kind, entry.capacity).offerFirst(entry);
+          }
+        }
+      }
+      if (dead) {
+        it.remove();
+      }
+    }
+    for (Map.Entry<Long, ConcurrentLinkedDeque<Entry>> pool : pools.entrySet()) {
+      Entry oldest;
+      while ((oldest = pool.getValue().peekLast()) != null
+          && oldest.releasedAt - idleSince < 0
+          && pool.getValue().removeLastOccurrence(oldest)) {
+        evict(oldest);
+      }
+    }
+  }
+
+  private void evict(Entry entry) {
+    pooledBytes.addAndGet(-entry.capacity);
+    free(entry.kind, entry.buffer, entry.capacity);
+  }
+
+  private void free(int kind, Object buffer, int capacity) {
+    liveBytes.addAndGet(-capacity);
+    if (kind < NATIVE) {
+      // left to the GC
+      return;
+    }
+    ByteBuffer byteBuffer = (ByteBuffer) buffer;
+    nativeKinds.remove(new IdentityKey(byteBuffer));
+    if (kind == NATIVE) {
+      QatCodecJNI.freeNativeBuffer(byteBuffer);
+    } else {
+      if (((kind - QZ_MALLOC) & QZ_MALLOC_PINNED) != 0) {
+        pinnedBytes.addAndGet(-capacity);
+      }
+      QatCodecJNI.qzFree(byteBuffer);
+    }
+  }
+
+  private static int qzMallocKind(boolean useNuma, boolean useForcePinned) {
+    return QZ_MALLOC + (useNuma ? QZ_MALLOC_NUMA : 0)
+        + (useForcePinned ? QZ_MALLOC_PINNED : 0);
+  }
+
+  /**
+   * Rounds <code>size</code> up to the capacity of its size class, a multiple
+   * of 4 KB.
+   */
+  static int sizeClass(int size) {
+    if (size < 0 || size > MAX_SIZE) {
+      throw new IllegalArgumentException("Unsupported buffer size " + size);
+    }
+    int rounded = (size + SIZE_CLASS_GRANULARITY - 1) & -SIZE_CLASS_GRANULARITY;
+    return Math.max(rounded, SIZE_CLASS_GRANULARITY);
+  }
+
+  /**
+   * Returns whether <code>capacity</code> is the capacity of a size class.
+   */
+  static boolean isSizeClass(int capacity) {
+    return capacity > 0 && capacity <= MAX_SIZE
+        && capacity % SIZE_CLASS_GRANULARITY == 0;
+  }
+
+  private static final class Entry {
+    final Object buffer;
+    final int kind;
+    final int capacity;
+    final long releasedAt;
+
+    Entry(Object buffer, int kind, int capacity, long releasedAt) {
+      this.buffer = buffer;
+      this.kind = kind;
+      this.capacity = capacity;
+      this.releasedAt = releasedAt;
+    }
+  }
+
+  /**
+   * The last few buffers one thread released, for it to reuse without
+   * contending with other threads. Slots are atomic so the eviction can take
+   * entries out from another thread.
+   */
+  private static final class ThreadCache {
+    private final WeakReference<Thread> owner;
+    final AtomicReferenceArray<Entry> slots =
+        new AtomicReferenceArray<Entry>(THREAD_CACHE_SLOTS);
+
+    ThreadCache(Thread owner) {
+      this.owner = new WeakReference<Thread>(owner);
+    }
+
+    Entry poll(int kind, int capacity) {
+      for (int i = 0; i < THREAD_CACHE_SLOTS; i++) {
+        Entry entry = slots.get(i);
+        if (entry != null && entry.kind == kind && entry.capacity == capacity
+            && slots.compareAndSet(i, entry, null)) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    boolean offer(Entry entry) {
+      for (int i = 0; i < THREAD_CACHE_SLOTS; i++) {
+        if (slots.get(i) == null && slots.compareAndSet(i, null, entry)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    boolean isOwnerAlive() {
+      Thread thread = owner.get();
+      return thread != null && thread.isAlive();
+    }
+  }
+
+  /**
+   * Identity wrapper, as {@link ByteBuffer#equals} and
+   * {@link ByteBuffer#hashCode} depend on the buffer content.
+   */
+  private static final class IdentityKey {
+    private final ByteBuffer buffer;
+
+    IdentityKey(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof IdentityKey && ((IdentityKey) other).buffer == buffer;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(buffer);
+    }
+  }
+}
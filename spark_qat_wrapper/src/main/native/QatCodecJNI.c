@@ -23,6 +23,9 @@
 
 #include <stdlib.h>
 #include <string.h>
+#include <errno.h>
+#include <time.h>
+#include <pthread.h>
 
 #include <stdint.h>
 
@@ -40,6 +43,9 @@
 
 #define QAT_ZIP_LIBRARY_NAME "libqatzip.so"
 
+/* QatCodecJNI.DES_TOO_SMALL, the batch result of an entry that does not fit */
+#define DES_TOO_SMALL -1
+
 typedef int (*dlsym_qzCompress)(QzSession_T *sess, const unsigned char* src,
     unsigned int* src_len, unsigned char* dest, unsigned int* dest_len,
     unsigned int last);
@@ -48,6 +54,10 @@ typedef int (*dlsym_qzDecompress)(QzSession_T *sess, const unsigned char* src,
     unsigned int* uncompressed_buffer_len);
 typedef int (*dlsym_qzGetDefaults)(QzSessionParams_T *defaults);
 typedef int (*dlsym_qzSetDefaults)(QzSessionParams_T *defaults);
+typedef int (*dlsym_qzInit)(QzSession_T *sess, unsigned char sw_backup);
+typedef int (*dlsym_qzSetupSession)(QzSession_T *sess, QzSessionParams_T *params);
+typedef int (*dlsym_qzTeardownSession)(QzSession_T *sess);
+typedef int (*dlsym_qzClose)(QzSession_T *sess);
 
 
 typedef struct qat_wrapper_context {                                                                                                     int magic;
@@ -55,14 +65,233 @@ typedef struct qat_wrapper_context {
     dlsym_qzDecompress decompress;
     dlsym_qzGetDefaults getDefaults;
     dlsym_qzSetDefaults setDefaults;
+    dlsym_qzInit init;
+    dlsym_qzSetupSession setupSession;
+    dlsym_qzTeardownSession teardownSession;
+    dlsym_qzClose close;
 } qat_wrapper_context_t;
 
 qat_wrapper_context_t g_qat_wrapper_context;
 
-__thread QzSession_T  g_qzSession = {
-    .internal = NULL,
+#define DEFAULT_MAX_SESSIONS 64
+#define DEFAULT_ACQUIRE_TIMEOUT_MS 30000
+/* Level requested by decompress contexts, which can use a session of any level. */
+#define ANY_LEVEL 0
+
+/*
+ * A QATzip session owned by one compress/decompress context. The address of
+ * this struct is the context handle returned to Java.
+ */
+typedef struct qat_session {
+    QzSession_T session;
+    int level;
+    struct qat_session *next;
+} qat_session_t;
+
+/*
+ * Bounded pool of QATzip sessions shared by all contexts in the process.
+ * At most max_sessions sessions are alive at any time; idle sessions are kept
+ * on free_list and handed to the next context instead of being torn down.
+ */
+typedef struct qat_session_pool {
+    pthread_mutex_t lock;
+    pthread_cond_t available;
+    qat_session_t *free_list;
+    int live;
+    int max_sessions;
+    int acquire_timeout_ms;
+} qat_session_pool_t;
+
+qat_session_pool_t g_qat_session_pool = {
+    .lock = PTHREAD_MUTEX_INITIALIZER,
+    .available = PTHREAD_COND_INITIALIZER,
+    .free_list = NULL,
+    .live = 0,
+    .max_sessions = DEFAULT_MAX_SESSIONS,
+    .acquire_timeout_ms = DEFAULT_ACQUIRE_TIMEOUT_MS,
 };
 
+static void close_session(qat_session_t *qat_session)
+{
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    qat_wrapper_context->teardownSession(&qat_session->session);
+    qat_wrapper_context->close(&qat_session->session);
+    free(qat_session);
+}
+
+/*
+ * Initializes qat_session with its own copy of the session parameters, so the
+ * compression level never goes through the process-wide qzSetDefaults.
+ */
+static int setup_session(JNIEnv *env, qat_session_t *qat_session, int level)
+{
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    QzSessionParams_T params;
+
+    qat_wrapper_context->getDefaults(&params);
+    if (level != ANY_LEVEL)
+    {
+        params.comp_lvl = level;
+    }
+    /* Positive return codes are warnings, e.g. QZ_NO_HW with software backup. */
+    int ret = qat_wrapper_context->init(&qat_session->session, params.sw_backup);
+    if (ret >= QZ_OK)
+    {
+        ret = qat_wrapper_context->setupSession(&qat_session->session, &params);
+    }
+    if (ret < QZ_OK)
+    {
+        char temp[256];
+        snprintf(temp, sizeof(temp), "Could not create QAT session. Return error code %d", ret);
+        qat_wrapper_context->close(&qat_session->session);
+        THROW(env, "java/lang/InternalError", temp);
+        return ret;
+    }
+    qat_session->level = params.comp_lvl;
+    return QZ_OK;
+}
+
+static qat_session_t *open_session(JNIEnv *env, int level)
+{
+    qat_session_t *qat_session = calloc(1, sizeof(qat_session_t));
+    if (qat_session == NULL)
+    {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't allocate QAT session");
+        return NULL;
+    }
+    if (setup_session(env, qat_session, level) != QZ_OK)
+    {
+        free(qat_session);
+        return NULL;
+    }
+    return qat_session;
+}
+
+/* Re-creates an idle session with a different compression level. */
+static int reopen_session(JNIEnv *env, qat_session_t *qat_session, int level)
+{
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    qat_wrapper_context->teardownSession(&qat_session->session);
+    qat_wrapper_context->close(&qat_session->session);
+    memset(&qat_session->session, 0, sizeof(QzSession_T));
+    return setup_session(env, qat_session, level);
+}
+
+/* Unlinks the first idle session set up with level, or NULL if there is none. */
+static qat_session_t *take_free_session(qat_session_pool_t *pool, int level)
+{
+    qat_session_t **link = &pool->free_list;
+    while (*link != NULL)
+    {
+        qat_session_t *qat_session = *link;
+        if (level == ANY_LEVEL || qat_session->level == level)
+        {
+            *link = qat_session->next;
+            qat_session->next = NULL;
+            return qat_session;
+        }
+        link = &qat_session->next;
+    }
+    return NULL;
+}
+
+/*
+ * Takes an idle session with the requested level from the pool, opens a new one
+ * while the pool is below its cap, re-creates an idle session of another level
+ * once the cap is reached, or waits up to acquire_timeout_ms for another context
+ * to release one. Without wait, returns NULL with no exception pending instead
+ * of waiting.
+ */
+static qat_session_t *acquire_session(JNIEnv *env, int level, int wait)
+{
+    qat_session_pool_t *pool = &g_qat_session_pool;
+    qat_session_t *qat_session = NULL;
+    struct timespec deadline;
+    int timed_out = 0;
+
+    pthread_mutex_lock(&pool->lock);
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_sec += pool->acquire_timeout_ms / 1000;
+    deadline.tv_nsec += (long)(pool->acquire_timeout_ms % 1000) * 1000000L;
+    if (deadline.tv_nsec >= 1000000000L)
+    {
+        deadline.tv_sec += 1;
+        deadline.tv_nsec -= 1000000000L;
+    }
+
+    while (!timed_out)
+    {
+        qat_session = take_free_session(pool, level);
+        if (qat_session != NULL)
+        {
+            pthread_mutex_unlock(&pool->lock);
+            return qat_session;
+        }
+        if (pool->live < pool->max_sessions)
+        {
+            pool->live++;
+            pthread_mutex_unlock(&pool->lock);
+            qat_session = open_session(env, level);
+            if (qat_session == NULL)
+            {
+                pthread_mutex_lock(&pool->lock);
+                pool->live--;
+                pthread_cond_signal(&pool->available);
+                pthread_mutex_unlock(&pool->lock);
+            }
+            return qat_session;
+        }
+        qat_session = take_free_session(pool, ANY_LEVEL);
+        if (qat_session != NULL)
+        {
+            pthread_mutex_unlock(&pool->lock);
+            if (reopen_session(env, qat_session, level) != QZ_OK)
+            {
+                free(qat_session);
+                pthread_mutex_lock(&pool->lock);
+                pool->live--;
+                pthread_cond_signal(&pool->available);
+                pthread_mutex_unlock(&pool->lock);
+                return NULL;
+            }
+            return qat_session;
+        }
+        if (!wait)
+        {
+            pthread_mutex_unlock(&pool->lock);
+            return NULL;
+        }
+        timed_out = pthread_cond_timedwait(&pool->available, &pool->lock, &deadline) == ETIMEDOUT;
+    }
+
+    char temp[256];
+    snprintf(temp, sizeof(temp), "Could not acquire a QAT session within %d ms, %d sessions in use",
+        pool->acquire_timeout_ms, pool->live);
+    pthread_mutex_unlock(&pool->lock);
+    /* A busy pool fails the task, not the JVM as an InternalError would. */
+    THROW(env, "com/intel/qat/spark/QatCodecException", temp);
+    return NULL;
+}
+
+static void release_session(qat_session_t *qat_session)
+{
+    qat_session_pool_t *pool = &g_qat_session_pool;
+
+    pthread_mutex_lock(&pool->lock);
+    if (pool->live > pool->max_sessions)
+    {
+        /* The pool has been shrunk since this session was opened. */
+        pool->live--;
+        pthread_mutex_unlock(&pool->lock);
+        close_session(qat_session);
+        return;
+    }
+    qat_session->next = pool->free_list;
+    pool->free_list = qat_session;
+    pthread_cond_signal(&pool->available);
+    pthread_mutex_unlock(&pool->lock);
+}
+
 /*
  * Class:     com_intel_qat_jni_QatCodecJNI
  * Method:    init
@@ -106,6 +335,70 @@ Java_com_intel_qat_jni_QatCodecJNI_init(
     {
         THROW(env, "java/lang/UnsatisfiedLinkError", "Failed to load qzSetDefaults");
     }
+
+    qat_wrapper_context->init = dlsym(lib, "qzInit");
+    if (qat_wrapper_context->init == NULL)
+    {
+        THROW(env, "java/lang/UnsatisfiedLinkError", "Failed to load qzInit");
+    }
+
+    qat_wrapper_context->setupSession = dlsym(lib, "qzSetupSession");
+    if (qat_wrapper_context->setupSession == NULL)
+    {
+        THROW(env, "java/lang/UnsatisfiedLinkError", "Failed to load qzSetupSession");
+    }
+
+    qat_wrapper_context->teardownSession = dlsym(lib, "qzTeardownSession");
+    if (qat_wrapper_context->teardownSession == NULL)
+    {
+        THROW(env, "java/lang/UnsatisfiedLinkError", "Failed to load qzTeardownSession");
+    }
+
+    qat_wrapper_context->close = dlsym(lib, "qzClose");
+    if (qat_wrapper_context->close == NULL)
+    {
+        THROW(env, "java/lang/UnsatisfiedLinkError", "Failed to load qzClose");
+    }
+}
+
+/*
+ * Class:     com_intel_qat_jni_QatCodecJNI
+ * Method:    configureSessionPool
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL
+Java_com_intel_qat_jni_QatCodecJNI_configureSessionPool(
+        JNIEnv *env, jclass cls, jint maxSessions, jint acquireTimeoutMs)
+{
+    qat_session_pool_t *pool = &g_qat_session_pool;
+    qat_session_t *to_close = NULL;
+
+    if (maxSessions <= 0 || acquireTimeoutMs < 0)
+    {
+        THROW(env, "java/lang/IllegalArgumentException", "Invalid QAT session pool configuration");
+        return;
+    }
+
+    pthread_mutex_lock(&pool->lock);
+    pool->max_sessions = maxSessions;
+    pool->acquire_timeout_ms = acquireTimeoutMs;
+    while (pool->live > pool->max_sessions && pool->free_list != NULL)
+    {
+        qat_session_t *qat_session = pool->free_list;
+        pool->free_list = qat_session->next;
+        qat_session->next = to_close;
+        to_close = qat_session;
+        pool->live--;
+    }
+    pthread_cond_broadcast(&pool->available);
+    pthread_mutex_unlock(&pool->lock);
+
+    while (to_close != NULL)
+    {
+        qat_session_t *next = to_close->next;
+        close_session(to_close);
+        to_close = next;
+    }
 }
 
 /*
@@ -139,13 +432,29 @@ JNIEXPORT jlong JNICALL
 Java_com_intel_qat_jni_QatCodecJNI_createCompressContext(
         JNIEnv *env, jclass cls, jint level)
 {
-    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
-    QzSessionParams_T params;
-    qat_wrapper_context->getDefaults(&params);
-    params.comp_lvl = level;
-    //fprintf(stderr, "compression level is %d, tid is %ld\n", level, syscall(__NR_gettid));
-    qat_wrapper_context->setDefaults(&params);
-    return (jlong)1;
+    if (level <= ANY_LEVEL)
+    {
+        THROW(env, "java/lang/IllegalArgumentException", "Invalid QAT compression level");
+        return 0;
+    }
+    return (jlong)(intptr_t)acquire_session(env, level, 1);
+}
+
+/*
+ * Class:     com_intel_qat_jni_QatCodecJNI
+ * Method:    tryCreateCompressContext
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_intel_qat_jni_QatCodecJNI_tryCreateCompressContext(
+        JNIEnv *env, jclass cls, jint level)
+{
+    if (level <= ANY_LEVEL)
+    {
+        THROW(env, "java/lang/IllegalArgumentException", "Invalid QAT compression level");
+        return 0;
+    }
+    return (jlong)(intptr_t)acquire_session(env, level, 0);
 }
 
 /*
@@ -157,7 +466,7 @@ JNIEXPORT jlong JNICALL
 Java_com_intel_qat_jni_QatCodecJNI_createDecompressContext(
         JNIEnv *env, jclass cls)
 {
-    return (jlong)1;
+    return (jlong)(intptr_t)acquire_session(env, ANY_LEVEL, 1);
 }
 
 /*
@@ -169,7 +478,11 @@ JNIEXPORT void JNICALL
 Java_com_intel_qat_jni_QatCodecJNI_destroyContext(
         JNIEnv *env, jclass cls, jlong contextFromJava)
 {
-
+    qat_session_t *qat_session = (qat_session_t *)(intptr_t)contextFromJava;
+    if (qat_session != NULL)
+    {
+        release_session(qat_session);
+    }
 }
 
 /*
@@ -189,6 +502,13 @@ Java_com_intel_qat_jni_QatCodecJNI_compress(
     uint32_t uncompressed_size = 0;
     uint32_t compressed_size = 0;
     qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    qat_session_t *qat_session = (qat_session_t *)(intptr_t)contextFromJava;
+
+    if (qat_session == NULL)
+    {
+        THROW(env, "java/lang/NullPointerException", "Compress context is not initialized");
+        return 0;
+    }
 
     in = (uint8_t*)(*env)->GetDirectBufferAddress(env, srcBuffer);
     if (in == NULL)
@@ -207,7 +527,7 @@ Java_com_intel_qat_jni_QatCodecJNI_compress(
 
     uncompressed_size = srcLen;
     compressed_size = destLen;
-    int ret = qat_wrapper_context->compress(&g_qzSession, in, &uncompressed_size, out, &compressed_size, 1);
+    int ret = qat_wrapper_context->compress(&qat_session->session, in, &uncompressed_size, out, &compressed_size, 1);
     if (ret == QZ_OK)
     {
     }
@@ -246,6 +566,13 @@ Java_com_intel_qat_jni_QatCodecJNI_decompress(
     uint32_t uncompressed_size = 0;
     uint32_t compressed_size = 0;
     qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    qat_session_t *qat_session = (qat_session_t *)(intptr_t)contextFromJava;
+
+    if (qat_session == NULL)
+    {
+        THROW(env, "java/lang/NullPointerException", "Decompress context is not initialized");
+        return 0;
+    }
 
     in = (uint8_t*)(*env)->GetDirectBufferAddress(env, srcBuffer);
     if (in == NULL)
@@ -264,7 +591,7 @@ Java_com_intel_qat_jni_QatCodecJNI_decompress(
 
     compressed_size = srcLen;
     uncompressed_size = destLen;
-    int ret = qat_wrapper_context->decompress(&g_qzSession, in, &compressed_size, out, &uncompressed_size);
+    int ret = qat_wrapper_context->decompress(&qat_session->session, in, &compressed_size, out, &uncompressed_size);
     if (ret == QZ_OK)
     {
     }
@@ -286,8 +613,164 @@ Java_com_intel_qat_jni_QatCodecJNI_decompress(
     return uncompressed_size;
 }
 
+/*
+ * Runs a batch of direct buffer entries on one session in a single JNI call.
+ * The descriptors are copied out of the Java arrays at once and the output
+ * lengths copied back once every entry succeeded. A decompressed entry that
+ * does not fit its destination gets DES_TOO_SMALL rather than failing the
+ * batch, as in the CarbonData batch.
+ */
+static void process_batch(JNIEnv *env, int compress, jlong contextFromJava,
+        jobjectArray srcBuffers, jintArray srcOffs, jintArray srcLens,
+        jobjectArray destBuffers, jintArray destOffs, jintArray destLens,
+        jintArray results)
+{
+    qat_wrapper_context_t *qat_wrapper_context = &g_qat_wrapper_context;
+    qat_session_t *qat_session = (qat_session_t *)(intptr_t)contextFromJava;
+    const char *op = compress ? "compress" : "decompress";
+
+    if (qat_session == NULL)
+    {
+        THROW(env, "java/lang/NullPointerException", "Batch context is not initialized");
+        return;
+    }
+
+    jint n = (*env)->GetArrayLength(env, srcBuffers);
+    if ((*env)->GetArrayLength(env, srcOffs) != n || (*env)->GetArrayLength(env, srcLens) != n
+        || (*env)->GetArrayLength(env, destBuffers) != n || (*env)->GetArrayLength(env, destOffs) != n
+        || (*env)->GetArrayLength(env, destLens) != n || (*env)->GetArrayLength(env, results) != n)
+    {
+        THROW(env, "java/lang/IllegalArgumentException", "Batch arrays differ in length");
+        return;
+    }
+
+    jint *ints = malloc(5 * ((size_t)n + 1) * sizeof(jint));
+    if (ints == NULL)
+    {
+        THROW(env, "java/lang/OutOfMemoryError", "Can't allocate batch descriptors");
+        return;
+    }
+    jint *src_off = ints;
+    jint *src_len = ints + n;
+    jint *dest_off = ints + 2 * n;
+    jint *dest_len = ints + 3 * n;
+    jint *lengths = ints + 4 * n;
+    (*env)->GetIntArrayRegion(env, srcOffs, 0, n, src_off);
+    (*env)->GetIntArrayRegion(env, srcLens, 0, n, src_len);
+    (*env)->GetIntArrayRegion(env, destOffs, 0, n, dest_off);
+    (*env)->GetIntArrayRegion(env, destLens, 0, n, dest_len);
+
+    jint i;
+    for (i = 0; i < n; i++)
+    {
+        jobject src = (*env)->GetObjectArrayElement(env, srcBuffers, i);
+        jobject dest = (*env)->GetObjectArrayElement(env, destBuffers, i);
+        uint8_t *in = src == NULL ? NULL : (uint8_t*)(*env)->GetDirectBufferAddress(env, src);
+        uint8_t *out = dest == NULL ? NULL : (uint8_t*)(*env)->GetDirectBufferAddress(env, dest);
+        (*env)->DeleteLocalRef(env, src);
+        (*env)->DeleteLocalRef(env, dest);
+        if (in == NULL || out == NULL)
+        {
+            THROW(env, "java/lang/OutOfMemoryError", "Can't get batch buffer");
+            break;
+        }
+
+        uint32_t in_size = src_len[i];
+        uint32_t out_size = dest_len[i];
+        int ret;
+        if (compress)
+        {
+            ret = qat_wrapper_context->compress(&qat_session->session,
+                in + src_off[i], &in_size, out + dest_off[i], &out_size, 1);
+        }
+        else
+        {
+            ret = qat_wrapper_context->decompress(&qat_session->session,
+                in + src_off[i], &in_size, out + dest_off[i], &out_size);
+            if (ret == QZ_BUF_ERROR)
+            {
+                lengths[i] = DES_TOO_SMALL;
+                continue;
+            }
+        }
+        if (ret != QZ_OK)
+        {
+            char temp[256];
+            snprintf(temp, sizeof(temp), "Could not %s batch entry %d. Return error code %d",
+                op, (int)i, ret);
+            THROW(env, "java/lang/InternalError", temp);
+            break;
+        }
+        lengths[i] = out_size;
+    }
+
+    if (i == n)
+    {
+        (*env)->SetIntArrayRegion(env, results, 0, n, lengths);
+    }
+    free(ints);
+}
+
+/*
+ * Class:     com_intel_qat_jni_QatCodecJNI
+ * Method:    compressBatch
+ * Signature: (J[Ljava/nio/ByteBuffer;[I[I[Ljava/nio/ByteBuffer;[I[I[I)V
+ */
+JNIEXPORT void JNICALL
+Java_com_intel_qat_jni_QatCodecJNI_compressBatch(
+        JNIEnv *env, jclass cls, jlong contextFromJava,
+        jobjectArray srcBuffers, jintArray srcOffs, jintArray srcLens,
+        jobjectArray destBuffers, jintArray destOffs, jintArray maxDestLens,
+        jintArray results)
+{
+    process_batch(env, 1, contextFromJava, srcBuffers, srcOffs, srcLens,
+        destBuffers, destOffs, maxDestLens, results);
+}
+
+/*
+ * Class:     com_intel_qat_jni_QatCodecJNI
+ * Method:    decompressBatch
+ * Signature: (J[Ljava/nio/ByteBuffer;[I[I[Ljava/nio/ByteBuffer;[I[I[I)V
+ */
+JNIEXPORT void JNICALL
+Java_com_intel_qat_jni_QatCodecJNI_decompressBatch(
+        JNIEnv *env, jclass cls, jlong contextFromJava,
+        jobjectArray srcBuffers, jintArray srcOffs, jintArray srcLens,
+        jobjectArray destBuffers, jintArray destOffs, jintArray destLens,
+        jintArray results)
+{
+    process_batch(env, 0, contextFromJava, srcBuffers, srcOffs, srcLens,
+        destBuffers, destOffs, destLens, results);
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_intel_qat_jni_QatCodecJNI_qzMalloc(JNIEnv *env,
  jobject obj, jlong capacity, jboolean numa, jboolean force_pinned){
   return (*env)->NewDirectByteBuffer(env, qzMalloc(capacity, numa, force_pinned), capacity);
-}
\ No newline at end of file
+}
+
+JNIEXPORT void JNICALL
+Java_com_intel_qat_jni_QatCodecJNI_qzFree(JNIEnv *env,
+ jclass cls, jobject buffer){
+  void *address = (*env)->GetDirectBufferAddress(env, buffer);
+  if (address != NULL)
+  {
+    qzFree(address);
+  }
+}
+
+/*
+ * Class:     com_intel_qat_jni_QatCodecJNI
+ * Method:    freeNativeBuffer
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL
+Java_com_intel_qat_jni_QatCodecJNI_freeNativeBuffer(
+        JNIEnv *env, jclass cls, jobject buffer)
+{
+    void *address = (*env)->GetDirectBufferAddress(env, buffer);
+    if (address != NULL)
+    {
+        free(address);
+    }
+}
@@ -19,7 +19,9 @@ package org.apache.spark.io
 
 import java.io._
 
+import com.intel.qat.jni.QatCodecJNI
 import com.intel.qat.spark._
+import com.intel.qat.util.buffer.PooledBufferAllocator
 
 import org.apache.spark.io._
 import org.apache.spark.SparkConf
@@ -30,6 +32,20 @@ import org.apache.spark.SparkConf
  * To enable creating the ByteBuffer using malloc can be configured by
  * `spark.io.compression.qat.useNativeBuffer`.
  * The QAT compressor level can be configured by `spark.io.compression.qat.level`.
+ * The number of QAT sessions shared by all streams in the executor is bounded by
+ * `spark.io.compression.qat.maxSessions`, and a stream waits at most
+ * `spark.io.compression.qat.sessionAcquireTimeout` for a free session before failing the
+ * task with a [[com.intel.qat.spark.QatCodecException]].
+ * Released stream buffers are pooled up to `spark.io.compression.qat.bufferPool.maxBytes`
+ * and freed once idle for `spark.io.compression.qat.bufferPool.idleTimeout`.
+ * Setting `spark.io.compression.qat.pipelineDepth` above 1 compresses blocks in the
+ * background while the task fills the next one, using that many blocks and sessions
+ * per output stream.
+ * Setting `spark.io.compression.qat.readAhead` above 0 decompresses up to that many blocks
+ * ahead of the reader in the background.
+ * Setting `spark.io.compression.qat.frameVersion` to 1 records the uncompressed length of every
+ * block, so skipping passes over whole blocks without decompressing them, and
+ * `spark.io.compression.qat.blockIndex` then ends each stream with a block index for seeking.
  *
  * @note The wire protocol for this codec is not guaranteed to be compatible across versions
  * of Spark. This is intended for use as an internal compression utility within a single Spark
@@ -37,6 +53,13 @@ import org.apache.spark.SparkConf
  */
 class QatCompressionCodec(conf: SparkConf) extends CompressionCodec {
 
+  QatCodecJNI.configureSessionPool(
+      conf.getInt("spark.io.compression.qat.maxSessions", 64),
+      conf.getTimeAsMs("spark.io.compression.qat.sessionAcquireTimeout", "30s").toInt)
+  PooledBufferAllocator.getInstance().configure(
+      conf.getSizeAsBytes("spark.io.compression.qat.bufferPool.maxBytes", "256m"),
+      conf.getTimeAsMs("spark.io.compression.qat.bufferPool.idleTimeout", "60s"))
+
   override def compressedOutputStream(s: OutputStream): OutputStream = {
     val level = conf.getInt("spark.io.compression.qat.level", 1)
     val bufferSize = conf.getSizeAsBytes("spark.io.compression.qat.blockSize",
@@ -49,8 +72,11 @@ class QatCompressionCodec(conf: SparkConf) extends CompressionCodec {
         true)
     val useNuma = conf.getBoolean("spark.io.compression.qat.native-bb.useNuma",
         false)
+    val pipelineDepth = conf.getInt("spark.io.compression.qat.pipelineDepth", 1)
+    val frameVersion = conf.getInt("spark.io.compression.qat.frameVersion", 0)
+    val blockIndex = conf.getBoolean("spark.io.compression.qat.blockIndex", false)
     new QatCodecBlockOutputStream(s, level, bufferSize, useNativeBuffer, useQzMalloc,
-        useForcePinned, useNuma)
+        useForcePinned, useNuma, pipelineDepth, frameVersion, blockIndex)
   }
 
   override def compressedInputStream(s: InputStream): InputStream = {
@@ -64,7 +90,8 @@ class QatCompressionCodec(conf: SparkConf) extends CompressionCodec {
         true)
     val useNuma = conf.getBoolean("spark.io.compression.qat.native-bb.useNuma",
         false)
+    val readAhead = conf.getInt("spark.io.compression.qat.readAhead", 0)
     new QatCodecBlockInputStream(s, bufferSize, useNativeBuffer, useQzMalloc, useForcePinned,
-        useNuma)
+        useNuma, readAhead)
   }
 }
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.jni
+
+import java.nio.ByteBuffer
+
+import scala.util.Random
+
+import com.intel.qat.util.NativeCodeLoader
+import org.scalatest.FunSuite
+
+class QatCodecJNIBatchSuite extends FunSuite {
+  private val entrySize = 16 * 1024
+  private val batchSize = 4
+
+  private lazy val nativeCodeLoaded =
+    try {
+      NativeCodeLoader.load()
+      true
+    } catch {
+      case _: Throwable => false
+    }
+
+  private def randomBuffer(seed: Int, size: Int): ByteBuffer = {
+    val random = new Random(seed)
+    val buffer = ByteBuffer.allocateDirect(size)
+    while (buffer.hasRemaining) {
+      buffer.put(('a' + random.nextInt(16)).toByte)
+    }
+    buffer.clear()
+    buffer
+  }
+
+  private def compressBatch(src: Array[ByteBuffer]): (Array[ByteBuffer], Array[Int]) = {
+    val dest = Array.fill(src.length)(ByteBuffer.allocateDirect(entrySize * 3 / 2))
+    val lengths = new Array[Int](src.length)
+    val context = QatCodecJNI.createCompressContext(1)
+    try {
+      QatCodecJNI.compressBatch(context, src, Array.fill(src.length)(0),
+        src.map(_.capacity), dest, Array.fill(src.length)(0),
+        dest.map(_.capacity), lengths)
+    } finally {
+      QatCodecJNI.destroyContext(context)
+    }
+    (dest, lengths)
+  }
+
+  private def decompressBatch(
+      src: Array[ByteBuffer],
+      srcLens: Array[Int],
+      destLens: Array[Int]): (Array[ByteBuffer], Array[Int]) = {
+    val dest = destLens.map(ByteBuffer.allocateDirect)
+    val lengths = new Array[Int](src.length)
+    val context = QatCodecJNI.createDecompressContext()
+    try {
+      QatCodecJNI.decompressBatch(context, src, Array.fill(src.length)(0), srcLens,
+        dest, Array.fill(src.length)(0), destLens, lengths)
+    } finally {
+      QatCodecJNI.destroyContext(context)
+    }
+    (dest, lengths)
+  }
+
+  test("compressBatch and decompressBatch round trip") {
+    assume(nativeCodeLoaded)
+    val src = Array.tabulate(batchSize)(i => randomBuffer(i, entrySize - i * 100))
+    val (compressed, compressedLens) = compressBatch(src)
+    assert(compressedLens.forall(_ > 0))
+    val (decompressed, lengths) =
+      decompressBatch(compressed, compressedLens, Array.fill(batchSize)(entrySize))
+    for (i <- 0 until batchSize) {
+      assert(lengths(i) === src(i).capacity)
+      decompressed(i).limit(lengths(i))
+      assert(decompressed(i) === src(i))
+    }
+  }
+
+  test("decompressBatch reports DES_TOO_SMALL for an entry that does not fit") {
+    assume(nativeCodeLoaded)
+    val src = Array.tabulate(2)(i => randomBuffer(i, entrySize))
+    val (compressed, compressedLens) = compressBatch(src)
+    val (decompressed, lengths) =
+      decompressBatch(compressed, compressedLens, Array(entrySize, entrySize - 1))
+    assert(lengths(0) === entrySize)
+    decompressed(0).limit(lengths(0))
+    assert(decompressed(0) === src(0))
+    assert(lengths(1) === QatCodecJNI.DES_TOO_SMALL)
+  }
+}
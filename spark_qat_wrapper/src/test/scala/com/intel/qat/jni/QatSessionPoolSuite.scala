@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.jni
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{Callable, Executors, TimeUnit, TimeoutException}
+
+import scala.util.Random
+
+import com.intel.qat.spark.QatCodecException
+import com.intel.qat.util.NativeCodeLoader
+import org.scalatest.FunSuite
+
+class QatSessionPoolSuite extends FunSuite {
+  private val defaultMaxSessions = 64
+  private val defaultAcquireTimeoutMs = 30000
+
+  private lazy val nativeCodeLoaded =
+    try {
+      NativeCodeLoader.load()
+      true
+    } catch {
+      case _: Throwable => false
+    }
+
+  private def withPool(maxSessions: Int, acquireTimeoutMs: Int)(body: => Unit): Unit = {
+    QatCodecJNI.configureSessionPool(maxSessions, acquireTimeoutMs)
+    try {
+      body
+    } finally {
+      QatCodecJNI.configureSessionPool(defaultMaxSessions, defaultAcquireTimeoutMs)
+    }
+  }
+
+  private def roundTrip(compressContext: Long): Unit = {
+    val random = new Random(1)
+    val src = ByteBuffer.allocateDirect(16 * 1024)
+    while (src.hasRemaining) {
+      src.put(('a' + random.nextInt(16)).toByte)
+    }
+    val compressed = ByteBuffer.allocateDirect(src.capacity * 3 / 2)
+    val compressedLen = QatCodecJNI.compress(compressContext, src, 0, src.capacity,
+      compressed, 0, compressed.capacity)
+    val decompressed = ByteBuffer.allocateDirect(src.capacity)
+    val decompressContext = QatCodecJNI.createDecompressContext()
+    try {
+      assert(QatCodecJNI.decompress(decompressContext, compressed, 0, compressedLen,
+        decompressed, 0, decompressed.capacity) === src.capacity)
+    } finally {
+      QatCodecJNI.destroyContext(decompressContext)
+    }
+    src.clear()
+    assert(decompressed === src)
+  }
+
+  test("a context waits for the only session to be released") {
+    assume(nativeCodeLoaded)
+    withPool(1, defaultAcquireTimeoutMs) {
+      val executor = Executors.newSingleThreadExecutor()
+      try {
+        val first = QatCodecJNI.createCompressContext(1)
+        val second = executor.submit(new Callable[Long] {
+          override def call(): Long = QatCodecJNI.createCompressContext(1)
+        })
+        intercept[TimeoutException] {
+          second.get(200, TimeUnit.MILLISECONDS)
+        }
+        QatCodecJNI.destroyContext(first)
+        val context = second.get(10, TimeUnit.SECONDS)
+        assert(context !== 0L)
+        QatCodecJNI.destroyContext(context)
+      } finally {
+        executor.shutdownNow()
+      }
+    }
+  }
+
+  test("a context that can't get a session in time fails with QatCodecException") {
+    assume(nativeCodeLoaded)
+    withPool(1, 100) {
+      val executor = Executors.newSingleThreadExecutor()
+      val first = QatCodecJNI.createCompressContext(1)
+      try {
+        val second = executor.submit(new Callable[Long] {
+          override def call(): Long = QatCodecJNI.createCompressContext(1)
+        })
+        val e = intercept[java.util.concurrent.ExecutionException] {
+          second.get(10, TimeUnit.SECONDS)
+        }
+        assert(e.getCause.isInstanceOf[QatCodecException])
+      } finally {
+        QatCodecJNI.destroyContext(first)
+        executor.shutdownNow()
+      }
+    }
+  }
+
+  test("an idle session is reopened at the level a full pool is asked for") {
+    assume(nativeCodeLoaded)
+    // one session for the compressor and one for the round trip decompressor
+    withPool(2, 100) {
+      val first = QatCodecJNI.createCompressContext(1)
+      val second = QatCodecJNI.createCompressContext(1)
+      QatCodecJNI.destroyContext(first)
+      QatCodecJNI.destroyContext(second)
+      // both sessions are idle at level 1 and the pool is full
+      val context = QatCodecJNI.createCompressContext(5)
+      try {
+        roundTrip(context)
+      } finally {
+        QatCodecJNI.destroyContext(context)
+      }
+    }
+  }
+
+  test("shrinking the pool closes sessions as they are released") {
+    assume(nativeCodeLoaded)
+    withPool(2, 100) {
+      val first = QatCodecJNI.createCompressContext(1)
+      val second = QatCodecJNI.createCompressContext(1)
+      QatCodecJNI.configureSessionPool(1, 100)
+      QatCodecJNI.destroyContext(first)
+      QatCodecJNI.destroyContext(second)
+      val context = QatCodecJNI.createCompressContext(1)
+      try {
+        intercept[QatCodecException] {
+          QatCodecJNI.createCompressContext(1)
+        }
+      } finally {
+        QatCodecJNI.destroyContext(context)
+      }
+    }
+  }
+}
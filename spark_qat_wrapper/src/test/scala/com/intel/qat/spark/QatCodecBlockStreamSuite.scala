@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.spark
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, EOFException, InputStream, IOException, OutputStream}
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.channels.{Channels, FileChannel}
+import java.nio.file.{Files, StandardOpenOption}
+import java.util.concurrent.{Callable, CountDownLatch, Executors, TimeUnit}
+
+import scala.util.Random
+
+import com.intel.qat.jni.QatCodecJNI
+import com.intel.qat.util.NativeCodeLoader
+import org.scalatest.FunSuite
+
+class QatCodecBlockStreamSuite extends FunSuite {
+  private val blockSize = 64 * 1024
+
+  private lazy val nativeCodeLoaded =
+    try {
+      NativeCodeLoader.load()
+      true
+    } catch {
+      case _: Throwable => false
+    }
+
+  private def randomBytes(seed: Int, size: Int): Array[Byte] = {
+    val random = new Random(seed)
+    Array.fill(size)(('a' + random.nextInt(16)).toByte)
+  }
+
+  private def newOutputStream(
+      out: OutputStream,
+      pipelineDepth: Int,
+      frameVersion: Int = QatCodecBlockFormat.VERSION_0,
+      blockIndex: Boolean = false): QatCodecBlockOutputStream =
+    new QatCodecBlockOutputStream(out, 1, blockSize, false, false, false, false,
+      pipelineDepth, frameVersion, blockIndex)
+
+  private def compress(
+      data: Array[Byte],
+      frameVersion: Int = QatCodecBlockFormat.VERSION_0,
+      blockIndex: Boolean = false,
+      pipelineDepth: Int = 1): Array[Byte] = {
+    val compressed = new ByteArrayOutputStream()
+    val out = newOutputStream(compressed, pipelineDepth, frameVersion, blockIndex)
+    out.write(data)
+    out.close()
+    compressed.toByteArray
+  }
+
+  private def newInputStream(compressed: Array[Byte]): QatCodecBlockInputStream =
+    new QatCodecBlockInputStream(new ByteArrayInputStream(compressed), blockSize, false)
+
+  private def withSeekableStream(compressed: Array[Byte])(
+      body: QatCodecBlockInputStream => Unit): Unit = {
+    val file = Files.createTempFile("qat-block-stream", ".bin")
+    try {
+      Files.write(file, compressed)
+      val in = new QatCodecBlockInputStream(
+        FileChannel.open(file, StandardOpenOption.READ), blockSize, false, false,
+        false, false, 0)
+      try {
+        body(in)
+      } finally {
+        in.close()
+      }
+    } finally {
+      Files.delete(file)
+    }
+  }
+
+  private def readAll(in: InputStream): Array[Byte] = {
+    try {
+      val data = new ByteArrayOutputStream()
+      val buffer = new Array[Byte](10000)
+      var n = in.read(buffer)
+      while (n >= 0) {
+        data.write(buffer, 0, n)
+        n = in.read(buffer)
+      }
+      data.toByteArray
+    } finally {
+      in.close()
+    }
+  }
+
+  private def skipFully(in: InputStream, n: Long): Unit = {
+    var left = n
+    while (left > 0) {
+      val skipped = in.skip(left)
+      assert(skipped > 0)
+      left -= skipped
+    }
+  }
+
+  private def littleEndian(bytes: Array[Byte]): ByteBuffer =
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+
+  private def newReadAheadStream(in: InputStream): QatCodecBlockInputStream =
+    new QatCodecBlockInputStream(in, blockSize, false, false, false, false, 2)
+
+  // an input whose reads block until release is counted down, ignoring interrupts
+  private class BlockingInputStream(release: CountDownLatch) extends InputStream {
+    val reading = new CountDownLatch(1)
+
+    override def read(): Int = {
+      reading.countDown()
+      var released = false
+      while (!released) {
+        try {
+          released = release.await(10, TimeUnit.SECONDS)
+        } catch {
+          case _: InterruptedException =>
+        }
+      }
+      -1
+    }
+  }
+
+  private def closeWithin(in: QatCodecBlockInputStream, seconds: Int): Unit = {
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      executor.submit(new Callable[Unit] {
+        override def call(): Unit = in.close()
+      }).get(seconds, TimeUnit.SECONDS)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  private def readFully(in: QatCodecBlockInputStream, size: Int): Array[Byte] = {
+    val data = new Array[Byte](size)
+    var off = 0
+    while (off < size) {
+      val n = in.read(data, off, size - off)
+      assert(n > 0)
+      off += n
+    }
+    data
+  }
+
+  test("a stream compresses with the sessions that are free instead of waiting") {
+    assume(nativeCodeLoaded)
+    QatCodecJNI.configureSessionPool(2, 100)
+    try {
+      val held = QatCodecJNI.createCompressContext(1)
+      val compressed = new ByteArrayOutputStream()
+      val data = randomBytes(1, blockSize * 5 / 2)
+      try {
+        val out = newOutputStream(compressed, 4)
+        assert(out.toString.contains("pipelineDepth=1"))
+        out.write(data)
+        out.close()
+      } finally {
+        QatCodecJNI.destroyContext(held)
+      }
+      val in = new QatCodecBlockInputStream(
+        new ByteArrayInputStream(compressed.toByteArray), blockSize, false)
+      assert(readFully(in, data.length) === data)
+      assert(in.read() === -1)
+      in.close()
+    } finally {
+      QatCodecJNI.configureSessionPool(64, 30000)
+    }
+  }
+
+  test("a failed stream rethrows its error on close and closes the underlying stream") {
+    assume(nativeCodeLoaded)
+    val error = new IOException("disk full")
+    var underlyingClosed = false
+    val failing = new OutputStream {
+      override def write(b: Int): Unit = throw error
+      override def write(b: Array[Byte], off: Int, len: Int): Unit = throw error
+      override def close(): Unit = underlyingClosed = true
+    }
+    val out = newOutputStream(failing, 2)
+    val data = randomBytes(2, blockSize * 3)
+    assert(intercept[IOException](out.write(data)) eq error)
+    assert(intercept[IOException](out.write(data)) eq error)
+    assert(intercept[IOException](out.close()) eq error)
+    assert(underlyingClosed)
+    out.close()
+  }
+
+  test("read-ahead decompresses the blocks of a stream in order") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(3, blockSize * 7 / 2)
+    val in = newReadAheadStream(new ByteArrayInputStream(compress(data)))
+    assert(readFully(in, data.length) === data)
+    assert(in.read() === -1)
+    in.close()
+  }
+
+  test("close stops a read-ahead worker blocked reading the input by closing it") {
+    assume(nativeCodeLoaded)
+    val release = new CountDownLatch(1)
+    val source = new BlockingInputStream(release) {
+      override def close(): Unit = release.countDown()
+    }
+    val in = newReadAheadStream(source)
+    assert(source.reading.await(10, TimeUnit.SECONDS))
+    closeWithin(in, 10)
+    assert(release.getCount === 0)
+  }
+
+  test("close doesn't wait for a read-ahead worker stuck in a read") {
+    assume(nativeCodeLoaded)
+    QatCodecJNI.configureSessionPool(1, 100)
+    val release = new CountDownLatch(1)
+    try {
+      val source = new BlockingInputStream(release)
+      val in = newReadAheadStream(source)
+      assert(source.reading.await(10, TimeUnit.SECONDS))
+      closeWithin(in, 10)
+      // the stuck worker still holds the only session
+      intercept[QatCodecException] {
+        QatCodecJNI.destroyContext(QatCodecJNI.createDecompressContext())
+      }
+      // and releases it when its read returns
+      release.countDown()
+      QatCodecJNI.configureSessionPool(1, 10000)
+      QatCodecJNI.destroyContext(QatCodecJNI.createDecompressContext())
+    } finally {
+      release.countDown()
+      QatCodecJNI.configureSessionPool(64, 30000)
+    }
+  }
+
+  test("round trip with each frame format") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(4, blockSize * 5 / 2)
+    for ((frameVersion, blockIndex) <- Seq((QatCodecBlockFormat.VERSION_0, false),
+        (QatCodecBlockFormat.VERSION_1, false), (QatCodecBlockFormat.VERSION_1, true));
+        pipelineDepth <- Seq(1, 3);
+        length <- Seq(0, 1, blockSize, data.length)) {
+      val compressed = compress(data.take(length), frameVersion, blockIndex, pipelineDepth)
+      assert(readAll(newInputStream(compressed)) === data.take(length))
+      val channel = Channels.newChannel(new ByteArrayInputStream(compressed))
+      val in = new QatCodecBlockInputStream(channel, blockSize, false, false, false,
+        false, 0)
+      assert(readAll(in) === data.take(length))
+    }
+  }
+
+  test("a version 0 stream written frame by frame is read") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(5, blockSize * 5 / 2)
+    val stream = new ByteArrayOutputStream()
+    val src = ByteBuffer.allocateDirect(blockSize)
+    val dest = ByteBuffer.allocateDirect(blockSize * 3 / 2)
+    val header = littleEndian(new Array[Byte](4))
+    val context = QatCodecJNI.createCompressContext(1)
+    try {
+      for (block <- data.grouped(blockSize)) {
+        src.clear()
+        src.put(block)
+        val compressedLen = QatCodecJNI.compress(context, src, 0, block.length,
+          dest, 0, dest.capacity)
+        header.putInt(0, compressedLen)
+        stream.write(header.array)
+        val compressed = new Array[Byte](compressedLen)
+        dest.clear()
+        dest.get(compressed)
+        stream.write(compressed)
+      }
+    } finally {
+      QatCodecJNI.destroyContext(context)
+    }
+    assert(readAll(newInputStream(stream.toByteArray)) === data)
+  }
+
+  test("seek goes to positions across block boundaries through the block index") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(6, blockSize * 7 / 2)
+    withSeekableStream(compress(data, QatCodecBlockFormat.VERSION_1, true)) { in =>
+      assert(in.uncompressedLength() === data.length)
+      for (position <- Seq(blockSize + 17, 0, blockSize - 1, blockSize, 3 * blockSize,
+          data.length - 1, 1)) {
+        in.seek(position)
+        val length = math.min(2 * blockSize, data.length - position)
+        assert(readFully(in, length) === data.slice(position, position + length))
+      }
+      in.seek(data.length)
+      assert(in.read() === -1)
+      in.seek(10)
+      assert(in.read() === (data(10) & 0xff))
+    }
+  }
+
+  test("skip passes over block boundaries") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(7, blockSize * 7 / 2)
+    for (frameVersion <- Seq(QatCodecBlockFormat.VERSION_0, QatCodecBlockFormat.VERSION_1)) {
+      val compressed = compress(data, frameVersion)
+      val in = newInputStream(compressed)
+      skipFully(in, 10)
+      skipFully(in, blockSize)
+      skipFully(in, 2 * blockSize)
+      assert(readFully(in, 100) === data.slice(3 * blockSize + 10, 3 * blockSize + 110))
+      skipFully(in, data.length - 3 * blockSize - 110)
+      assert(in.read() === -1)
+      in.close()
+      // through a seekable channel, a version 1 stream skips whole blocks by
+      // seeking it
+      withSeekableStream(compressed) { in =>
+        skipFully(in, 2 * blockSize + 5)
+        assert(readFully(in, 10) === data.slice(2 * blockSize + 5, 2 * blockSize + 15))
+      }
+    }
+  }
+
+  test("a version 1 stream truncated before its terminator fails with EOFException") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(8, blockSize * 5 / 2)
+    val compressed = compress(data, QatCodecBlockFormat.VERSION_1)
+    // without the terminator, and inside the last frame
+    for (length <- Seq(compressed.length - 4, compressed.length - 100)) {
+      val truncated = compressed.take(length)
+      intercept[EOFException] {
+        readAll(newInputStream(truncated))
+      }
+      intercept[EOFException] {
+        readAll(newReadAheadStream(new ByteArrayInputStream(truncated)))
+      }
+    }
+    // a version 0 stream has no terminator, so only the truncated frame is detected
+    intercept[EOFException] {
+      val v0 = compress(data)
+      readAll(newInputStream(v0.take(v0.length - 100)))
+    }
+  }
+
+  test("seek fails with IOException without a valid block index") {
+    assume(nativeCodeLoaded)
+    val data = randomBytes(9, blockSize * 5 / 2)
+    val compressed = compress(data, QatCodecBlockFormat.VERSION_1, true)
+    val trailer = compressed.length - QatCodecBlockFormat.TRAILER_LENGTH
+    val indexOffset = littleEndian(compressed).getLong(trailer).toInt
+
+    def corrupted(corrupt: ByteBuffer => Unit): Array[Byte] = {
+      val bytes = compressed.clone()
+      corrupt(littleEndian(bytes))
+      bytes
+    }
+    val invalid = Seq(
+      compress(data),
+      compress(data, QatCodecBlockFormat.VERSION_1),
+      corrupted(_.putInt(trailer + 8, 0)),
+      corrupted(_.putLong(trailer, compressed.length.toLong)),
+      corrupted(_.putInt(indexOffset, 5)),
+      // the second block starts before the first
+      corrupted(_.putLong(indexOffset + 4 + QatCodecBlockFormat.INDEX_ENTRY_LENGTH, 6)),
+      // the second block starts in the middle of the uncompressed data of the first
+      corrupted(_.putLong(indexOffset + 4 + QatCodecBlockFormat.INDEX_ENTRY_LENGTH + 8,
+        blockSize / 2)))
+    for (stream <- invalid) {
+      withSeekableStream(stream) { in =>
+        intercept[IOException] {
+          in.seek(blockSize)
+        }
+      }
+    }
+    // the index is only found through a seekable channel
+    val in = newInputStream(compressed)
+    try {
+      intercept[IOException] {
+        in.seek(blockSize)
+      }
+    } finally {
+      in.close()
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.qat.util.buffer
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
+import scala.util.Random
+
+import org.scalatest.FunSuite
+
+// Heap and plain direct buffers never call into QAT, so this runs anywhere.
+class PooledBufferAllocatorSuite extends FunSuite {
+  private val maxBytes = 64L * 1024 * 1024
+  private val idleTimeoutMs = 60 * 1000L
+
+  private def allocateDirect(allocator: PooledBufferAllocator, size: Int): ByteBuffer =
+    allocator.allocateDirectByteBuffer(false, size, 64, false, false, false)
+
+  private def eventually(condition: => Boolean): Unit = {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+    while (!condition && System.nanoTime() < deadline) {
+      Thread.sleep(10)
+    }
+    assert(condition)
+  }
+
+  test("sizes are rounded up to a multiple of 4 KB") {
+    val allocator = new PooledBufferAllocator(maxBytes, idleTimeoutMs)
+    assert(allocateDirect(allocator, 0).capacity === 4096)
+    assert(allocateDirect(allocator, 1000).capacity === 4096)
+    assert(allocateDirect(allocator, 4097).capacity === 8192)
+    // a 1 MB block's compressed buffer is not rounded up to 2 MB
+    assert(allocateDirect(allocator, 1024 * 1024 * 3 / 2).capacity === 1536 * 1024)
+    assert(allocator.allocateByteArray(1536 * 1024 - 1).length === 1536 * 1024)
+    intercept[IllegalArgumentException] {
+      allocator.allocateByteArray(-1)
+    }
+  }
+
+  test("a released buffer serves the next request of its size class and kind") {
+    val allocator = new PooledBufferAllocator(maxBytes, idleTimeoutMs)
+    val direct = allocateDirect(allocator, 10000)
+    val array = allocator.allocateByteArray(10000)
+    assert(allocator.getLiveBytes === 2 * 12288)
+    allocator.releaseDirectByteBuffer(direct)
+    allocator.releaseByteArray(array)
+    assert(allocator.getPooledBytes === 2 * 12288)
+
+    assert(allocateDirect(allocator, 4096).capacity === 4096)
+    assert(allocateDirect(allocator, 12288) eq direct)
+    assert(allocator.allocateByteArray(9000) eq array)
+    assert(allocator.getPooledBytes === 0)
+    assert(allocator.getLiveBytes === 2 * 12288 + 4096)
+  }
+
+  test("buffers released by one thread are reused by another") {
+    val allocator = new PooledBufferAllocator(maxBytes, idleTimeoutMs)
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      // more than a thread caches, so some go to the shared stacks
+      val released = executor.submit(new Callable[Seq[ByteBuffer]] {
+        override def call(): Seq[ByteBuffer] = {
+          val buffers = Seq.fill(PooledBufferAllocator.THREAD_CACHE_SLOTS * 2)(
+            allocateDirect(allocator, 8192))
+          buffers.foreach(allocator.releaseDirectByteBuffer)
+          buffers
+        }
+      }).get(10, TimeUnit.SECONDS)
+      val reused = allocateDirect(allocator, 8192)
+      assert(released.exists(_ eq reused))
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  test("releases beyond the cap are dropped") {
+    val allocator = new PooledBufferAllocator(8192, idleTimeoutMs)
+    val arrays = Seq.fill(3)(allocator.allocateByteArray(4096))
+    arrays.foreach(allocator.releaseByteArray)
+    assert(allocator.getPooledBytes === 8192)
+    assert(allocator.getLiveBytes === 8192)
+  }
+
+  test("buffers of other sizes are not pooled") {
+    val allocator = new PooledBufferAllocator(maxBytes, idleTimeoutMs)
+    allocator.releaseDirectByteBuffer(ByteBuffer.allocateDirect(5000))
+    allocator.releaseByteArray(new Array[Byte](100))
+    assert(allocator.getPooledBytes === 0)
+  }
+
+  test("idle buffers are evicted without further allocations or releases") {
+    val allocator = new PooledBufferAllocator(maxBytes, 50)
+    val direct = Seq.fill(PooledBufferAllocator.THREAD_CACHE_SLOTS * 2)(
+      allocateDirect(allocator, 4096))
+    val array = allocator.allocateByteArray(4096)
+    direct.foreach(allocator.releaseDirectByteBuffer)
+    allocator.releaseByteArray(array)
+    assert(allocator.getPooledBytes > 0)
+    eventually(allocator.getPooledBytes == 0)
+    assert(allocator.getLiveBytes === 0)
+  }
+
+  test("a lower idle timeout applies to buffers already pooled") {
+    val allocator = new PooledBufferAllocator(maxBytes, idleTimeoutMs)
+    allocator.releaseByteArray(allocator.allocateByteArray(4096))
+    assert(allocator.getPooledBytes === 4096)
+    allocator.configure(maxBytes, 50)
+    eventually(allocator.getPooledBytes == 0)
+  }
+
+  test("concurrent allocations and releases keep the accounting consistent") {
+    val allocator = new PooledBufferAllocator(4L * 1024 * 1024, idleTimeoutMs)
+    val threads = 8
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+      val tasks = (0 until threads).map { t =>
+        executor.submit(new Callable[Unit] {
+          override def call(): Unit = {
+            val random = new Random(t)
+            for (_ <- 0 until 2000) {
+              val size = 1 + random.nextInt(256 * 1024)
+              if (random.nextBoolean()) {
+                val buffer = allocateDirect(allocator, size)
+                assert(buffer.capacity >= size && buffer.position === 0)
+                allocator.releaseDirectByteBuffer(buffer)
+              } else {
+                val array = allocator.allocateByteArray(size)
+                assert(array.length >= size)
+                allocator.releaseByteArray(array)
+              }
+            }
+          }
+        })
+      }
+      tasks.foreach(_.get(60, TimeUnit.SECONDS))
+    } finally {
+      executor.shutdownNow()
+    }
+    assert(allocator.getPooledBytes <= 4L * 1024 * 1024)
+    assert(allocator.getLiveBytes === allocator.getPooledBytes)
+  }
+}